@@ -41,9 +41,10 @@ class RerankableResult {
     this.encoderResult = encoderResult;
     this.encodingToLangModelScore = new IdentityHashMap<>(encoderResult.overallResults.size())
 
-    // calculate the lang model score for all of the entries
-    encoderResult.overallResults.each {
-      encodingToLangModelScore.put(it, langModel.score(it))
+    // calculate the lang model score for all of the entries; the candidates share lots of prefixes so score together
+    def lmScores = langModel.scoreAll(encoderResult.overallResults)
+    encoderResult.overallResults.eachWithIndex { Encoding enc, int i ->
+      encodingToLangModelScore.put(enc, lmScores[i])
     }
 
     def overall = encoderResult.overallResults
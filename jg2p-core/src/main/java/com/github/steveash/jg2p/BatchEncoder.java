@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Encodes many words at once by fanning contiguous slices of the input out over an executor.  Each worker encodes its
+ * slice sequentially so any per-thread state in the underlying models is reused across the words in that slice. The
+ * results always come back in the same order as the input.  The caller owns the executor (and shutting it down).
+ *
+ * @author Steve Ash
+ */
+public class BatchEncoder {
+
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  // split each batch into a few more slices than workers so one slow slice doesn't hold up the whole batch
+  private static final int SLICES_PER_WORKER = 4;
+
+  private final Encoder encoder;
+  private final ListeningExecutorService executor;
+  private final int parallelism;
+  private final int blockSize;
+
+  public BatchEncoder(Encoder encoder, ExecutorService executor) {
+    this(encoder, executor, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * @param encoder the encoder to delegate each word to; must be safe to call from multiple threads
+   * @param executor the executor to run the slices on
+   * @param parallelism the number of workers that you expect the executor to run concurrently
+   * @param blockSize how many words to buffer at a time when streaming through encodeAllLazily
+   */
+  public BatchEncoder(Encoder encoder, ExecutorService executor, int parallelism, int blockSize) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    Preconditions.checkArgument(blockSize > 0, "blockSize must be positive");
+    this.encoder = encoder;
+    this.executor = MoreExecutors.listeningDecorator(executor);
+    this.parallelism = parallelism;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Encodes all of the inputs and returns the encoder results for each input word in the same order as the inputs
+   */
+  public List<List<? extends EncodingResult>> encodeAll(List<Word> inputs) {
+    return transformInOrder(inputs, encodeFunc(encoder), executor, parallelism);
+  }
+
+  /**
+   * Streaming version of encodeAll that only holds blockSize words (and results) in memory at once; the next block
+   * is encoded in the background while the caller is consuming the current one
+   */
+  public Iterable<List<? extends EncodingResult>> encodeAllLazily(final Iterable<Word> inputs) {
+    return new Iterable<List<? extends EncodingResult>>() {
+      @Override
+      public Iterator<List<? extends EncodingResult>> iterator() {
+        return new BlockIterator(Iterators.partition(inputs.iterator(), blockSize));
+      }
+    };
+  }
+
+  /**
+   * Applies the function to every input on the given executor, splitting the input in to contiguous slices so that
+   * each worker handles a run of consecutive words.  The output list is in the same order as the input
+   */
+  public static <T> List<T> transformInOrder(List<Word> inputs, final Function<? super Word, T> func,
+                                             ListeningExecutorService executor, int parallelism) {
+    if (inputs.isEmpty()) {
+      return ImmutableList.of();
+    }
+    try {
+      return submitInOrder(inputs, func, executor, parallelism).get();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static <T> ListenableFuture<List<T>> submitInOrder(List<Word> inputs, final Function<? super Word, T> func,
+                                                             ListeningExecutorService executor, int parallelism) {
+    int sliceCount = parallelism * SLICES_PER_WORKER;
+    int sliceSize = Math.max(1, (inputs.size() + sliceCount - 1) / sliceCount);
+    List<ListenableFuture<List<T>>> slices = Lists.newArrayList();
+    for (final List<Word> slice : Lists.partition(inputs, sliceSize)) {
+      slices.add(executor.submit(new Callable<List<T>>() {
+        @Override
+        public List<T> call() throws Exception {
+          List<T> results = Lists.newArrayListWithCapacity(slice.size());
+          for (Word word : slice) {
+            results.add(func.apply(word));
+          }
+          return results;
+        }
+      }));
+    }
+    return Futures.transform(Futures.allAsList(slices), new Function<List<List<T>>, List<T>>() {
+      @Override
+      public List<T> apply(List<List<T>> input) {
+        List<T> results = Lists.newArrayList();
+        for (List<T> slice : input) {
+          results.addAll(slice);
+        }
+        return results;
+      }
+    });
+  }
+
+  private static Function<Word, List<? extends EncodingResult>> encodeFunc(final Encoder encoder) {
+    return new Function<Word, List<? extends EncodingResult>>() {
+      @Override
+      public List<? extends EncodingResult> apply(Word input) {
+        return encoder.encode(input);
+      }
+    };
+  }
+
+  private class BlockIterator extends AbstractIterator<List<? extends EncodingResult>> {
+
+    private final Iterator<List<Word>> blocks;
+    private ListenableFuture<List<List<? extends EncodingResult>>> pending;
+    private Iterator<List<? extends EncodingResult>> current = Iterators.emptyIterator();
+
+    private BlockIterator(Iterator<List<Word>> blocks) {
+      this.blocks = blocks;
+      this.pending = submitNext();
+    }
+
+    @Override
+    protected List<? extends EncodingResult> computeNext() {
+      while (!current.hasNext()) {
+        if (pending == null) {
+          return endOfData();
+        }
+        try {
+          current = pending.get().iterator();
+        } catch (Exception e) {
+          throw Throwables.propagate(e);
+        }
+        pending = submitNext();
+      }
+      return current.next();
+    }
+
+    private ListenableFuture<List<List<? extends EncodingResult>>> submitNext() {
+      if (!blocks.hasNext()) {
+        return null;
+      }
+      return submitInOrder(blocks.next(), encodeFunc(encoder), executor, parallelism);
+    }
+  }
+}
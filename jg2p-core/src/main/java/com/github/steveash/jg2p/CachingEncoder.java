@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import com.github.steveash.jg2p.phoseq.Graphemes;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Decorator for encoders that memoizes the results of the most recently used words.  Real traffic is very skewed
+ * (common words and surnames repeat constantly) so this can skip the whole pipeline for most lookups.  Words are
+ * keyed after the same normalization (Graphemes.xformForEval) that the pipeline applies.
+ * <p>
+ * This is safe to use from multiple threads (as long as the delegate is).  The cached results are held as immutable
+ * snapshots and every call gets its own copies back, so callers (like the DuplicateStrippingEncoder, which re-ranks)
+ * can't corrupt what is in the cache.  Only encoders that produce PhoneticEncoder.Encoding results can be cached.
+ *
+ * @author Steve Ash
+ */
+public class CachingEncoder implements Encoder {
+
+  private final Encoder delegate;
+  private final LoadingCache<Word, List<PhoneticEncoder.Encoding>> cache;
+  private final Function<Word, List<PhoneticEncoder.Encoding>> loadFunc =
+      new Function<Word, List<PhoneticEncoder.Encoding>>() {
+        @Override
+        public List<PhoneticEncoder.Encoding> apply(Word input) {
+          return lookup(input);
+        }
+      };
+
+  /**
+   * Creates a cache that holds at most maximumWords words (evicting the least recently used)
+   */
+  public static CachingEncoder withMaximumSize(Encoder delegate, long maximumWords) {
+    Preconditions.checkArgument(maximumWords > 0, "must allow at least one word");
+    return new CachingEncoder(delegate, CacheBuilder.newBuilder().maximumSize(maximumWords));
+  }
+
+  /**
+   * Creates a cache whose total weight is at most maximumPhones where the weight of each word is the total number
+   * of phones across all of its encodings; this is a better proxy for memory than the word count when the number
+   * of results per word varies a lot
+   */
+  public static CachingEncoder withMaximumWeight(Encoder delegate, long maximumPhones) {
+    Preconditions.checkArgument(maximumPhones > 0, "must allow at least one phone");
+    return new CachingEncoder(delegate, CacheBuilder.newBuilder()
+        .maximumWeight(maximumPhones)
+        .weigher(new Weigher<Word, List<PhoneticEncoder.Encoding>>() {
+          @Override
+          public int weigh(Word key, List<PhoneticEncoder.Encoding> value) {
+            int weight = 1;
+            for (PhoneticEncoder.Encoding encoding : value) {
+              if (encoding.getPhones() != null) {
+                weight += encoding.getPhones().size();
+              }
+            }
+            return weight;
+          }
+        }));
+  }
+
+  private CachingEncoder(Encoder delegate,
+                         CacheBuilder<? super Word, ? super List<PhoneticEncoder.Encoding>> builder) {
+    this.delegate = delegate;
+    this.cache = builder
+        .concurrencyLevel(32)
+        .recordStats()
+        .build(new CacheLoader<Word, List<PhoneticEncoder.Encoding>>() {
+          @Override
+          public List<PhoneticEncoder.Encoding> load(Word key) throws Exception {
+            return snapshot(CachingEncoder.this.delegate.encode(key));
+          }
+        });
+  }
+
+  @Override
+  public List<PhoneticEncoder.Encoding> encode(Word input) {
+    List<PhoneticEncoder.Encoding> cached = lookup(input);
+    ImmutableList.Builder<PhoneticEncoder.Encoding> builder = ImmutableList.builder();
+    for (PhoneticEncoder.Encoding encoding : cached) {
+      builder.add(encoding.immutableCopy());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Encodes all of the given words (that aren't already cached) so that later lookups for them are hits; the words
+   * are encoded on the calling thread
+   */
+  public void warm(Iterable<Word> words) {
+    for (Word word : words) {
+      lookup(word);
+    }
+  }
+
+  /**
+   * Same as warm(words) but encodes the words in parallel on the given executor (which the caller is responsible
+   * for shutting down)
+   * @param parallelism how many threads the executor will run concurrently
+   */
+  public void warm(List<Word> words, ExecutorService executor, int parallelism) {
+    BatchEncoder.transformInOrder(words, loadFunc, MoreExecutors.listeningDecorator(executor), parallelism);
+  }
+
+  /**
+   * @return the hit, miss, and eviction counts (and load times) since this cache was created
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  private List<PhoneticEncoder.Encoding> lookup(Word input) {
+    try {
+      return cache.getUnchecked(Graphemes.xformForEval(input));
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private static List<PhoneticEncoder.Encoding> snapshot(List<? extends EncodingResult> results) {
+    ImmutableList.Builder<PhoneticEncoder.Encoding> builder = ImmutableList.builder();
+    for (EncodingResult result : results) {
+      if (!(result instanceof PhoneticEncoder.Encoding)) {
+        throw new IllegalArgumentException("Can only cache PhoneticEncoder.Encoding results but got " +
+                                           result.getClass().getName());
+      }
+      builder.add(((PhoneticEncoder.Encoding) result).immutableCopy());
+    }
+    return builder.build();
+  }
+}
@@ -28,6 +28,8 @@ import com.github.steveash.jg2p.util.NestedLoopPairIterable;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.collect.Iterables.concat;
 import static com.google.common.collect.Iterables.transform;
@@ -42,8 +44,27 @@ public class Grams {
   public static final String EPSILON = "";
   private static final Splitter splitter = Splitter.on(CharMatcher.WHITESPACE).trimResults().omitEmptyStrings();
 
+  // bounds the intern pool so a long running process can't grow it forever
+  private static final int MAX_INTERNED_GRAMS = 1 << 18;
+  private static final ConcurrentMap<String, String> interned = new ConcurrentHashMap<>(1024);
+
   private Grams() { }
 
+  /**
+   * @return the shared instance of the given gram; once the pool is full new grams are just returned as is
+   */
+  public static String intern(String gram) {
+    String existing = interned.get(gram);
+    if (existing != null) {
+      return existing;
+    }
+    if (interned.size() >= MAX_INTERNED_GRAMS) {
+      return gram;
+    }
+    existing = interned.putIfAbsent(gram, gram);
+    return existing != null ? existing : gram;
+  }
+
   public static int countInGram(String gram) {
     if (isBlank(gram)) {
       return 0;
@@ -16,11 +16,19 @@
 
 package com.github.steveash.jg2p;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import com.github.steveash.jg2p.syllchain.ChainSyllabifierAdapter;
 import com.github.steveash.jg2p.syllchain.SyllChainModel;
 import com.github.steveash.jg2p.syllchain.Syllabifier;
+import com.github.steveash.jg2p.util.ModelReadWrite;
 import com.github.steveash.jg2p.util.ReadWrite;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
 /**
  * @author Steve Ash
  */
@@ -28,7 +36,7 @@ public class ModelFactory {
 
   public static PipelineEncoder createFromClasspath(String resourceName) {
     try {
-      PipelineModel model = ReadWrite.readFromClasspath(PipelineModel.class, resourceName);
+      PipelineModel model = ModelReadWrite.readPipelineFromClasspath(resourceName);
       model.makeSparse();
       return new PipelineEncoder(model);
     } catch (Exception e) {
@@ -37,6 +45,40 @@ public class ModelFactory {
     }
   }
 
+  /**
+   * Loads the pipeline model from a file; binary model files (see BinaryModelFormat) are memory mapped so once the
+   * file is in the page cache loading is mostly just decoding
+   */
+  public static PipelineEncoder createFromFile(File modelFile) {
+    try {
+      PipelineModel model = ModelReadWrite.readPipelineFrom(modelFile);
+      model.makeSparse();
+      return new PipelineEncoder(model);
+    } catch (Exception e) {
+      throw new ModelException("Problem loading the model from the file " + modelFile, e);
+    }
+  }
+
+  /**
+   * Starts loading the binary model file in the background, decoding its components in parallel on the given
+   * executor and skipping the training only aligner.  The future completes with the encoder once everything that
+   * inference needs is in memory, so callers can start up and only wait on it before taking traffic
+   */
+  public static ListenableFuture<PipelineEncoder> createFromFileAsync(File binaryModelFile, ExecutorService executor) {
+    try {
+      ListenableFuture<PipelineModel> model = ModelReadWrite.readBinaryAsync(binaryModelFile, false, executor);
+      return Futures.transform(model, new Function<PipelineModel, PipelineEncoder>() {
+        @Override
+        public PipelineEncoder apply(PipelineModel input) {
+          input.makeSparse();
+          return new PipelineEncoder(input);
+        }
+      });
+    } catch (Exception e) {
+      throw new ModelException("Problem loading the binary model from the file " + binaryModelFile, e);
+    }
+  }
+
   public static Syllabifier createSyllFromClasspath(String resourceName) {
     try {
       SyllChainModel model = ReadWrite.readFromClasspath(SyllChainModel.class, resourceName);
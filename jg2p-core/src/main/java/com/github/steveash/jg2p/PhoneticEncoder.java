@@ -19,6 +19,7 @@ package com.github.steveash.jg2p;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
@@ -120,6 +121,26 @@ public class PhoneticEncoder implements Serializable {
       return encoding;
     }
 
+    /**
+     * @return a copy of this encoding whose alignment, phones and graphones are immutable lists; changes to the
+     * copy's scalar fields (like rank) don't affect this one
+     */
+    public Encoding immutableCopy() {
+      Encoding copy = createEncoding(immutableOrNull(alignment), immutableOrNull(phones), immutableOrNull(graphones),
+                                     alignScore, tagScore, retagScore, wordSyllCount);
+      copy.isPostProcessed = this.isPostProcessed;
+      copy.rank = this.rank;
+      copy.alignRank = this.alignRank;
+      return copy;
+    }
+
+    private static List<String> immutableOrNull(List<String> list) {
+      if (list == null) {
+        return null;
+      }
+      return ImmutableList.copyOf(list);
+    }
+
     public double tagProbability() {
       return Math.exp(tagScore);
     }
@@ -16,11 +16,15 @@
 
 package com.github.steveash.jg2p;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import com.github.steveash.jg2p.abb.PatternFacade;
+import com.github.steveash.jg2p.lexicon.Lexicon;
 import com.github.steveash.jg2p.phoseq.Graphemes;
 import com.github.steveash.jg2p.rerank.RerankExample;
 import com.github.steveash.jg2p.rerank.RerankableEncoder;
@@ -28,6 +32,9 @@ import com.github.steveash.jg2p.rerank.RerankableResult;
 import com.github.steveash.jg2p.rerank.RerankerResult;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The encoder that uses the phoneticEncoder to produce a candidate list and then reranks it using the reranking
@@ -39,21 +46,44 @@ public class PipelineEncoder implements Encoder {
   private final PipelineModel model;
   private final RerankableEncoder rerankEncoder;
   private final boolean useRules;
+  private final Lexicon lexicon;
+  private final Function<Word, List<PhoneticEncoder.Encoding>> encodeFunc =
+      new Function<Word, List<PhoneticEncoder.Encoding>>() {
+        @Override
+        public List<PhoneticEncoder.Encoding> apply(Word input) {
+          return encode(input);
+        }
+      };
 
   public PipelineEncoder(PipelineModel model) {
     this(model, true);
   }
 
   public PipelineEncoder(PipelineModel model, boolean useRules) {
+    this(model, useRules, null);
+  }
+
+  /**
+   * @param lexicon if not null, then words that are in the lexicon get their known pronunciations back directly
+   *                and only the out of vocabulary words go through the models
+   */
+  public PipelineEncoder(PipelineModel model, boolean useRules, Lexicon lexicon) {
     this.model = model;
     this.useRules = useRules;
+    this.lexicon = lexicon;
     this.rerankEncoder = model.getRerankEncoder();
   }
 
   @Override
   public List<PhoneticEncoder.Encoding> encode(Word input) {
-    Optional<String> maybe = PatternFacade.maybeTranscode(input);
     Word xformedInput = Graphemes.xformForEval(input);
+    if (lexicon != null) {
+      List<Word> known = lexicon.lookup(xformedInput);
+      if (!known.isEmpty()) {
+        return makeLexiconResults(xformedInput, known);
+      }
+    }
+    Optional<String> maybe = PatternFacade.maybeTranscode(input);
     RerankableResult result = rerankEncoder.encode(xformedInput);
     List<RerankExample> rre = RerankExample.makeExamples(result, xformedInput, null);
     List<RerankerResult> reranked = model.getRerankerModel().probabilities(rre);
@@ -68,4 +98,46 @@ public class PipelineEncoder implements Encoder {
     }
     return finalResults;
   }
+
+  private static List<PhoneticEncoder.Encoding> makeLexiconResults(Word input, List<Word> prons) {
+    ImmutableList.Builder<PhoneticEncoder.Encoding> builder = ImmutableList.builder();
+    for (int i = 0; i < prons.size(); i++) {
+      PhoneticEncoder.Encoding encoding = PhoneticEncoder.Encoding.createEncoding(
+          input.getValue(), prons.get(i).getValue(), ImmutableList.<String>of(), 0, 0, 0, 0);
+      encoding.setRank(i);
+      builder.add(encoding);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the lexicon that is consulted before the models (and that has the hit/miss counts) or null if none
+   */
+  public Lexicon getLexicon() {
+    return lexicon;
+  }
+
+  /**
+   * Encodes all of the given words in parallel using a temporary pool with one thread per core.  The results are
+   * in the same order as the inputs. If you're calling this repeatedly then use the overload that takes an executor
+   */
+  public List<List<PhoneticEncoder.Encoding>> encodeAll(List<Word> inputs) {
+    int workers = Runtime.getRuntime().availableProcessors();
+    ListeningExecutorService service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(workers));
+    try {
+      return BatchEncoder.transformInOrder(inputs, encodeFunc, service, workers);
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(service, 60, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Encodes all of the given words on the given executor (which the caller is responsible for shutting down).  The
+   * results are in the same order as the inputs
+   * @param parallelism how many threads the executor will run concurrently
+   */
+  public List<List<PhoneticEncoder.Encoding>> encodeAll(List<Word> inputs, ExecutorService executor,
+                                                        int parallelism) {
+    return BatchEncoder.transformInOrder(inputs, encodeFunc, MoreExecutors.listeningDecorator(executor), parallelism);
+  }
 }
@@ -16,12 +16,15 @@
 
 package com.github.steveash.jg2p;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Adapter for the encoder that presents a simplified interface if you're just looking for the top encoding or a simple
@@ -46,6 +49,30 @@ public class SimpleEncoder {
     return results.get(0).getPhones();
   }
 
+  /**
+   * Encodes all of the words on the given executor and returns the best phones for each in the same order as the
+   * input words
+   * @param parallelism how many threads the executor will run concurrently
+   */
+  public List<List<String>> encodeBestAll(List<String> words, ExecutorService executor, int parallelism) {
+    List<Word> inputs = Lists.transform(words, new Function<String, Word>() {
+      @Override
+      public Word apply(String input) {
+        return Word.fromNormalString(input);
+      }
+    });
+    return BatchEncoder.transformInOrder(inputs, new Function<Word, List<String>>() {
+      @Override
+      public List<String> apply(Word input) {
+        List<? extends EncodingResult> results = encoder.encode(input);
+        if (results.isEmpty()) {
+          return ImmutableList.of();
+        }
+        return results.get(0).getPhones();
+      }
+    }, MoreExecutors.listeningDecorator(executor), parallelism);
+  }
+
   public String encodeBestAsSpaceString(String word) {
     return joiner.join(encodeBest(word));
   }
@@ -64,7 +64,6 @@ public class Word implements Iterable<String>, Comparable<Word> {
   }
 
   private final List<String> value;
-//  private final StringTable gramCache;
 
   public static void throwIfNotUnigram(List<String> grams) {
     boolean gotOne = false;
@@ -90,13 +89,6 @@ public class Word implements Iterable<String>, Comparable<Word> {
 
   protected Word(List<String> value) {
     this.value = value;
-    // cache the common grams len 1-2
-//    this.gramCache = new StringTable(value.size(), MAX_CACHED_GRAM_SIZE);
-//    for (int i = 0; i < value.size(); i++) {
-//      for (int j = 0; j < MAX_CACHED_GRAM_SIZE && (i + j) < value.size(); j++) {
-//        this.gramCache.set(i, j, gramRaw(i, j + 1).intern());
-//      }
-//    }
   }
 
   public String getAsSpaceString() {
@@ -108,9 +100,6 @@ public class Word implements Iterable<String>, Comparable<Word> {
   }
 
   public String gram(int index, int size) {
-//    if (size <= MAX_CACHED_GRAM_SIZE) {
-//      return gramCache.get(index, size - 1);
-//    }
     return gramRaw(index, size);
   }
 
@@ -43,48 +43,51 @@ public class AlignerInferencer {
   }
 
   public List<Alignment> bestGraphemes(Word x, int bestPathCount) {
-    PathXTable t = new PathXTable(x.unigramCount() + 1, bestPathCount);
-    t.offer(0, t.make(0, -1, -1));
+    GramTable g = GramTable.forCurrentThread();
+    g.init(x, opts.getMaxXGram());
+    KBestPathTable t = KBestPathTable.forCurrentThread();
+    t.init(x.unigramCount() + 1, 1, bestPathCount);
+    t.start(0);
 
     for (int xx = 1; xx < x.unigramCount() + 1; xx++) {
       for (int i = 1; (i <= opts.getMaxXGram()) && (xx - i >= 0); i++) {
-        String xGram = x.gram(xx - i, i);
+        String xGram = g.xGram(xx - i, i);
         double margX = margs.probX(xGram);
 
         double score = DoubleMath.log2(margX) * i;
-        t.extendPath(xx, xx - i, PathXTable.Entry.sample(score, i));
+        t.extendPath(xx, 0, xx - i, 0, score, i, 0);
       }
     }
 
-    return createAlignments(x, t, bestPathCount);
+    return createAlignments(x, g, t, bestPathCount);
   }
 
-  private List<Alignment> createAlignments(Word x, PathXTable t, int bestPathCount) {
+  private List<Alignment> createAlignments(Word x, GramTable g, KBestPathTable t, int bestPathCount) {
     List<Alignment> results = Lists.newArrayListWithCapacity(bestPathCount);
 
-    Iterable<PathXTable.Entry> lastEntries = t.get(x.unigramCount());
-
-    for (PathXTable.Entry lastEntry : lastEntries) {
-      if (lastEntry.score < ProbTable.minLogProb) {
+    int xSize = x.unigramCount();
+    for (int slot = 0; slot < t.pathCount(xSize, 0); slot++) {
+      if (t.score(xSize, 0, slot) < ProbTable.minLogProb) {
         continue;
       }
 
-      results.add(decodePathFrom(x, t, lastEntry));
+      results.add(decodePathFrom(x, g, t, slot));
     }
     Collections.sort(results, Ordering.natural().reverse());
     return results;
   }
 
-  private Alignment decodePathFrom(Word x, PathXTable t, PathXTable.Entry entry) {
+  private Alignment decodePathFrom(Word x, GramTable g, KBestPathTable t, int slot) {
     int xx = x.unigramCount();
-    Alignment a = new Alignment(x, entry.score);
+    Alignment a = new Alignment(x, t.score(xx, 0, slot));
 
     while (xx > 0) {
-      String xGram = x.gram(xx - entry.xBackRef, entry.xBackRef);
+      int xBackRef = t.xBackRef(xx, 0, slot);
+      String xGram = g.xGram(xx - xBackRef, xBackRef);
       a.append(xGram, "");
 
-      xx -= entry.xBackRef;
-      entry = t.get(xx, entry.pathBackRef);
+      slot = t.pathBackRef(xx, 0, slot);
+      xx -= xBackRef;
     }
     return a.finish();
   }
@@ -16,16 +16,19 @@
 
 package com.github.steveash.jg2p.align;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
-import com.github.steveash.jg2p.Word;
-import com.github.steveash.jg2p.util.DoubleTable;
+import com.github.steveash.jg2p.util.ModelReadWrite;
 import com.github.steveash.jg2p.util.ReadWrite;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -35,6 +38,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -65,6 +71,9 @@ public class AlignerTrainer {
   private final Set<Pair<String,String>> blocked;
   private final Penalizer penalizer;
   private ProbTable initFrom = null;
+  private final GramLattice.Builder latticeBuilder = new GramLattice.Builder();
+  private final List<GramLattice> lattices = Lists.newArrayList();
+  private EmWorkers shardWorkers = null;
 
   public AlignerTrainer(TrainOptions trainOpts) {
     this(trainOpts, null);
@@ -114,123 +123,356 @@ public class AlignerTrainer {
 //    }
 //  }
 
-  public AlignModel train(List<InputRecord> records) {
+  public AlignModel train(Iterable<InputRecord> records) {
     return train(records, new ProbTable());
   }
 
-  public AlignModel train(List<InputRecord> records, ProbTable labelledExamples) {
+  /**
+   * Trains the alignment model; the records are only iterated over once (to build the compact per record lattices
+   * that the EM rounds use) so this can be given a stream of records (see InputReader.stream) instead of a list
+   */
+  public AlignModel train(Iterable<InputRecord> records, ProbTable labelledExamples) {
     ListeningExecutorService service = listeningDecorator(newCachedThreadPool());
     try {
       this.labelledProbs = labelledExamples.makeNormalizedCopy();
       initCounts(records);
       maximization(); // this just initializes the probabilities for the first time
 
-      int iteration = 0;
-      boolean keepTraining = true;
-      log.info("Starting EM rounds...");
-      while (keepTraining) {
-        iteration += 1;
-
-        expectation(records, service);
-        double thisChange = maximization();
+      runEmRounds(service, trainOpts.trainingAlignerMaxIterations, null, 0);
+      return new AlignModel(gramOpts, probs);
+    } finally {
+      // the lattices are only needed during training and can be big
+      lattices.clear();
+      latticeBuilder.clear();
+      MoreExecutors.shutdownAndAwaitTermination(service, 60, TimeUnit.SECONDS);
+    }
+  }
 
-        keepTraining = !hasConverged(thisChange, iteration);
-        log.info("Completed EM round " + iteration + " mass delta " + String.format("%.15f", thisChange));
+  /**
+   * Refreshes an existing alignment model with new records without retraining on the whole corpus.  This runs
+   * stepwise (online) EM over just the new records: the sufficient statistics start as the existing model's
+   * (normalized) probabilities and each round they're interpolated with the normalized expected counts from the new
+   * records as stats = (1 - step) * stats + step * newCounts, where step = scale * (round + 1)^-alpha so the prior
+   * decays slowly as the rounds go on.  The scale is newRecords / (newRecords + incrementalPriorRecords) so a few
+   * thousand new records only nudge a model trained on a full dictionary.  The new records are initialized from
+   * the existing probabilities (see setInitFrom) and transitions the existing model has never seen start with the
+   * smallest existing probability.
+   * <p>
+   * The stats are mixed as one joint table so this only supports the JOINT maximizer; the conditional maximizers'
+   * probabilities aren't a joint distribution
+   */
+  public AlignModel trainIncremental(AlignModel existing, Iterable<InputRecord> newRecords) {
+    Preconditions.checkArgument(trainOpts.incrementalStepAlpha > 0.5 && trainOpts.incrementalStepAlpha <= 1.0,
+                                "step alpha must be in (0.5, 1]");
+    Preconditions.checkArgument(trainOpts.incrementalPriorRecords >= 0, "incrementalPriorRecords must be non-negative");
+    Preconditions.checkArgument(trainOpts.trainingAlignerMaximizer == Maximizer.JOINT,
+                                "incremental training only supports the JOINT maximizer");
+    ListeningExecutorService service = listeningDecorator(newCachedThreadPool());
+    try {
+      // copy it first as the existing model might be sharing our probs table (from a previous train call)
+      ProbTable prior = new ProbTable((int) existing.getTransitions().entryCount());
+      ProbTable.mergeAll(Collections.singletonList(existing.getTransitions()), prior);
+      setInitFrom(prior);
+      this.labelledProbs = new ProbTable();
+      initCounts(newRecords);
+
+      probs.clear();
+      ProbTable.mergeAll(Collections.singletonList(prior), probs);
+      // transitions that the existing model never saw would have no mass at all so start them as the rarest one
+      double minPrior = Double.POSITIVE_INFINITY;
+      for (Table.Cell<String, String, Double> cell : prior) {
+        if (cell.getValue() > 0 && cell.getValue() < minPrior) {
+          minPrior = cell.getValue();
+        }
+      }
+      for (Table.Cell<String, String, Double> cell : counts) {
+        if (prior.prob(cell.getRowKey(), cell.getColumnKey()) <= 0 && minPrior < Double.POSITIVE_INFINITY) {
+          probs.setProb(cell.getRowKey(), cell.getColumnKey(), minPrior);
+        }
       }
-      log.info("Training complete in " + iteration + " rounds!");
+      counts.clear();
+      ProbTable stats = prior.makeNormalizedCopy();
+      double stepScale = ((double) lattices.size()) / ((double) lattices.size() + trainOpts.incrementalPriorRecords);
+      log.info("Incrementally training with " + lattices.size() + " new records and step scale " + stepScale);
+      runEmRounds(service, trainOpts.incrementalAlignerIterations, stats, stepScale);
       return new AlignModel(gramOpts, probs);
     } finally {
+      lattices.clear();
+      latticeBuilder.clear();
       MoreExecutors.shutdownAndAwaitTermination(service, 60, TimeUnit.SECONDS);
     }
   }
 
-  private boolean hasConverged(double thisChange, int iteration) {
+  /**
+   * Prepares this trainer to be one shard of a multi-process training run (see ShardedAlignerTrainer); this builds
+   * the lattices for every shardCount'th record starting at the shard'th one.  The initial counts for the shard are
+   * left in shardCounts() for the coordinator to merge
+   */
+  void prepareShard(Iterable<InputRecord> records, int shard, int shardCount) {
+    Preconditions.checkArgument(shard >= 0 && shard < shardCount, "shard must be in [0, shardCount)");
+    this.labelledProbs = new ProbTable();
+    initCounts(shardOf(records, shard, shardCount));
+    this.shardWorkers = makeWorkers();
+    log.info("Shard " + shard + " of " + shardCount + " has " + lattices.size() + " records");
+  }
+
+  /**
+   * @return the counts that the coordinator needs from this shard: after prepareShard these are the initial counts
+   * and after shardExpectation these are the expected counts for the round
+   */
+  ProbTable shardCounts() {
+    return counts;
+  }
+
+  /**
+   * @return the transitions that this shard saw but that aren't in the allowed file (empty if there isn't one); the
+   * coordinator needs all of these to smooth the counts the same way that the single process trainer does
+   */
+  Set<Pair<String, String>> shardBlocked() {
+    if (blocked == null) {
+      return Collections.emptySet();
+    }
+    return blocked;
+  }
+
+  /**
+   * Runs the expectation step for this shard's records using the given probabilities (from the coordinator); the
+   * expected counts are left in shardCounts()
+   */
+  void shardExpectation(ProbTable currentProbs, ListeningExecutorService service) {
+    Preconditions.checkState(shardWorkers != null, "must prepare the shard first");
+    probs.clear();
+    ProbTable.mergeAll(Collections.singletonList(currentProbs), probs);
+    counts.clear();
+    expectation(shardWorkers.partitions, shardWorkers.accumulators, service);
+  }
+
+  /**
+   * Runs the maximization step over the merged counts of every shard (on the coordinator)
+   * @return the change in probability mass from the last round
+   */
+  double maximizeShards(ProbTable mergedCounts, Set<Pair<String, String>> mergedBlocked) {
+    if (labelledProbs == null) {
+      this.labelledProbs = new ProbTable();
+    }
+    if (blocked != null) {
+      blocked.addAll(mergedBlocked);
+    }
+    counts.clear();
+    ProbTable.mergeAll(Collections.singletonList(mergedCounts), counts);
+    return maximization();
+  }
+
+  ProbTable currentProbs() {
+    return probs;
+  }
+
+  private static Iterable<InputRecord> shardOf(final Iterable<InputRecord> records, final int shard,
+                                               final int shardCount) {
+    return new Iterable<InputRecord>() {
+      @Override
+      public Iterator<InputRecord> iterator() {
+        final Iterator<InputRecord> delegate = records.iterator();
+        return new AbstractIterator<InputRecord>() {
+          private int index = -1;
+
+          @Override
+          protected InputRecord computeNext() {
+            while (delegate.hasNext()) {
+              InputRecord next = delegate.next();
+              index += 1;
+              if (index % shardCount == shard) {
+                return next;
+              }
+            }
+            return endOfData();
+          }
+        };
+      }
+    };
+  }
+
+  // the partitions and their count accumulators are reused for every round
+  private EmWorkers makeWorkers() {
+    int workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), lattices.size()));
+    long[] costs = new long[lattices.size()];
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = lattices.get(i).nodeCount() + lattices.get(i).edgeCount();
+    }
+    List<List<GramLattice>> partitions = partitionByCost(lattices, costs, workerCount);
+    List<double[]> accumulators = Lists.newArrayListWithCapacity(partitions.size());
+    for (int i = 0; i < partitions.size(); i++) {
+      accumulators.add(new double[latticeBuilder.transitionCount()]);
+    }
+    return new EmWorkers(partitions, accumulators);
+  }
+
+  private static class EmWorkers {
+    private final List<List<GramLattice>> partitions;
+    private final List<double[]> accumulators;
+
+    private EmWorkers(List<List<GramLattice>> partitions, List<double[]> accumulators) {
+      this.partitions = partitions;
+      this.accumulators = accumulators;
+    }
+  }
+
+  // runs the EM rounds over the lattices; if stepwiseStats is not null then this is doing stepwise EM
+  private void runEmRounds(ListeningExecutorService service, int maxIterations, ProbTable stepwiseStats,
+                           double stepScale) {
+    EmWorkers workers = makeWorkers();
+    int iteration = 0;
+    boolean keepTraining = true;
+    log.info("Starting EM rounds with " + workers.partitions.size() + " workers...");
+    Stopwatch total = Stopwatch.createStarted();
+    while (keepTraining) {
+      iteration += 1;
+      Stopwatch round = Stopwatch.createStarted();
+
+      expectation(workers.partitions, workers.accumulators, service);
+      if (stepwiseStats != null) {
+        stepwiseUpdate(stepwiseStats, stepScale * Math.pow(iteration + 1, -trainOpts.incrementalStepAlpha));
+      }
+      double thisChange = maximization();
+
+      keepTraining = !hasConverged(thisChange, iteration, maxIterations);
+      log.info("Completed EM round " + iteration + " mass delta " + String.format("%.15f", thisChange) +
+               " in " + round.stop());
+    }
+    log.info("Training complete in " + iteration + " rounds and " + total.stop() + "!");
+  }
+
+  // interpolates the expected counts in to the running stats and then makes the stats the counts to maximize
+  private void stepwiseUpdate(ProbTable stats, double step) {
+    ProbTable fresh = counts.makeNormalizedCopy();
+    ProbTable mixed = new ProbTable((int) stats.entryCount());
+    for (Table.Cell<String, String, Double> cell : stats) {
+      mixed.setProb(cell.getRowKey(), cell.getColumnKey(), (1.0 - step) * cell.getValue());
+    }
+    for (Table.Cell<String, String, Double> cell : fresh) {
+      mixed.addProb(cell.getRowKey(), cell.getColumnKey(), step * cell.getValue());
+    }
+    stats.clear();
+    ProbTable.mergeAll(Collections.singletonList(mixed), stats);
+    counts.clear();
+    ProbTable.mergeAll(Collections.singletonList(stats), counts);
+  }
+
+  /**
+   * Splits the items in to (at most) partitionCount contiguous partitions that have roughly the same total cost (like
+   * the size of each record's alignment lattice which is proportional to its expectation work)
+   */
+  static <T> List<List<T>> partitionByCost(List<T> items, long[] costs, int partitionCount) {
+    long[] cumulative = new long[items.size()];
+    long total = 0;
+    for (int i = 0; i < items.size(); i++) {
+      total += costs[i];
+      cumulative[i] = total;
+    }
+    List<List<T>> partitions = Lists.newArrayListWithCapacity(partitionCount);
+    int start = 0;
+    for (int p = 1; p <= partitionCount && start < items.size(); p++) {
+      long target = (total * p) / partitionCount;
+      int end = start + 1; // every partition gets at least one item
+      while (end < items.size() && cumulative[end - 1] < target) {
+        end += 1;
+      }
+      if (p == partitionCount) {
+        end = items.size();
+      }
+      partitions.add(items.subList(start, end));
+      start = end;
+    }
+    return partitions;
+  }
+
+  boolean hasConverged(double thisChange, int iteration, int maxIterations) {
     if (thisChange < trainOpts.probDeltaConvergenceThreshold) {
       log.info("EM only had a mass shift by " + thisChange + " training is complete.");
       return true;
     }
-    if (iteration >= trainOpts.trainingAlignerMaxIterations) {
+    if (iteration >= maxIterations) {
       return true;
     }
     return false;
   }
 
-  private void expectation(List<InputRecord> records, ListeningExecutorService service) {
-    int workerCount = Runtime.getRuntime().availableProcessors();
-    List<ListenableFuture<ProbTable>> consumers = Lists.newArrayList();
-    for (List<InputRecord> partition : Lists.partition(records, workerCount)) {
-      consumers.add(service.submit(makeConsumer(partition)));
+  private void expectation(List<List<GramLattice>> partitions, List<double[]> accumulators,
+                           ListeningExecutorService service) {
+    // the penalized probabilities don't change during the round so just calculate them once for each transition
+    final double[] transitionProbs = new double[latticeBuilder.transitionCount()];
+    for (int i = 0; i < transitionProbs.length; i++) {
+      String xGram = latticeBuilder.xGram(i);
+      String yGram = latticeBuilder.yGram(i);
+      transitionProbs[i] = penalize(xGram, yGram, probs.prob(xGram, yGram));
+    }
+
+    List<ListenableFuture<double[]>> consumers = Lists.newArrayListWithCapacity(partitions.size());
+    for (int i = 0; i < partitions.size(); i++) {
+      consumers.add(service.submit(makeConsumer(partitions.get(i), transitionProbs, accumulators.get(i))));
     }
     try {
-      List<ProbTable> results = Futures.allAsList(consumers).get();
-      ProbTable.mergeAll(results, counts);
+      List<double[]> results = Futures.allAsList(consumers).get();
+      for (double[] merged : mergeTree(results, service)) {
+        for (int i = 0; i < merged.length; i++) {
+          if (merged[i] != 0) {
+            counts.addProb(latticeBuilder.xGram(i), latticeBuilder.yGram(i), merged[i]);
+          }
+        }
+      }
     } catch (Exception e) {
       throw Throwables.propagate(e);
     }
   }
 
-  private Callable<ProbTable> makeConsumer(final List<InputRecord> partition) {
-    return new Callable<ProbTable>() {
-      @Override
-      public ProbTable call() throws Exception {
-        ProbTable counts = new ProbTable();
-        for (InputRecord inputRecord : partition) {
-          expectationForRecord(inputRecord, counts);
+  // merges pairs of count arrays in parallel until there is only one left; this merges in to the given arrays
+  private static List<double[]> mergeTree(List<double[]> counts, ListeningExecutorService service)
+      throws Exception {
+    List<double[]> level = counts;
+    while (level.size() > 1) {
+      List<ListenableFuture<double[]>> next = Lists.newArrayListWithCapacity((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        if (i + 1 < level.size()) {
+          next.add(service.submit(makeMerger(level.get(i + 1), level.get(i))));
+        } else {
+          next.add(Futures.immediateFuture(level.get(i)));
         }
-        return counts;
       }
-    };
-  }
-
-  private void expectationForRecord(InputRecord record, final ProbTable outCounts) {
-    Word x = record.xWord;
-    Word y = record.yWord;
-    int xsize = x.unigramCount();
-    int ysize = y.unigramCount();
-    final DoubleTable alpha = new DoubleTable(xsize + 1, ysize + 1);
-    final DoubleTable beta = new DoubleTable(xsize + 1, ysize + 1);
-
-    forward(x, y, alpha);
-    backward(x, y, beta);
-
-    final double alphaXy = alpha.get(xsize, ysize);
-    if (alphaXy == 0) {
-      return;
+      level = Futures.allAsList(next).get();
     }
-
-    walker.forward(x, y, new XyWalker.Visitor() {
-      @Override
-      public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
-        double prob = alpha.get(xxBefore, yyBefore) *
-                      penalize(xGram, yGram, probs.prob(xGram, yGram)) *
-                      beta.get(xxAfter, yyAfter) /
-                      alphaXy;
-
-        outCounts.addProb(xGram, yGram, prob);
-      }
-    });
+    return level;
   }
 
-  private void backward(Word x, Word y, final DoubleTable beta) {
-    beta.put(x.unigramCount(), y.unigramCount(), 1.0);
-    walker.backward(x, y, new XyWalker.Visitor() {
+  private static Callable<double[]> makeMerger(final double[] source, final double[] sink) {
+    return new Callable<double[]>() {
       @Override
-      public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
-        double newBeta = penalize(xGram, yGram, probs.prob(xGram, yGram)) * beta.get(xxAfter, yyAfter);
-        beta.add(xxBefore, yyBefore, newBeta);
+      public double[] call() throws Exception {
+        for (int i = 0; i < source.length; i++) {
+          sink[i] += source[i];
+        }
+        return sink;
       }
-    });
+    };
   }
 
-  private void forward(Word x, Word y, final DoubleTable alpha) {
-    alpha.put(0, 0, 1.0);
-    walker.forward(x, y, new XyWalker.Visitor() {
+  private static Callable<double[]> makeConsumer(final List<GramLattice> partition, final double[] transitionProbs,
+                                                 final double[] counts) {
+    return new Callable<double[]>() {
       @Override
-      public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
-        double newAlpha = penalize(xGram, yGram, probs.prob(xGram, yGram)) * alpha.get(xxBefore, yyBefore);
-        alpha.add(xxAfter, yyAfter, newAlpha);
+      public double[] call() throws Exception {
+        Arrays.fill(counts, 0.0);
+        int maxNodes = 0;
+        for (GramLattice lattice : partition) {
+          maxNodes = Math.max(maxNodes, lattice.nodeCount());
+        }
+        double[] alpha = new double[maxNodes];
+        double[] beta = new double[maxNodes];
+        for (GramLattice lattice : partition) {
+          lattice.expectation(transitionProbs, alpha, beta, counts);
+        }
+        return counts;
       }
-    });
+    };
   }
 
   private double penalize(String xGram, String yGram, double prob) {
@@ -292,14 +534,19 @@ public class AlignerTrainer {
     return min;
   }
 
-  private void initCounts(List<InputRecord> records) {
+  private void initCounts(Iterable<InputRecord> records) {
     // we init counts for any allowed transitions and collect all of the transitions that we block
+    // this is also where we build the lattice for each record that the expectation rounds use
     counts.clear();
     originalCounts.clear();
+    latticeBuilder.clear();
+    lattices.clear();
     for (InputRecord record : records) {
+      latticeBuilder.start(record.getLeft(), record.getRight());
       walker.forward(record.getLeft(), record.getRight(), new XyWalker.Visitor() {
         @Override
         public void visit(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
+          latticeBuilder.addEdge(xxBefore, xxAfter, xGram, yyBefore, yyAfter, yGram);
 
           double initValue = 1.0;
           if (initFrom != null) {
@@ -321,6 +568,7 @@ public class AlignerTrainer {
           }
         }
       });
+      lattices.add(latticeBuilder.finish());
     }
   }
 
@@ -347,12 +595,19 @@ public class AlignerTrainer {
     TrainOptions opts = parseArgs(args);
     AlignerTrainer trainer = new AlignerTrainer(opts);
 
-    log.info("Reading input training records...");
+    log.info("Streaming input training records...");
     InputReader reader = opts.makeReader();
-    List<InputRecord> inputRecords = reader.readFromFile(opts.trainingFile);
+    Iterable<InputRecord> inputRecords = reader.streamFromFile(opts.trainingFile);
 
-    log.info("Training the probabilistic model...");
-    AlignModel model = trainer.train(inputRecords);
+    AlignModel model;
+    if (opts.incrementalAligner) {
+      log.info("Incrementally training the model from " + opts.initTrainingAlignerFromFile + "...");
+      AlignModel existing = ModelReadWrite.readTrainAlignerFrom(opts.initTrainingAlignerFromFile);
+      model = trainer.trainIncremental(existing, inputRecords);
+    } else {
+      log.info("Training the probabilistic model...");
+      model = trainer.train(inputRecords);
+    }
 
     log.info("Writing model to " + opts.outputFile + "...");
     ReadWrite.writeTo(model, opts.outputFile);
@@ -45,72 +45,78 @@ public class AlignerViterbi {
   private final Penalizer penalizer;
 
   public List<Alignment> align(Word x, Word y, int bestPathCount) {
-    PathXYTable t = new PathXYTable(x.unigramCount() + 1, y.unigramCount() + 1, bestPathCount);
-    t.offer(0, 0, t.make(0, -1, -1, -1));
+    // we ask for the same grams for every cell
+    GramTable g = GramTable.forCurrentThread();
+    g.init(x, opts.getMaxXGram(), y, opts.getMaxYGram());
+    KBestPathTable t = KBestPathTable.forCurrentThread();
+    t.init(x.unigramCount() + 1, y.unigramCount() + 1, bestPathCount);
+    t.start(0);
 
     for (int xx = 0; xx < x.unigramCount() + 1; xx++) {
       for (int yy = 0; yy < y.unigramCount() + 1; yy++) {
 
         if (xx > 0 && opts.isIncludeXEpsilons()) {
           for (int i = 1; (i <= opts.getMaxXGram()) && (xx - i >= 0); i++) {
-            String xGram = x.gram(xx - i, i);
+            String xGram = g.xGram(xx - i, i);
             double score = DoubleMath.log2(penalizer.penalize(xGram, Grams.EPSILON, probs.prob(xGram, Grams.EPSILON))); // what was this * i business
-            t.extendPath(xx, yy, xx - i, yy, PathXYTable.Entry.sample(score, i, 0));
+            t.extendPath(xx, yy, xx - i, yy, score, i, 0);
           }
         }
 
         if (yy > 0 && opts.isIncludeEpsilonYs()) {
           for (int j = 1; (j <= opts.getMaxYGram()) && (yy - j >= 0); j++) {
-            String yGram = y.gram(yy - j, j);
+            String yGram = g.yGram(yy - j, j);
             double score = DoubleMath.log2(penalizer.penalize(Grams.EPSILON, yGram, probs.prob(Grams.EPSILON, yGram))); // * j;
-            t.extendPath(xx, yy, xx, yy - j, PathXYTable.Entry.sample(score, 0, j));
+            t.extendPath(xx, yy, xx, yy - j, score, 0, j);
           }
         }
 
         if (xx > 0 && yy > 0) {
           for (int i = 1; (i <= opts.getMaxXGram()) && (xx - i >= 0); i++) {
             for (int j = 1; (j <= opts.getMaxYGram()) && (yy - j >= 0); j++) {
-              String xGram = x.gram(xx - i, i);
-              String yGram = y.gram(yy - j, j);
+              String xGram = g.xGram(xx - i, i);
+              String yGram = g.yGram(yy - j, j);
 
               double score = DoubleMath.log2(penalizer.penalize(xGram, yGram, probs.prob(xGram, yGram))); // * Math.max(i, j);
-              t.extendPath(xx, yy, xx - i, yy - j, PathXYTable.Entry.sample(score, i, j));
+              t.extendPath(xx, yy, xx - i, yy - j, score, i, j);
             }
           }
         }
       }
     }
 
-    return createAlignments(x, y, t, bestPathCount);
+    return createAlignments(x, y, g, t, bestPathCount);
   }
 
-  private List<Alignment> createAlignments(Word x, Word y, PathXYTable t, int bestPathCount) {
+  private List<Alignment> createAlignments(Word x, Word y, GramTable g, KBestPathTable t, int bestPathCount) {
     List<Alignment> results = Lists.newArrayListWithCapacity(bestPathCount);
 
-    Iterable<PathXYTable.Entry> lastEntries = t.get(x.unigramCount(), y.unigramCount());
+    int xSize = x.unigramCount();
+    int ySize = y.unigramCount();
+    for (int slot = 0; slot < t.pathCount(xSize, ySize); slot++) {
+      if (t.score(xSize, ySize, slot) < ProbTable.minLogProb) continue;
 
-    for (PathXYTable.Entry lastEntry : lastEntries) {
-      if (lastEntry.score < ProbTable.minLogProb) continue;
-
-      results.add(decodePathFrom(x, y, t, lastEntry));
+      results.add(decodePathFrom(x, y, g, t, slot));
     }
     Collections.sort(results, Ordering.natural().reverse());
     return results;
   }
 
-  private Alignment decodePathFrom(Word x, Word y, PathXYTable t, PathXYTable.Entry entry) {
+  private Alignment decodePathFrom(Word x, Word y, GramTable g, KBestPathTable t, int slot) {
     int xx = x.unigramCount();
     int yy = y.unigramCount();
-    Alignment a = new Alignment(x, entry.score);
+    Alignment a = new Alignment(x, t.score(xx, yy, slot));
 
     while (xx > 0 || yy > 0) {
-      String xGram = x.gram(xx - entry.xBackRef, entry.xBackRef);
-      String yGram = y.gram(yy - entry.yBackRef, entry.yBackRef);
+      int xBackRef = t.xBackRef(xx, yy, slot);
+      int yBackRef = t.yBackRef(xx, yy, slot);
+      String xGram = g.xGram(xx - xBackRef, xBackRef);
+      String yGram = g.yGram(yy - yBackRef, yBackRef);
       a.append(xGram, yGram);
 
-      xx -= entry.xBackRef;
-      yy -= entry.yBackRef;
-      entry = t.get(xx, yy, entry.pathBackRef);
+      slot = t.pathBackRef(xx, yy, slot);
+      xx -= xBackRef;
+      yy -= yBackRef;
     }
     Alignment finish = a.finish();
     if (y instanceof SWord) {
@@ -118,6 +124,4 @@ public class AlignerViterbi {
     }
     return finish;
   }
-
-
 }
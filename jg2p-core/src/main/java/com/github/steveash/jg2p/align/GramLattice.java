@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
+
+import com.github.steveash.jg2p.Word;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The alignment lattice of one training record: the edges that the XyWalker visits for the record's x,y pair where
+ * each edge is just the lattice nodes it connects and the id of its (xGram, yGram) transition.  The lattice of a
+ * record never changes between EM rounds so the trainer builds these once and then runs every forward/backward pass
+ * over the int arrays instead of re-walking (and re-building the gram strings for) each record.
+ * <p>
+ * The node for cursor (xx, yy) is xx * (ysize + 1) + yy so the start node is 0 and the final node is the last one.
+ * The edges are kept in the order that the walker visits them going forward, which is a topological order (each
+ * edge comes after every edge in to its source) and so reversing it is the order for the backward pass. Most records
+ * with the same x and y lengths have exactly the same edges (just different transitions) so that structure is
+ * shared between lattices; only the transition ids are per record.
+ *
+ * @author Steve Ash
+ */
+final class GramLattice {
+
+  private final Shape shape;
+  private final int[] transitions;
+
+  private GramLattice(Shape shape, int[] transitions) {
+    this.shape = shape;
+    this.transitions = transitions;
+  }
+
+  public int nodeCount() {
+    return shape.nodeCount;
+  }
+
+  public int edgeCount() {
+    return transitions.length;
+  }
+
+  /**
+   * Runs forward-backward over this lattice using the given (already penalized) probability for each transition
+   * id and adds the expected count of each transition to outCounts.  alpha and beta are scratch space that must
+   * have at least nodeCount() entries
+   */
+  public void expectation(double[] transitionProbs, double[] alpha, double[] beta, double[] outCounts) {
+    int[] edges = shape.edges;
+    int last = shape.nodeCount - 1;
+    Arrays.fill(alpha, 0, shape.nodeCount, 0.0);
+    Arrays.fill(beta, 0, shape.nodeCount, 0.0);
+
+    alpha[0] = 1.0;
+    for (int e = 0; e < transitions.length; e++) {
+      alpha[edges[e * 2 + 1]] += transitionProbs[transitions[e]] * alpha[edges[e * 2]];
+    }
+    double alphaXy = alpha[last];
+    if (alphaXy == 0) {
+      return;
+    }
+
+    beta[last] = 1.0;
+    for (int e = transitions.length - 1; e >= 0; e--) {
+      beta[edges[e * 2]] += transitionProbs[transitions[e]] * beta[edges[e * 2 + 1]];
+    }
+
+    for (int e = 0; e < transitions.length; e++) {
+      int t = transitions[e];
+      outCounts[t] += alpha[edges[e * 2]] * transitionProbs[t] * beta[edges[e * 2 + 1]] / alphaXy;
+    }
+  }
+
+  /**
+   * Builds the lattices for a training set; interns the (xGram, yGram) transitions to ids and shares the edge
+   * structure between lattices that have the same one. Not thread safe
+   */
+  static final class Builder {
+
+    private final ObjectIntOpenHashMap<Pair<String, String>> transitionIds = ObjectIntOpenHashMap.newInstance();
+    private final List<String> xGrams = Lists.newArrayList();
+    private final List<String> yGrams = Lists.newArrayList();
+    private final Map<Shape, Shape> shapes = Maps.newHashMap();
+    private final IntArrayList edges = new IntArrayList();
+    private final IntArrayList transitions = new IntArrayList();
+    private int ySize;
+    private int nodeCount;
+
+    public void start(Word x, Word y) {
+      edges.clear();
+      transitions.clear();
+      ySize = y.unigramCount();
+      nodeCount = (x.unigramCount() + 1) * (ySize + 1);
+    }
+
+    public void addEdge(int xxBefore, int xxAfter, String xGram, int yyBefore, int yyAfter, String yGram) {
+      edges.add(xxBefore * (ySize + 1) + yyBefore);
+      edges.add(xxAfter * (ySize + 1) + yyAfter);
+      transitions.add(internTransition(xGram, yGram));
+    }
+
+    public GramLattice finish() {
+      Shape shape = new Shape(nodeCount, edges.toArray());
+      Shape existing = shapes.get(shape);
+      if (existing == null) {
+        shapes.put(shape, shape);
+        existing = shape;
+      }
+      return new GramLattice(existing, transitions.toArray());
+    }
+
+    public int transitionCount() {
+      return xGrams.size();
+    }
+
+    public String xGram(int transition) {
+      return xGrams.get(transition);
+    }
+
+    public String yGram(int transition) {
+      return yGrams.get(transition);
+    }
+
+    public void clear() {
+      transitionIds.clear();
+      xGrams.clear();
+      yGrams.clear();
+      shapes.clear();
+    }
+
+    private int internTransition(String xGram, String yGram) {
+      Pair<String, String> key = Pair.of(xGram, yGram);
+      int id = transitionIds.getOrDefault(key, -1);
+      if (id < 0) {
+        id = xGrams.size();
+        transitionIds.put(key, id);
+        xGrams.add(xGram);
+        yGrams.add(yGram);
+      }
+      return id;
+    }
+  }
+
+  // the edges are (from node, to node) pairs
+  private static final class Shape {
+    private final int nodeCount;
+    private final int[] edges;
+    private final int hash;
+
+    private Shape(int nodeCount, int[] edges) {
+      this.nodeCount = nodeCount;
+      this.edges = edges;
+      this.hash = 31 * nodeCount + Arrays.hashCode(edges);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Shape)) {
+        return false;
+      }
+      Shape that = (Shape) o;
+      return nodeCount == that.nodeCount && Arrays.equals(edges, that.edges);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.github.steveash.jg2p.Grams;
+import com.github.steveash.jg2p.Word;
+
+import java.util.Arrays;
+
+/**
+ * The grams of the x (and y) word of one alignment decode.  The decoders ask for the same few spans for every
+ * lattice cell so each gram is built the first time that it's asked for (and interned via Grams.intern so the same
+ * gram from different words is the same instance) and then later requests for the same span just return it.  The
+ * cache lives here and not on the Words themselves so that the training records don't carry it around after they're
+ * aligned.  The arrays grow to fit the largest word seen and are then reused, so an instance is NOT thread safe.  Use
+ * forCurrentThread() to get the one owned by the calling thread.
+ *
+ * @author Steve Ash
+ */
+public class GramTable {
+
+  private static final ThreadLocal<GramTable> perThread = new ThreadLocal<GramTable>() {
+    @Override
+    protected GramTable initialValue() {
+      return new GramTable();
+    }
+  };
+
+  /**
+   * @return the table owned by the calling thread; it is only valid until this thread inits it again
+   */
+  public static GramTable forCurrentThread() {
+    return perThread.get();
+  }
+
+  private final WordGrams x = new WordGrams();
+  private final WordGrams y = new WordGrams();
+
+  /**
+   * Clears the table for decoding x with grams up to maxXGram long (and no y)
+   */
+  public void init(Word x, int maxXGram) {
+    this.x.init(x, maxXGram);
+    this.y.init(null, 0);
+  }
+
+  /**
+   * Clears the table for aligning x (with grams up to maxXGram long) to y (with grams up to maxYGram long)
+   */
+  public void init(Word x, int maxXGram, Word y, int maxYGram) {
+    this.x.init(x, maxXGram);
+    this.y.init(y, maxYGram);
+  }
+
+  public String xGram(int index, int size) {
+    return x.gram(index, size);
+  }
+
+  public String yGram(int index, int size) {
+    return y.gram(index, size);
+  }
+
+  private static final class WordGrams {
+
+    private Word word;
+    private int maxGram;
+    // indexed by index * maxGram + size - 1
+    private String[] grams = new String[0];
+
+    private void init(Word word, int maxGram) {
+      this.word = word;
+      this.maxGram = maxGram;
+      int slots = (word != null ? word.unigramCount() * maxGram : 0);
+      if (grams.length < slots) {
+        grams = new String[slots];
+      } else {
+        Arrays.fill(grams, 0, slots, null);
+      }
+    }
+
+    private String gram(int index, int size) {
+      if (size > maxGram || size <= 0) {
+        return word.gram(index, size);
+      }
+      int slot = (index * maxGram) + size - 1;
+      String gram = grams[slot];
+      if (gram == null) {
+        gram = Grams.intern(word.gram(index, size));
+        grams[slot] = gram;
+      }
+      return gram;
+    }
+  }
+}
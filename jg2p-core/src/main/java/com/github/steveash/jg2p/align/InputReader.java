@@ -19,6 +19,8 @@ package com.github.steveash.jg2p.align;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharSource;
 import com.google.common.io.Files;
@@ -31,6 +33,8 @@ import com.github.steveash.jg2p.syll.SWord;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
@@ -40,7 +44,6 @@ import java.util.regex.Pattern;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
-import static sun.management.snmp.jvminstr.JvmThreadInstanceEntryImpl.ThreadStateMap.Byte1.other;
 
 /**
  * @author Steve Ash
@@ -93,14 +96,7 @@ public class InputReader {
 
       @Override
       public boolean processLine(String line) throws IOException {
-        if (isBlank(line)) {
-          return true;
-        }
-        if (isComment(line)) {
-          return true;
-        }
-
-        InputRecord maybe = reader.parse(line);
+        InputRecord maybe = parseLine(line);
         if (maybe != null) {
           recs.add(maybe);
         }
@@ -114,6 +110,79 @@ public class InputReader {
     });
   }
 
+  public Iterable<InputRecord> streamFromClasspath(String resource) {
+    return stream(Resources.asCharSource(Resources.getResource(resource), Charsets.UTF_8));
+  }
+
+  public Iterable<InputRecord> streamFromFile(File input) {
+    return stream(Files.asCharSource(input, Charsets.UTF_8));
+  }
+
+  /**
+   * Returns the records of the source without reading them all in to memory; each call to iterator() opens the
+   * source again and parses it one line at a time, so this can be iterated over as many times as a training stage
+   * needs (i.e. a pass per EM round) but only ever holds the current record. The iterators close the underlying
+   * reader when they're exhausted; if you stop early then close it yourself via the RecordIterator. IO problems
+   * while iterating are rethrown as unchecked exceptions.
+   */
+  public Iterable<InputRecord> stream(final CharSource source) {
+    return new Iterable<InputRecord>() {
+      @Override
+      public RecordIterator iterator() {
+        try {
+          return new RecordIterator(source.openBufferedStream());
+        } catch (IOException e) {
+          throw Throwables.propagate(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Iterator over the records of a streamed source
+   */
+  public class RecordIterator extends AbstractIterator<InputRecord> implements Closeable {
+
+    private final BufferedReader lines;
+
+    private RecordIterator(BufferedReader lines) {
+      this.lines = lines;
+    }
+
+    @Override
+    protected InputRecord computeNext() {
+      try {
+        String line;
+        while ((line = lines.readLine()) != null) {
+          InputRecord maybe = parseLine(line);
+          if (maybe != null) {
+            return maybe;
+          }
+        }
+        close();
+        return endOfData();
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      lines.close();
+    }
+  }
+
+  // returns null for lines that aren't records
+  private InputRecord parseLine(String line) {
+    if (isBlank(line)) {
+      return null;
+    }
+    if (isComment(line)) {
+      return null;
+    }
+    return reader.parse(line);
+  }
+
   private boolean isComment(String line) {
     return line.startsWith(";;");
   }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Dynamic programming table for the k-best viterbi alignment decoders (AlignerViterbi for x to y and
+ * AlignerInferencer for just x).  Each (x,y) cell keeps up to k paths and every path is just a few slots in flat
+ * primitive arrays: the score, the size of the x and y grams that it took to get in to this cell, and the slot of
+ * the path it extended in the previous cell (so decoding follows back-pointers directly).  For the x only case just
+ * use a ySize of 1 and y = 0 everywhere.
+ * <p>
+ * Paths are ordered by score and then (to break ties the same way every time) by the x back ref, the y back ref, and
+ * the order the previous path was created in.  The arrays grow to fit the largest lattice seen and are then reused,
+ * so an instance is NOT thread safe.  Use forCurrentThread() to get the one owned by the calling thread.
+ *
+ * @author Steve Ash
+ */
+public class KBestPathTable {
+
+  private static final ThreadLocal<KBestPathTable> perThread = new ThreadLocal<KBestPathTable>() {
+    @Override
+    protected KBestPathTable initialValue() {
+      return new KBestPathTable();
+    }
+  };
+
+  /**
+   * @return the table owned by the calling thread; it is only valid until this thread inits it again
+   */
+  public static KBestPathTable forCurrentThread() {
+    return perThread.get();
+  }
+
+  private int ySize;
+  private int k;
+  private int nextId;
+
+  // number of paths in each cell, indexed by x * ySize + y
+  private int[] counts = new int[0];
+  // the path slots, indexed by (cell * k) + slot
+  private double[] scores = new double[0];
+  private int[] xBackRefs = new int[0];
+  private int[] yBackRefs = new int[0];
+  private int[] pathBackRefs = new int[0];
+  // the order each path was created in and the id of the path that it extended; only used to break ties
+  private int[] ids = new int[0];
+  private int[] prevIds = new int[0];
+
+  /**
+   * Clears the table and sizes it for xSize * ySize cells of bestPathCount paths each
+   */
+  public void init(int xSize, int ySize, int bestPathCount) {
+    Preconditions.checkArgument(bestPathCount > 0, "must keep at least one path");
+    this.ySize = ySize;
+    this.k = bestPathCount;
+    this.nextId = 0;
+    int cells = xSize * ySize;
+    if (counts.length < cells) {
+      counts = new int[cells];
+    } else {
+      Arrays.fill(counts, 0, cells, 0);
+    }
+    int slots = cells * bestPathCount;
+    if (scores.length < slots) {
+      scores = new double[slots];
+      xBackRefs = new int[slots];
+      yBackRefs = new int[slots];
+      pathBackRefs = new int[slots];
+      ids = new int[slots];
+      prevIds = new int[slots];
+    }
+  }
+
+  /**
+   * Adds the empty path that all of the others extend in the (0,0) cell
+   */
+  public void start(double score) {
+    offer(0, score, -1, -1, -1, -1);
+  }
+
+  /**
+   * Extends every path in the (oldX, oldY) cell by a transition with the given score and offers them to the
+   * (newX, newY) cell
+   */
+  public void extendPath(int newX, int newY, int oldX, int oldY, double score, int xBackRef, int yBackRef) {
+    int oldCell = oldX * ySize + oldY;
+    int newCell = newX * ySize + newY;
+    int oldCount = counts[oldCell];
+    int oldBase = oldCell * k;
+    for (int slot = 0; slot < oldCount; slot++) {
+      offer(newCell, scores[oldBase + slot] + score, xBackRef, yBackRef, slot, ids[oldBase + slot]);
+    }
+  }
+
+  public int pathCount(int x, int y) {
+    return counts[x * ySize + y];
+  }
+
+  public double score(int x, int y, int slot) {
+    return scores[slotIndex(x, y, slot)];
+  }
+
+  public int xBackRef(int x, int y, int slot) {
+    return xBackRefs[slotIndex(x, y, slot)];
+  }
+
+  public int yBackRef(int x, int y, int slot) {
+    return yBackRefs[slotIndex(x, y, slot)];
+  }
+
+  /**
+   * @return the slot of the path in the previous cell (x - xBackRef, y - yBackRef) that this path extended
+   */
+  public int pathBackRef(int x, int y, int slot) {
+    return pathBackRefs[slotIndex(x, y, slot)];
+  }
+
+  private int slotIndex(int x, int y, int slot) {
+    return (x * ySize + y) * k + slot;
+  }
+
+  private void offer(int cell, double score, int xBackRef, int yBackRef, int pathBackRef, int pathId) {
+    int base = cell * k;
+    int count = counts[cell];
+    int target;
+    if (count < k) {
+      target = base + count;
+      counts[cell] = count + 1;
+    } else {
+      // full so replace the worst path if this one is better
+      target = base;
+      for (int i = base + 1; i < base + k; i++) {
+        if (isWorse(i, target)) {
+          target = i;
+        }
+      }
+      if (compareTo(target, score, xBackRef, yBackRef, pathId) >= 0) {
+        return;
+      }
+    }
+    scores[target] = score;
+    xBackRefs[target] = xBackRef;
+    yBackRefs[target] = yBackRef;
+    pathBackRefs[target] = pathBackRef;
+    prevIds[target] = pathId;
+    ids[target] = nextId++;
+  }
+
+  private boolean isWorse(int a, int b) {
+    return compareTo(a, scores[b], xBackRefs[b], yBackRefs[b], prevIds[b]) < 0;
+  }
+
+  // compares the path in the given slot to the candidate
+  private int compareTo(int slot, double score, int xBackRef, int yBackRef, int pathId) {
+    int result = Double.compare(scores[slot], score);
+    if (result != 0) {
+      return result;
+    }
+    if (xBackRefs[slot] != xBackRef) {
+      return xBackRefs[slot] < xBackRef ? -1 : 1;
+    }
+    if (yBackRefs[slot] != yBackRef) {
+      return yBackRefs[slot] < yBackRef ? -1 : 1;
+    }
+    return Integer.compare(prevIds[slot], pathId);
+  }
+}
@@ -16,20 +16,30 @@
 
 package com.github.steveash.jg2p.align;
 
-import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+import com.google.common.collect.UnmodifiableIterator;
 
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongIntOpenHashMap;
 import com.carrotsearch.hppc.ObjectDoubleMap;
 import com.carrotsearch.hppc.ObjectDoubleOpenHashMap;
+import com.carrotsearch.hppc.ObjectIntOpenHashMap;
 
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -37,6 +47,16 @@ import static com.github.steveash.jg2p.util.Assert.assertProb;
 
 /**
  * Table of probabilities from Xi to Yi
+ * <p>
+ * The x and y grams are interned to int ids and each (x,y) cell is found through a primitive open addressing map
+ * keyed on the two ids packed in to a long.  The cell values live in a dense double[] (in the order that the cells
+ * were first added) so iterating, merging, and computing marginals are just array scans and the EM inner loop
+ * doesn't box anything. Reads (prob, getYProbForX, etc.) are safe to do from multiple threads as long as no one is
+ * writing to the table at the same time.
+ * <p>
+ * This used to be backed by a Guava HashBasedTable and that's what old serialized AlignModels contain; those are
+ * converted when they're read and written back out in the new (more compact) form the next time that they're saved
+ * (i.e. just read and re-write the model or use ModelReadWrite.convertToBinary)
  *
  * @author Steve Ash
  */
@@ -44,6 +64,10 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
   private static final long serialVersionUID = -8001165446102770332L;
   public static final double minLogProb = -1e12;
 
+  // version 1 was just the java serialized guava table
+  private static final Integer SERIAL_VERSION = 2;
+  private static final int DEFAULT_CELLS = 16;
+
   /**
    * Returns a set of all non-empty x,y pairs from a unioned with all non-empty x,y pairs from b
    * @param a
@@ -51,7 +75,7 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
    * @return
    */
   public static Set<Pair<String, String>> unionOfAllCells(ProbTable a, ProbTable b) {
-    Set<Pair<String, String>> xys = Sets.newHashSetWithExpectedSize(Math.max(a.xyProb.size(), b.xyProb.size()));
+    Set<Pair<String, String>> xys = Sets.newHashSetWithExpectedSize(Math.max(a.cellCount, b.cellCount));
     addAllPresent(a, xys);
     addAllPresent(b, xys);
     return xys;
@@ -59,27 +83,50 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
 
   public static void mergeAll(Iterable<ProbTable> sources, ProbTable sink) {
     for (ProbTable source : sources) {
-      for (Table.Cell<String, String, Double> cell : source) {
-        sink.addProb(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+      for (int i = 0; i < source.cellCount; i++) {
+        sink.addProb(source.xSyms.get(source.cellX[i]), source.ySyms.get(source.cellY[i]), source.cellProb[i]);
       }
     }
   }
 
   private static void addAllPresent(ProbTable tbl, Set<Pair<String, String>> output) {
-    for (Table.Cell<String, String, Double> aa : tbl) {
-      if (aa.getValue() != null && aa.getValue() > 0) {
-        output.add(Pair.of(aa.getRowKey(), aa.getColumnKey()));
+    for (int i = 0; i < tbl.cellCount; i++) {
+      if (tbl.cellProb[i] > 0) {
+        output.add(Pair.of(tbl.xSyms.get(tbl.cellX[i]), tbl.ySyms.get(tbl.cellY[i])));
       }
     }
   }
 
   @Override
   public Iterator<Table.Cell<String, String, Double>> iterator() {
-    return xyProb.cellSet().iterator();
+    return new UnmodifiableIterator<Table.Cell<String, String, Double>>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < cellCount;
+      }
+
+      @Override
+      public Table.Cell<String, String, Double> next() {
+        int i = next++;
+        return Tables.immutableCell(xSyms.get(cellX[i]), ySyms.get(cellY[i]), cellProb[i]);
+      }
+    };
   }
 
   public Map<String, Double> getYProbForX(String x) {
-    return xyProb.row(x);
+    int xId = xIds.getOrDefault(x, -1);
+    if (xId < 0) {
+      return ImmutableMap.of();
+    }
+    IntArrayList row = rowCells.get(xId);
+    ImmutableMap.Builder<String, Double> builder = ImmutableMap.builder();
+    for (int i = 0; i < row.size(); i++) {
+      int cell = row.get(i);
+      builder.put(ySyms.get(cellY[cell]), cellProb[cell]);
+    }
+    return builder.build();
   }
 
   public static class Marginals {
@@ -114,52 +161,92 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
     }
   }
 
-  private /*final*/ Table<String, String, Double> xyProb = HashBasedTable.create();
+  // the interned grams; ids are the index in to the syms lists
+  private final ObjectIntOpenHashMap<String> xIds = ObjectIntOpenHashMap.newInstance();
+  private final ObjectIntOpenHashMap<String> yIds = ObjectIntOpenHashMap.newInstance();
+  private final List<String> xSyms = Lists.newArrayList();
+  private final List<String> ySyms = Lists.newArrayList();
+  // the cell index for each x id, so that we can walk a row without scanning everything
+  private final List<IntArrayList> rowCells = Lists.newArrayList();
+  // packed (x id, y id) -> cell index
+  private final LongIntOpenHashMap cellIndex;
+  private int[] cellX;
+  private int[] cellY;
+  private double[] cellProb;
+  private int cellCount = 0;
 
   public ProbTable() {
+    this(DEFAULT_CELLS);
+  }
+
+  public ProbTable(int expectedCells) {
+    int capacity = Math.max(expectedCells, DEFAULT_CELLS);
+    this.cellIndex = LongIntOpenHashMap.newInstanceWithExpectedSize(capacity);
+    this.cellX = new int[capacity];
+    this.cellY = new int[capacity];
+    this.cellProb = new double[capacity];
   }
 
   public double prob(String x, String y) {
-    Double maybe = xyProb.get(x, y);
-    if (maybe == null) {
+    int cell = findCell(x, y);
+    if (cell < 0) {
       return 0;
     }
-    return maybe;
+    return cellProb[cell];
   }
 
-  public void clear() { xyProb.clear(); }
+  public void clear() {
+    xIds.clear();
+    yIds.clear();
+    xSyms.clear();
+    ySyms.clear();
+    rowCells.clear();
+    cellIndex.clear();
+    cellCount = 0;
+  }
 
   public void setProb(String x, String y, double value) {
-    xyProb.put(x, y, value);
+    // find the cell first as it might grow (replace) the cellProb array
+    int cell = cellFor(x, y);
+    cellProb[cell] = value;
   }
 
   public void addProb(String x, String y, double valueToAdd) {
-    Double maybe = xyProb.get(x, y);
-    if (maybe == null) maybe = 0.0;
-    xyProb.put(x, y, maybe + valueToAdd);
+    int cell = cellFor(x, y);
+    cellProb[cell] += valueToAdd;
   }
 
-  public long entryCount() { return xyProb.size(); }
+  public long entryCount() { return cellCount; }
 
   public Marginals calculateMarginals() {
-    ObjectDoubleOpenHashMap<String> x = ObjectDoubleOpenHashMap.newInstance();
-    ObjectDoubleOpenHashMap<String> y = ObjectDoubleOpenHashMap.newInstance();
+    double[] xSums = new double[xSyms.size()];
+    double[] ySums = new double[ySyms.size()];
     double sum = 0;
-    for (Table.Cell<String, String, Double> cell : xyProb.cellSet()) {
-      x.putOrAdd(cell.getRowKey(), cell.getValue(), cell.getValue());
-      y.putOrAdd(cell.getColumnKey(), cell.getValue(), cell.getValue());
-      sum += cell.getValue();
+    for (int i = 0; i < cellCount; i++) {
+      double value = cellProb[i];
+      xSums[cellX[i]] += value;
+      ySums[cellY[i]] += value;
+      sum += value;
+    }
+    return new Marginals(toMap(xSyms, xSums), toMap(ySyms, ySums), sum);
+  }
+
+  private static ObjectDoubleOpenHashMap<String> toMap(List<String> syms, double[] sums) {
+    ObjectDoubleOpenHashMap<String> result = ObjectDoubleOpenHashMap.newInstanceWithExpectedSize(syms.size());
+    for (int i = 0; i < sums.length; i++) {
+      result.put(syms.get(i), sums[i]);
     }
-    return new Marginals(x, y, sum);
+    return result;
   }
 
   public ProbTable makeNormalizedCopy() {
-    ProbTable result = new ProbTable();
-    Marginals marginals = this.calculateMarginals();
-    double sum = marginals.sumOfAllJointProbabilities();
-    for (Table.Cell<String, String, Double> cell : this) {
-      double normalValue = cell.getValue() / sum;
-      result.setProb(cell.getRowKey(), cell.getColumnKey(), normalValue);
+    ProbTable result = new ProbTable(cellCount);
+    double sum = 0;
+    for (int i = 0; i < cellCount; i++) {
+      sum += cellProb[i];
+    }
+    for (int i = 0; i < cellCount; i++) {
+      result.setProb(xSyms.get(cellX[i]), ySyms.get(cellY[i]), cellProb[i] / sum);
     }
     return result;
   }
@@ -170,20 +257,18 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
    * @return
    */
   public ProbTable makeRowNormalizedCopy() {
-    ProbTable result = new ProbTable();
-    for (String row : xRows()) {
-      Map<String, Double> yProbs = getYProbForX(row);
+    ProbTable result = new ProbTable(cellCount);
+    for (int xId = 0; xId < rowCells.size(); xId++) {
+      IntArrayList row = rowCells.get(xId);
       double total = 0;
-      for (Double dbl : yProbs.values()) {
-        total += dbl;
+      for (int i = 0; i < row.size(); i++) {
+        total += cellProb[row.get(i)];
       }
       if (total != 0.0) {
-        for (String y : yProbs.keySet()) {
-          Double maybe = yProbs.get(y);
-          if (maybe == null) {
-            maybe = 0.0;
-          }
-          result.setProb(row, y, maybe / total);
+        String x = xSyms.get(xId);
+        for (int i = 0; i < row.size(); i++) {
+          int cell = row.get(i);
+          result.setProb(x, ySyms.get(cellY[cell]), cellProb[cell] / total);
         }
       }
     }
@@ -191,20 +276,113 @@ public class ProbTable implements Iterable<Table.Cell<String,String,Double>>, Ex
   }
 
   public Set<String> xRows() {
-    return xyProb.rowKeySet();
+    return ImmutableSet.copyOf(xSyms);
   }
 
   public Set<String> yCols() {
-    return xyProb.columnKeySet();
+    return ImmutableSet.copyOf(ySyms);
+  }
+
+  // only uses the non-mutating lookups of the hppc maps so that concurrent readers are ok
+  private int findCell(String x, String y) {
+    int xId = xIds.getOrDefault(x, -1);
+    if (xId < 0) {
+      return -1;
+    }
+    int yId = yIds.getOrDefault(y, -1);
+    if (yId < 0) {
+      return -1;
+    }
+    return cellIndex.getOrDefault(pack(xId, yId), -1);
+  }
+
+  private int cellFor(String x, String y) {
+    int xId = xIds.getOrDefault(x, -1);
+    if (xId < 0) {
+      xId = xSyms.size();
+      xIds.put(x, xId);
+      xSyms.add(x);
+      rowCells.add(new IntArrayList(4));
+    }
+    int yId = yIds.getOrDefault(y, -1);
+    if (yId < 0) {
+      yId = ySyms.size();
+      yIds.put(y, yId);
+      ySyms.add(y);
+    }
+    long key = pack(xId, yId);
+    int cell = cellIndex.getOrDefault(key, -1);
+    if (cell >= 0) {
+      return cell;
+    }
+    if (cellCount == cellProb.length) {
+      int newSize = cellCount * 2;
+      cellX = Arrays.copyOf(cellX, newSize);
+      cellY = Arrays.copyOf(cellY, newSize);
+      cellProb = Arrays.copyOf(cellProb, newSize);
+    }
+    cell = cellCount++;
+    cellX[cell] = xId;
+    cellY[cell] = yId;
+    cellProb[cell] = 0;
+    cellIndex.put(key, cell);
+    rowCells.get(xId).add(cell);
+    return cell;
+  }
+
+  private static long pack(int xId, int yId) {
+    return (((long) xId) << 32) | (yId & 0xFFFFFFFFL);
   }
 
   @Override
-   public void writeExternal(ObjectOutput out) throws IOException {
-     out.writeObject(this.xyProb);
-   }
-
-   @Override
-   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-    this.xyProb = (Table<String, String, Double>) in.readObject();
-   }
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeObject(SERIAL_VERSION);
+    writeSyms(out, xSyms);
+    writeSyms(out, ySyms);
+    out.writeInt(cellCount);
+    for (int i = 0; i < cellCount; i++) {
+      out.writeInt(cellX[i]);
+      out.writeInt(cellY[i]);
+      out.writeDouble(cellProb[i]);
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    clear();
+    Object first = in.readObject();
+    if (first instanceof Table) {
+      // an old model that serialized the guava table directly
+      for (Table.Cell<String, String, Double> cell : ((Table<String, String, Double>) first).cellSet()) {
+        setProb(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+      }
+      return;
+    }
+    if (!SERIAL_VERSION.equals(first)) {
+      throw new InvalidObjectException("Unknown ProbTable serial version " + first);
+    }
+    String[] xs = readSyms(in);
+    String[] ys = readSyms(in);
+    int cells = in.readInt();
+    for (int i = 0; i < cells; i++) {
+      String x = xs[in.readInt()];
+      String y = ys[in.readInt()];
+      setProb(x, y, in.readDouble());
+    }
+  }
+
+  private static void writeSyms(ObjectOutput out, List<String> syms) throws IOException {
+    out.writeInt(syms.size());
+    for (String sym : syms) {
+      out.writeUTF(sym);
+    }
+  }
+
+  private static String[] readSyms(ObjectInput in) throws IOException {
+    String[] syms = new String[in.readInt()];
+    for (int i = 0; i < syms.length; i++) {
+      syms[i] = in.readUTF();
+    }
+    return syms;
+  }
 }
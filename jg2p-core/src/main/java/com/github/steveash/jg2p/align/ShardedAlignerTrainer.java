@@ -0,0 +1,402 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import com.github.steveash.jg2p.ModelException;
+import com.github.steveash.jg2p.util.ReadWrite;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Trains the alignment model with the expectation step split across processes (and thus boxes) for lexicons that
+ * are too big for one JVM.  Each worker process owns every shardCount'th input record, builds the lattices for just
+ * those, and each round writes its expected counts to a compact binary count file.  The coordinator merges the count
+ * files, runs the maximization step, and writes the new probabilities for the workers to use in the next round.
+ * <p>
+ * The processes only talk through files in a shared exchange directory; every file is written to a temp name and then
+ * atomically renamed so readers never see partial files:
+ * <pre>
+ *   run             the id of this run; the coordinator writes it first and the workers wait for it
+ *   counts-R-S.bin  the counts from shard S for round R (round 0 is the initial counts)
+ *   probs-R.bin     the probabilities that the workers should use for round R (rounds 1..n)
+ *   done            written by the coordinator once it has converged
+ * </pre>
+ * The coordinator refuses to start unless the exchange directory is empty (or doesn't exist yet) and every file
+ * carries the run id so files left over from another run are rejected instead of being mixed in to this one.
+ * The merged counts are the same as what the single process AlignerTrainer produces (modulo the order of floating
+ * point additions) so the models are the same too.
+ * <p>
+ * Usage: run one coordinator (--alignerShard -1, which writes the model to --outfile) and --alignerShardCount
+ * workers (--alignerShard 0..n-1) all with the same --infile, --alignerExchangeDir, and aligner options
+ *
+ * @author Steve Ash
+ */
+public class ShardedAlignerTrainer {
+
+  private static final Logger log = LoggerFactory.getLogger(ShardedAlignerTrainer.class);
+
+  static final int MAGIC = 0x4A474543; // JGEC
+  static final int VERSION = 2;
+  private static final String RUN_FILE = "run";
+  private static final String DONE_FILE = "done";
+  private static final long POLL_MILLIS = 100;
+
+  private final TrainOptions trainOpts;
+  private final File exchangeDir;
+  private final int shardCount;
+
+  public ShardedAlignerTrainer(TrainOptions trainOpts) {
+    Preconditions.checkArgument(trainOpts.alignerShardCount > 0, "need at least one shard");
+    Preconditions.checkNotNull(trainOpts.alignerExchangeDir, "need an exchange directory");
+    this.trainOpts = trainOpts;
+    this.exchangeDir = trainOpts.alignerExchangeDir;
+    this.shardCount = trainOpts.alignerShardCount;
+  }
+
+  /**
+   * Runs the coordinator: merges the counts from every shard and maximizes until EM converges (using the same
+   * convergence rules as the AlignerTrainer)
+   * @return the trained model
+   */
+  public AlignModel coordinate() throws IOException {
+    Files.createDirectories(exchangeDir.toPath());
+    String[] existing = exchangeDir.list();
+    if (existing == null || existing.length > 0) {
+      throw new ModelException("The exchange directory " + exchangeDir + " must be empty at the start of a run");
+    }
+    long runId = new SecureRandom().nextLong();
+    writeRunId(new File(exchangeDir, RUN_FILE), runId);
+    AlignerTrainer trainer = new AlignerTrainer(trainOpts);
+    Stopwatch total = Stopwatch.createStarted();
+    int round = 0;
+    while (true) {
+      Stopwatch watch = Stopwatch.createStarted();
+      ProbTable merged = new ProbTable();
+      Set<Pair<String, String>> blocked = Sets.newHashSet();
+      for (int shard = 0; shard < shardCount; shard++) {
+        ShardCounts shardCounts = readCounts(waitFor(countsFile(round, shard)));
+        checkFile(shardCounts, runId, round, shard);
+        ProbTable.mergeAll(Collections.singletonList(shardCounts.counts), merged);
+        blocked.addAll(shardCounts.blocked);
+      }
+      double change = trainer.maximizeShards(merged, blocked);
+
+      // round 0 is just the initial counts which initializes the probabilities
+      boolean finished = round > 0 && trainer.hasConverged(change, round, trainOpts.trainingAlignerMaxIterations);
+      if (finished) {
+        writeRunId(new File(exchangeDir, DONE_FILE), runId);
+      } else {
+        writeCounts(probsFile(round + 1), runId, round + 1, -1, trainer.currentProbs(),
+                    Collections.<Pair<String, String>>emptySet());
+      }
+      // nothing needs the files from this round anymore
+      for (int shard = 0; shard < shardCount; shard++) {
+        Files.deleteIfExists(countsFile(round, shard).toPath());
+      }
+      Files.deleteIfExists(probsFile(round).toPath());
+      log.info("Completed sharded EM round " + round + " mass delta " + String.format("%.15f", change) +
+               " in " + watch.stop());
+      if (finished) {
+        break;
+      }
+      round += 1;
+    }
+    log.info("Sharded training complete in " + round + " rounds and " + total.stop() + "!");
+    return new AlignModel(trainOpts.makeGramOptions(), trainer.currentProbs());
+  }
+
+  /**
+   * Runs a worker for the given shard until the coordinator says that training is done; the records should be the
+   * whole input (in the same order for every worker) and this picks out this shard's records
+   */
+  public void work(Iterable<InputRecord> records, int shard) throws IOException {
+    ListeningExecutorService service = listeningDecorator(newCachedThreadPool());
+    try {
+      long runId = readRunId(waitFor(new File(exchangeDir, RUN_FILE)));
+      AlignerTrainer trainer = new AlignerTrainer(trainOpts);
+      trainer.prepareShard(records, shard, shardCount);
+      writeCounts(countsFile(0, shard), runId, 0, shard, trainer.shardCounts(), trainer.shardBlocked());
+
+      File doneFile = new File(exchangeDir, DONE_FILE);
+      for (int round = 1; ; round++) {
+        File probsFile = probsFile(round);
+        if (waitFor(probsFile, doneFile) == doneFile) {
+          if (readRunId(doneFile) != runId) {
+            throw new ModelException("The done file in " + exchangeDir + " is from another run; is it stale?");
+          }
+          break;
+        }
+        ShardCounts current = readCounts(probsFile);
+        checkFile(current, runId, round, -1);
+        Stopwatch watch = Stopwatch.createStarted();
+        trainer.shardExpectation(current.counts, service);
+        writeCounts(countsFile(round, shard), runId, round, shard, trainer.shardCounts(),
+                    Collections.<Pair<String, String>>emptySet());
+        log.info("Shard " + shard + " completed expectation round " + round + " in " + watch.stop());
+      }
+      log.info("Shard " + shard + " is done");
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(service, 60, TimeUnit.SECONDS);
+    }
+  }
+
+  private File countsFile(int round, int shard) {
+    return new File(exchangeDir, "counts-" + round + "-" + shard + ".bin");
+  }
+
+  private File probsFile(int round) {
+    return new File(exchangeDir, "probs-" + round + ".bin");
+  }
+
+  // waits until any of the given files exists and returns it
+  private File waitFor(File... files) {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(trainOpts.alignerShardTimeoutSecs);
+    while (true) {
+      for (File file : files) {
+        if (file.exists()) {
+          return file;
+        }
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw new IllegalStateException("Gave up waiting for " + files[0] + " after " +
+                                        trainOpts.alignerShardTimeoutSecs + " seconds");
+      }
+      try {
+        Thread.sleep(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for " + files[0], e);
+      }
+    }
+  }
+
+  private static void checkFile(ShardCounts read, long runId, int round, int shard) {
+    if (read.runId != runId) {
+      throw new ModelException("Expected the count file for run " + runId + " but got one from run " + read.runId +
+                               "; is the exchange directory stale?");
+    }
+    if (read.round != round || read.shard != shard) {
+      throw new ModelException("Expected the count file for round " + round + " shard " + shard + " but got round " +
+                               read.round + " shard " + read.shard + "; is the exchange directory stale?");
+    }
+  }
+
+  static class ShardCounts {
+    final long runId;
+    final int round;
+    final int shard;
+    final ProbTable counts;
+    final Set<Pair<String, String>> blocked;
+
+    ShardCounts(long runId, int round, int shard, ProbTable counts, Set<Pair<String, String>> blocked) {
+      this.runId = runId;
+      this.round = round;
+      this.shard = shard;
+      this.counts = counts;
+      this.blocked = blocked;
+    }
+  }
+
+  // the run and done files are just the run id
+  private static void writeRunId(File output, long runId) throws IOException {
+    File temp = new File(output.getParentFile(), output.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+    try {
+      out.writeLong(runId);
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static long readRunId(File input) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(input));
+    try {
+      return in.readLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the count file; the layout (big endian) is int magic, int version, long runId, int round, int shard,
+   * int poolSize, (utf) strings * poolSize, int cellCount, (int x, int y, double count) * cellCount, int blockedCount,
+   * (int x, int y) * blockedCount where x and y are indexes in to the string pool.  The shard is -1 for the
+   * probability files that the coordinator writes.  This is written to a temp file and renamed in to place.
+   */
+  static void writeCounts(File output, long runId, int round, int shard, ProbTable counts,
+                          Collection<Pair<String, String>> blocked) throws IOException {
+    Map<String, Integer> strings = Maps.newHashMap();
+    List<String> pool = Lists.newArrayList();
+    int cells = (int) counts.entryCount();
+    int[] xys = new int[cells * 2];
+    double[] values = new double[cells];
+    int i = 0;
+    for (Table.Cell<String, String, Double> cell : counts) {
+      xys[i * 2] = intern(cell.getRowKey(), strings, pool);
+      xys[i * 2 + 1] = intern(cell.getColumnKey(), strings, pool);
+      values[i] = cell.getValue();
+      i += 1;
+    }
+    int[] blockedXys = new int[blocked.size() * 2];
+    i = 0;
+    for (Pair<String, String> xy : blocked) {
+      blockedXys[i++] = intern(xy.getLeft(), strings, pool);
+      blockedXys[i++] = intern(xy.getRight(), strings, pool);
+    }
+
+    File temp = new File(output.getParentFile(), output.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(runId);
+      out.writeInt(round);
+      out.writeInt(shard);
+      out.writeInt(pool.size());
+      for (String s : pool) {
+        out.writeUTF(s);
+      }
+      out.writeInt(cells);
+      for (int j = 0; j < cells; j++) {
+        out.writeInt(xys[j * 2]);
+        out.writeInt(xys[j * 2 + 1]);
+        out.writeDouble(values[j]);
+      }
+      out.writeInt(blocked.size());
+      for (int xy : blockedXys) {
+        out.writeInt(xy);
+      }
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static ShardCounts readCounts(File input) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), 1 << 16));
+    try {
+      int magic = in.readInt();
+      if (magic != MAGIC) {
+        throw new ModelException("This is not an aligner count file " + input);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new ModelException("Count file is version " + version + " but this can only read version " + VERSION);
+      }
+      long runId = in.readLong();
+      int round = in.readInt();
+      int shard = in.readInt();
+      String[] pool = new String[in.readInt()];
+      for (int i = 0; i < pool.length; i++) {
+        pool[i] = in.readUTF();
+      }
+      int cells = in.readInt();
+      ProbTable counts = new ProbTable(cells);
+      for (int i = 0; i < cells; i++) {
+        String x = pool[in.readInt()];
+        String y = pool[in.readInt()];
+        counts.setProb(x, y, in.readDouble());
+      }
+      int blockedCount = in.readInt();
+      Set<Pair<String, String>> blocked = Sets.newHashSetWithExpectedSize(blockedCount);
+      for (int i = 0; i < blockedCount; i++) {
+        String x = pool[in.readInt()];
+        String y = pool[in.readInt()];
+        blocked.add(Pair.of(x, y));
+      }
+      return new ShardCounts(runId, round, shard, counts, blocked);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int intern(String value, Map<String, Integer> strings, List<String> pool) {
+    Integer existing = strings.get(value);
+    if (existing != null) {
+      return existing;
+    }
+    strings.put(value, pool.size());
+    pool.add(value);
+    return pool.size() - 1;
+  }
+
+  public static void main(String[] args) {
+    try {
+      trainAndSave(args);
+    } catch (Exception e) {
+      log.error("Problem training ", e);
+    }
+  }
+
+  /**
+   * Runs either the coordinator or a worker depending on --alignerShard
+   * @return the model if this is the coordinator or null if this is a worker
+   */
+  public static AlignModel trainAndSave(String[] args) throws CmdLineException, IOException {
+    TrainOptions opts = new TrainOptions();
+    CmdLineParser parser = new CmdLineParser(opts);
+    parser.parseArgument(args);
+    opts.afterParametersSet();
+    ShardedAlignerTrainer trainer = new ShardedAlignerTrainer(opts);
+
+    if (opts.alignerShard >= 0) {
+      log.info("Streaming input training records for shard " + opts.alignerShard + "...");
+      trainer.work(opts.makeReader().streamFromFile(opts.trainingFile), opts.alignerShard);
+      return null;
+    }
+    log.info("Coordinating " + opts.alignerShardCount + " shards through " + opts.alignerExchangeDir + "...");
+    AlignModel model = trainer.coordinate();
+    log.info("Writing model to " + opts.outputFile + "...");
+    ReadWrite.writeTo(model, opts.outputFile);
+    return model;
+  }
+}
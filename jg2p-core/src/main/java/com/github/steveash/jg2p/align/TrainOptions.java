@@ -16,10 +16,14 @@
 
 package com.github.steveash.jg2p.align;
 
+import com.github.steveash.jg2p.util.HashingAlphabet;
+
 import org.kohsuke.args4j.Option;
 
 import java.io.File;
 
+import cc.mallet.types.Alphabet;
+
 /**
  * Options for the training procedure; also defines the training command line arguments
  *
@@ -71,6 +75,38 @@ public class TrainOptions implements Cloneable {
   @Option(name = "--semiSupervisedFactor")
   public double semiSupervisedFactor = 0.6;
 
+  /**
+   * incremental training aligner options; used to refresh an existing aligner (--initTrainingAlignerFrom) with new
+   * records via stepwise EM instead of retraining from scratch
+   */
+  @Option(name = "--incrementalAligner")
+  public boolean incrementalAligner = false;
+
+  @Option(name = "--incrementalIterations")
+  public int incrementalAlignerIterations = 10;
+
+  @Option(name = "--incrementalStepAlpha")
+  public double incrementalStepAlpha = 0.7; // step size for round k decays as k^-alpha; must be in (0.5, 1]
+
+  @Option(name = "--incrementalPriorRecords")
+  public int incrementalPriorRecords = 100000; // how many records the existing model is worth
+
+  /**
+   * sharded training aligner options; splits the expectation step across processes that exchange count files
+   * through a shared directory (see ShardedAlignerTrainer)
+   */
+  @Option(name = "--alignerShard")
+  public int alignerShard = -1; // which shard this worker process is; -1 for the coordinator
+
+  @Option(name = "--alignerShardCount")
+  public int alignerShardCount = 0; // total number of worker processes
+
+  @Option(name = "--alignerExchangeDir")
+  public File alignerExchangeDir; // an empty directory that every worker and the coordinator can see
+
+  @Option(name = "--alignerShardTimeoutSecs")
+  public int alignerShardTimeoutSecs = 3600; // how long to wait for the other processes before giving up
+
   @Option(name = "--useWindowWalker")
   public boolean useWindowWalker = true;
 
@@ -97,6 +133,9 @@ public class TrainOptions implements Cloneable {
   @Option(name = "--trimFeaturesByGradient")
   public double trimFeaturesByGradientGain = 0;
 
+  @Option(name = "--crfFeatureHashBits")
+  public int crfFeatureHashBits = 0; // if > 0 then the crf features are hashed in to 2^bits instead of an alphabet
+
   /**
    * Graphone language model options
    */
@@ -201,6 +240,16 @@ public class TrainOptions implements Cloneable {
     return gopts;
   }
 
+  /**
+   * @return the feature alphabet for a new crf pipe; this is a HashingAlphabet if crfFeatureHashBits is set
+   */
+  public Alphabet makeCrfAlphabet() {
+    if (crfFeatureHashBits > 0) {
+      return new HashingAlphabet(crfFeatureHashBits);
+    }
+    return new Alphabet();
+  }
+
   public InputReader makeReader() {
     if (format == InputFormat.CMU) {
       return InputReader.makeCmuReader();
@@ -231,8 +280,17 @@ public class TrainOptions implements Cloneable {
            ",\n\ttrainingAlignerMaximizer=" + trainingAlignerMaximizer +
            ",\n\ttrainingAlignerMaxIterations=" + trainingAlignerMaxIterations +
            ",\n\tprobDeltaConvergenceThreshold=" + probDeltaConvergenceThreshold +
+           ",\n\tincrementalAligner=" + incrementalAligner +
+           ",\n\tincrementalAlignerIterations=" + incrementalAlignerIterations +
+           ",\n\tincrementalStepAlpha=" + incrementalStepAlpha +
+           ",\n\tincrementalPriorRecords=" + incrementalPriorRecords +
+           ",\n\talignerShard=" + alignerShard +
+           ",\n\talignerShardCount=" + alignerShardCount +
+           ",\n\talignerExchangeDir=" + alignerExchangeDir +
+           ",\n\talignerShardTimeoutSecs=" + alignerShardTimeoutSecs +
            ",\n\tmaxPronouncerTrainingIterations=" + maxPronouncerTrainingIterations +
            ",\n\ttrimFeaturesUnderPercentile=" + trimFeaturesUnderPercentile +
+           ",\n\tcrfFeatureHashBits=" + crfFeatureHashBits +
            ",\n\tinitCrfFromModelFile='" + initCrfFromModelFile + '\'' +
            ",\n\tsemiSupervisedFactor=" + semiSupervisedFactor +
            ",\n\tuseWindowWalker=" + useWindowWalker +
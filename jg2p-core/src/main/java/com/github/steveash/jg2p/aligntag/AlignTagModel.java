@@ -22,6 +22,7 @@ import com.google.common.collect.Lists;
 import com.github.steveash.jg2p.Word;
 import com.github.steveash.jg2p.align.Aligner;
 import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.seq.CrfLattice;
 
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -40,27 +41,33 @@ import cc.mallet.types.Sequence;
  */
 public class AlignTagModel implements Aligner, Serializable {
 
+  private static final long serialVersionUID = 2304885170437687171L;
+
   private final CRF crf;
 
   public AlignTagModel(CRF crf) {
     this.crf = crf;
   }
 
+  public CRF getCrf() {
+    return crf;
+  }
+
   @Override
   public List<Alignment> inferAlignments(Word x, int nBest) {
     Instance instance = new Instance(x.getValue(), null, null, null);
     instance = crf.getInputPipe().instanceFrom(instance);
 
     Sequence inSeq = (Sequence) instance.getData();
-    List<Sequence<Object>> outSeqs = crf.getMaxLatticeFactory().newMaxLattice(crf, inSeq).bestOutputSequences(nBest);
+    CrfLattice lattice = CrfLattice.forCurrentThread();
+    lattice.prepare(crf, inSeq);
+    List<CrfLattice.ScoredPath> paths = lattice.bestPaths(nBest);
 
-    ArrayList<Alignment> results = Lists.newArrayListWithCapacity(outSeqs.size());
-    double z = crf.getSumLatticeFactory().newSumLattice(crf, inSeq).getTotalWeight();
-    for (Sequence<Object> outSeq : outSeqs) {
-      double score = crf.getSumLatticeFactory().newSumLattice(crf, inSeq, outSeq).getTotalWeight();
-      List<Pair<String, String>> graphemes = makeGraphemes(x, outSeq);
+    ArrayList<Alignment> results = Lists.newArrayListWithCapacity(paths.size());
+    for (CrfLattice.ScoredPath path : paths) {
+      List<Pair<String, String>> graphemes = makeGraphemes(x, path.getOutput());
       if (!resultsContain(graphemes, results)) {
-        results.add(new Alignment(x, graphemes, score - z));
+        results.add(new Alignment(x, graphemes, path.getLogProb()));
       }
     }
     return results;
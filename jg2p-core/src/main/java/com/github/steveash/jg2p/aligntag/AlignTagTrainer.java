@@ -62,8 +62,9 @@ public class AlignTagTrainer {
 
   private static final Logger log = LoggerFactory.getLogger(AlignTagTrainer.class);
 
-  public static List<Alignment> makeAlignmentInputFromRaw(List<InputRecord> inputs, AlignModel model, TrainOptions opts) {
-    List<Alignment> examples = Lists.newArrayListWithCapacity(inputs.size());
+  public static List<Alignment> makeAlignmentInputFromRaw(Iterable<InputRecord> inputs, AlignModel model,
+                                                          TrainOptions opts) {
+    List<Alignment> examples = Lists.newArrayList();
     for (InputRecord input : inputs) {
       List<Alignment> best = model.align(input.xWord, input.yWord, opts.topKAlignCandidates);
 
@@ -76,7 +77,7 @@ public class AlignTagTrainer {
     return examples;
   }
 
-  public AlignTagModel train(List<InputRecord> inputs, AlignModel model, TrainOptions opts) {
+  public AlignTagModel train(Iterable<InputRecord> inputs, AlignModel model, TrainOptions opts) {
     List<Alignment> alignments = makeAlignmentInputFromRaw(inputs, model, opts);
     return train(alignments);
   }
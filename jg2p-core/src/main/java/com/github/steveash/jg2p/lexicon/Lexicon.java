@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lexicon;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import com.github.steveash.jg2p.ModelException;
+import com.github.steveash.jg2p.Word;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read only dictionary of known pronunciations (i.e. CMUdict) that lets the encoder skip the models entirely for
+ * in-vocabulary words.  The dictionary file is built offline by the LexiconWriter and is an open addressing hash
+ * table that is memory mapped (not read in to the heap) so lookups are O(1) and opening it is nearly free.
+ * <p>
+ * The file layout (all big endian) is:
+ * <pre>
+ *   int magic, int version, int slotCount (power of 2), int entryCount
+ *   int[slotCount] slots: offset of the entry in the data section + 1 (0 = empty slot)
+ *   data section of entries: short keyLen, byte[] key, byte pronCount, (short pronLen, byte[] pron) * pronCount
+ * </pre>
+ * Keys are the graphemes (lower cased, like the models' input, so lookups don't depend on the case of the word) and
+ * pronunciations are the phones, both space separated and UTF-8 encoded.  Lookups only
+ * use absolute reads against the mapped buffer so this is safe to use from multiple threads.
+ *
+ * @author Steve Ash
+ */
+public class Lexicon {
+
+  static final int MAGIC = 0x4A47504C; // JGPL
+  static final int VERSION = 2; // version 1 had case sensitive keys
+  static final int HEADER_BYTES = 16;
+
+  private final ByteBuffer buffer;
+  private final int slotMask;
+  private final int entryCount;
+  private final int dataStart;
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+
+  public static Lexicon open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      // the mapping stays valid after the channel is closed
+      return new Lexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  Lexicon(ByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new ModelException("This is not a lexicon file");
+    }
+    int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new ModelException("Lexicon file is version " + version + " but this can only read version " + VERSION);
+    }
+    int slotCount = buffer.getInt(8);
+    this.slotMask = slotCount - 1;
+    this.entryCount = buffer.getInt(12);
+    this.dataStart = HEADER_BYTES + (slotCount * 4);
+  }
+
+  /**
+   * @return the known pronunciations of the given word (in the order that they appeared in the source dictionary)
+   * or an empty list if this word isn't in the lexicon
+   */
+  public List<Word> lookup(Word graphemes) {
+    byte[] key = keyFor(graphemes);
+    int offset = find(key);
+    if (offset < 0) {
+      misses.incrementAndGet();
+      return ImmutableList.of();
+    }
+    hits.incrementAndGet();
+    int pos = offset + 2 + key.length;
+    int pronCount = buffer.get(pos) & 0xFF;
+    pos += 1;
+    ImmutableList.Builder<Word> builder = ImmutableList.builder();
+    for (int i = 0; i < pronCount; i++) {
+      int len = buffer.getShort(pos) & 0xFFFF;
+      pos += 2;
+      builder.add(Word.fromSpaceSeparated(readString(pos, len)));
+      pos += len;
+    }
+    return builder.build();
+  }
+
+  public boolean contains(Word graphemes) {
+    return find(keyFor(graphemes)) >= 0;
+  }
+
+  public int size() {
+    return entryCount;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public double hitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    if (total == 0) {
+      return 0;
+    }
+    return ((double) h) / total;
+  }
+
+  // returns the absolute offset of the entry for this key or -1 if its not present
+  private int find(byte[] key) {
+    int slot = hash(key) & slotMask;
+    while (true) {
+      int entry = buffer.getInt(HEADER_BYTES + (slot * 4));
+      if (entry == 0) {
+        return -1;
+      }
+      int offset = dataStart + entry - 1;
+      if (keyEquals(offset, key)) {
+        return offset;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  private boolean keyEquals(int offset, byte[] key) {
+    int len = buffer.getShort(offset) & 0xFFFF;
+    if (len != key.length) {
+      return false;
+    }
+    int start = offset + 2;
+    for (int i = 0; i < len; i++) {
+      if (buffer.get(start + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String readString(int pos, int len) {
+    byte[] bytes = new byte[len];
+    for (int i = 0; i < len; i++) {
+      bytes[i] = buffer.get(pos + i);
+    }
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  static byte[] keyFor(Word graphemes) {
+    return keyString(graphemes).getBytes(Charsets.UTF_8);
+  }
+
+  static String keyString(Word graphemes) {
+    return graphemes.getAsSpaceString().toLowerCase(Locale.ROOT);
+  }
+
+  // FNV-1a; this is part of the file format so it can't change without bumping the version
+  static int hash(byte[] key) {
+    int h = 0x811C9DC5;
+    for (byte b : key) {
+      h ^= (b & 0xFF);
+      h *= 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+}
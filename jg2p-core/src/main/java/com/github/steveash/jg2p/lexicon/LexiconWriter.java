@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lexicon;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.github.steveash.jg2p.align.InputReader;
+import com.github.steveash.jg2p.align.InputRecord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Builds the lexicon file that the Lexicon memory maps.  The input is any of the formats that the InputReader
+ * understands; words with multiple pronunciations (like the numbered variants in CMUdict) keep all of them in the
+ * order that they first appear.
+ * <p>
+ * Usage: LexiconWriter [cmu|psaurus|default] inputFile outputFile
+ *
+ * @author Steve Ash
+ */
+public class LexiconWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(LexiconWriter.class);
+
+  public static void main(String[] args) {
+    try {
+      Preconditions.checkArgument(args.length == 3, "usage: LexiconWriter [cmu|psaurus|default] input output");
+      InputReader reader = makeReader(args[0]);
+      log.info("Streaming dictionary records from " + args[1] + "...");
+      int count = write(reader.streamFromFile(new File(args[1])), new File(args[2]));
+      log.info("Wrote " + count + " words to the lexicon " + args[2]);
+    } catch (Exception e) {
+      log.error("Problem writing the lexicon ", e);
+    }
+  }
+
+  private static InputReader makeReader(String format) {
+    if (format.equalsIgnoreCase("cmu")) {
+      return InputReader.makeCmuReader();
+    }
+    if (format.equalsIgnoreCase("psaurus")) {
+      return InputReader.makePSaurusReader();
+    }
+    return InputReader.makeDefaultFormatReader();
+  }
+
+  /**
+   * Writes the lexicon file for the given records
+   * @return the number of distinct words written
+   */
+  public static int write(Iterable<InputRecord> records, File output) throws IOException {
+    Map<String, LinkedHashSet<String>> entries = Maps.newLinkedHashMap();
+    for (InputRecord record : records) {
+      String key = Lexicon.keyString(record.xWord);
+      LinkedHashSet<String> prons = entries.get(key);
+      if (prons == null) {
+        prons = Sets.newLinkedHashSet();
+        entries.put(key, prons);
+      }
+      prons.add(record.yWord.getAsSpaceString());
+    }
+
+    int slotCount = 2;
+    while (slotCount < entries.size() * 2) {
+      slotCount <<= 1;
+    }
+    int[] slots = new int[slotCount];
+    ByteArrayOutputStream data = new ByteArrayOutputStream(entries.size() * 32);
+    DataOutputStream dataOut = new DataOutputStream(data);
+    for (Map.Entry<String, LinkedHashSet<String>> entry : entries.entrySet()) {
+      byte[] key = entry.getKey().getBytes(Charsets.UTF_8);
+      Preconditions.checkArgument(key.length <= 0xFFFF, "word %s is too long for the lexicon", entry.getKey());
+      Preconditions.checkArgument(entry.getValue().size() <= 0xFF, "too many prons for %s", entry.getKey());
+      int slot = Lexicon.hash(key) & (slotCount - 1);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & (slotCount - 1);
+      }
+      slots[slot] = dataOut.size() + 1;
+
+      dataOut.writeShort(key.length);
+      dataOut.write(key);
+      dataOut.writeByte(entry.getValue().size());
+      for (String pron : entry.getValue()) {
+        byte[] pronBytes = pron.getBytes(Charsets.UTF_8);
+        Preconditions.checkArgument(pronBytes.length <= 0xFFFF, "pron %s is too long for the lexicon", pron);
+        dataOut.writeShort(pronBytes.length);
+        dataOut.write(pronBytes);
+      }
+    }
+    dataOut.flush();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+    try {
+      out.writeInt(Lexicon.MAGIC);
+      out.writeInt(Lexicon.VERSION);
+      out.writeInt(slotCount);
+      out.writeInt(entries.size());
+      for (int slot : slots) {
+        out.writeInt(slot);
+      }
+      data.writeTo(out);
+    } finally {
+      out.close();
+    }
+    return entries.size();
+  }
+}
@@ -23,31 +23,144 @@ import com.github.steveash.jg2p.PhoneticEncoder;
 import com.github.steveash.jg2p.align.Alignment;
 import com.github.steveash.kylm.model.immutable.ImmutableLM;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.List;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 /**
- * Wraps a lang model and knows how to produce a score given an encoding
+ * Wraps a lang model and knows how to produce a score given an encoding.  The kylm model is converted to a
+ * TrieLangModel the first time that it's needed and then dropped, so only the trie is kept on the heap and written
+ * when the model is serialized (the kylm model is only kept if it can't be converted)
  * @author Steve Ash
  */
 public class LangModel implements Serializable {
   private static final long serialVersionUID = -843134336202792076L;
+  private static final Logger log = LoggerFactory.getLogger(LangModel.class);
 
-  private final ImmutableLM gramLm;
+  // null once it's been converted to the trie
+  private volatile ImmutableLM gramLm;
   private final boolean isGraphoneModel;
+  // if > 0 then the trie's log probs and backoffs are quantized to this many bits
+  private int quantizeBits = 0;
+  // converted from the gramLm the first time that it's needed; null until then (or if it can't be converted)
+  private volatile TrieLangModel trie;
+  // set if the gramLm couldn't be converted so that we don't try again on every call
+  private transient volatile boolean unconvertible;
 
   public LangModel(ImmutableLM gramLm, boolean isGraphoneModel) {
     this.gramLm = gramLm;
     this.isGraphoneModel = isGraphoneModel;
   }
 
+  // holds the lock so that the model written is either the kylm model or the trie and not half way between
+  private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+  }
+
   public double score(PhoneticEncoder.Encoding enc) {
+    TrieLangModel trie = getTrie();
+    if (trie != null) {
+      if (isGraphoneModel) {
+        return trie.scoreGraphones(enc.alignment, enc.graphones);
+      }
+      return trie.score(makePhonemeSeq(enc.getPhones()));
+    }
     List<String> gramSeq = makeSequence(enc);
     return gramLm.sentenceProbNormalized(gramSeq);
   }
 
+  /**
+   * Scores all of the candidates (e.g. for one word) at once giving the same scores as score() for each.  Candidates
+   * that share a prefix (which most of the candidates from the encoder do) only pay for that prefix once
+   * @return the score for each encoding in the same order
+   */
+  public double[] scoreAll(List<PhoneticEncoder.Encoding> encodings) {
+    TrieLangModel trie = getTrie();
+    if (trie == null) {
+      double[] result = new double[encodings.size()];
+      for (int i = 0; i < encodings.size(); i++) {
+        result[i] = score(encodings.get(i));
+      }
+      return result;
+    }
+    if (isGraphoneModel) {
+      List<List<String>> graphemes = Lists.newArrayListWithCapacity(encodings.size());
+      List<List<String>> phonemes = Lists.newArrayListWithCapacity(encodings.size());
+      for (PhoneticEncoder.Encoding enc : encodings) {
+        graphemes.add(enc.alignment);
+        phonemes.add(enc.graphones);
+      }
+      return trie.scoreAllGraphones(graphemes, phonemes);
+    }
+    List<List<String>> phones = Lists.newArrayListWithCapacity(encodings.size());
+    for (PhoneticEncoder.Encoding enc : encodings) {
+      phones.add(makePhonemeSeq(enc.getPhones()));
+    }
+    return trie.scoreAll(phones);
+  }
+
+  /**
+   * Quantize the trie's log probs and backoffs to codebooks of 2^bits values (usually 8 or 16) or 0 to not
+   * quantize; once quantized the scores are close to (but not the same as) the kylm model's.  This converts the
+   * model to its trie now (if it hasn't been already) so that the kylm model is dropped.  The kylm model is gone
+   * once the trie has been quantized so it can't be quantized again (to a different number of bits)
+   */
+  public synchronized void setQuantizeBits(int bits) {
+    Preconditions.checkArgument(bits >= 0 && bits <= 16, "bits must be 0 (not quantized) or 1 to 16");
+    TrieLangModel current = getTrie();
+    if (current != null && current.getQuantizedBits() != bits) {
+      Preconditions.checkState(current.getQuantizedBits() == 0, "the trie is already quantized to %s bits and the "
+                                                                + "kylm model that it came from is gone",
+                               current.getQuantizedBits());
+      this.trie = current.quantize(bits);
+    }
+    this.quantizeBits = bits;
+  }
+
+  public int getQuantizeBits() {
+    return quantizeBits;
+  }
+
+  /**
+   * @return the int id trie version of this model (which gives the same scores unless its quantized) or null if the
+   * kylm model couldn't be converted
+   */
+  public TrieLangModel getTrie() {
+    TrieLangModel maybe = trie;
+    if (maybe != null || unconvertible) {
+      return maybe;
+    }
+    return convertToTrie();
+  }
+
+  private synchronized TrieLangModel convertToTrie() {
+    if (trie == null && !unconvertible) {
+      try {
+        TrieLangModel converted = TrieLangModel.convert(gramLm);
+        this.trie = (quantizeBits > 0 ? converted.quantize(quantizeBits) : converted);
+        this.gramLm = null;
+      } catch (RuntimeException | LinkageError e) {
+        // anything going wrong reading kylm's internals (like a different kylm version) just means no trie
+        log.warn("Couldn't convert the language model to a trie; using the kylm model instead", e);
+        this.unconvertible = true;
+      }
+    }
+    return trie;
+  }
+
+  /**
+   * @return the kylm model or null once it's been converted to the trie
+   */
+  ImmutableLM getGramLm() {
+    return gramLm;
+  }
+
   private List<String> makeSequence(PhoneticEncoder.Encoding enc) {
     if (isGraphoneModel) {
       return makeGraphoneSeq(enc.alignment, enc.graphones);
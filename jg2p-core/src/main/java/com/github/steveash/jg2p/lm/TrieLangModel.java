@@ -0,0 +1,739 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import com.google.common.primitives.Doubles;
+
+import com.carrotsearch.hppc.DoubleOpenHashSet;
+import com.carrotsearch.hppc.IntArrayList;
+import com.github.steveash.jg2p.util.WeightCodebook;
+import com.github.steveash.kylm.model.immutable.ImmutableLM;
+import com.github.steveash.kylm.model.immutable.ImmutableNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An n-gram language model over integer symbol ids stored in a sorted array trie.  It is converted from kylm's
+ * ImmutableLM (which is what LangModel wraps) and gives identical scores, but scoring doesn't make the
+ * "grapheme^phoneme" strings, doesn't box, and doesn't chase pointers through a hash map per n-gram.
+ * <p>
+ * Level 0 of the trie is the root, level k holds the k-grams.  The children of each node are a contiguous, sorted
+ * (by symbol id) run in the next level so finding a child is a binary search.  Each node also has its score, its
+ * backoff score, and the index of its fallback node (the node for the n-gram without its first symbol) in the level
+ * below.  The symbol ids are the kylm ids so scores walk exactly the same path as ImmutableLM.sentenceProb.
+ *
+ * @author Steve Ash
+ */
+public class TrieLangModel implements Serializable {
+
+  private static final long serialVersionUID = 4262513394270893012L;
+
+  // kylm uses the same id for the start and the terminal symbol
+  private static final int TERMINAL_ID = 0;
+
+  private final boolean countTerminals;
+  private final Pattern[] unknownPatterns;
+  private final String[] symbols;
+  private final int[] slots; // id + 1 of the symbol in that slot; 0 = empty
+  private final int slotMask;
+
+  private final int[][] ids;
+  private final LevelFloats scores;
+  private final LevelFloats backoffs;
+  private final int[][] fallbacks;
+  private final int[][] childStarts; // childStarts[k][i] .. childStarts[k][i + 1] are node i's children in level k + 1
+  private final BitSet[] hasChildren;
+
+  private TrieLangModel(boolean countTerminals, Pattern[] unknownPatterns, String[] symbols, int[][] ids,
+                        LevelFloats scores, LevelFloats backoffs, int[][] fallbacks, int[][] childStarts,
+                        BitSet[] hasChildren) {
+    this.countTerminals = countTerminals;
+    this.unknownPatterns = unknownPatterns;
+    this.symbols = symbols;
+    this.ids = ids;
+    this.scores = scores;
+    this.backoffs = backoffs;
+    this.fallbacks = fallbacks;
+    this.childStarts = childStarts;
+    this.hasChildren = hasChildren;
+
+    int slotCount = 2;
+    while (slotCount < symbols.length * 2) {
+      slotCount <<= 1;
+    }
+    this.slots = new int[slotCount];
+    this.slotMask = slotCount - 1;
+    for (int i = 0; i < symbols.length; i++) {
+      if (symbols[i] == null) {
+        continue;
+      }
+      int slot = mix(symbols[i].hashCode()) & slotMask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & slotMask;
+      }
+      slots[slot] = i + 1;
+    }
+  }
+
+  /**
+   * Copies the given kylm model in to the trie.  kylm doesn't expose its trie so this reads its (package private)
+   * fields (all reflectively, so a different kylm version can't fail to link); it throws an IllegalStateException
+   * if they aren't what this expects
+   */
+  @SuppressWarnings("unchecked")
+  public static TrieLangModel convert(ImmutableLM lm) {
+    boolean countTerminals = readField(lm, "countTerminals", Boolean.class);
+    Pattern[] unknownPatterns = readField(lm, "ukModelPatterns", Pattern[].class);
+    List<String> idToWord = readField(readField(lm, "symbols", Object.class), "idToWord", List.class);
+    ImmutableNode root = readField(lm, "root", ImmutableNode.class);
+
+    List<int[]> ids = Lists.newArrayList();
+    List<float[]> scores = Lists.newArrayList();
+    List<float[]> backoffs = Lists.newArrayList();
+    List<int[]> childStarts = Lists.newArrayList();
+    List<BitSet> hasChildren = Lists.newArrayList();
+
+    ids.add(new int[]{-1});
+    scores.add(new float[]{root.getScore()});
+    backoffs.add(new float[]{root.getBackoffScore()});
+    List<ImmutableNode> level = Collections.singletonList(root);
+    while (!level.isEmpty()) {
+      BitSet levelHasChildren = new BitSet(level.size());
+      int[] starts = new int[level.size() + 1];
+      List<ImmutableNode> next = new ArrayList<>();
+      IntArrayList nextIdList = new IntArrayList();
+      for (int i = 0; i < level.size(); i++) {
+        ImmutableNode node = level.get(i);
+        starts[i] = next.size();
+        if (!node.hasChildren()) {
+          continue;
+        }
+        levelHasChildren.set(i);
+        sortedChildren(node, next, nextIdList);
+      }
+      starts[level.size()] = next.size();
+      childStarts.add(starts);
+      hasChildren.add(levelHasChildren);
+      if (next.isEmpty()) {
+        break;
+      }
+
+      int[] nextIds = nextIdList.toArray();
+      float[] nextScores = new float[next.size()];
+      float[] nextBackoffs = new float[next.size()];
+      for (int i = 0; i < next.size(); i++) {
+        ImmutableNode node = next.get(i);
+        nextScores[i] = node.getScore();
+        nextBackoffs[i] = node.getBackoffScore();
+      }
+      ids.add(nextIds);
+      scores.add(nextScores);
+      backoffs.add(nextBackoffs);
+      level = next;
+    }
+
+    int[][] idArray = ids.toArray(new int[0][]);
+    int[][] startArray = childStarts.toArray(new int[0][]);
+    return new TrieLangModel(countTerminals, unknownPatterns, idToWord.toArray(new String[0]), idArray,
+                             new LevelFloats(scores.toArray(new float[0][])),
+                             new LevelFloats(backoffs.toArray(new float[0][])), computeFallbacks(idArray, startArray),
+                             startArray, hasChildren.toArray(new BitSet[0]));
+  }
+
+  // the fallback of each node is the same symbol under its parent's fallback (and unigrams fall back to the root)
+  private static int[][] computeFallbacks(int[][] ids, int[][] childStarts) {
+    int[][] fallbacks = new int[ids.length][];
+    fallbacks[0] = new int[]{-1};
+    for (int k = 0; k + 1 < ids.length; k++) {
+      int[] starts = childStarts[k];
+      int[] next = new int[ids[k + 1].length];
+      for (int parent = 0; parent < ids[k].length; parent++) {
+        int parentFallback = fallbacks[k][parent];
+        for (int i = starts[parent]; i < starts[parent + 1]; i++) {
+          if (k == 0) {
+            next[i] = 0;
+          } else {
+            next[i] = parentFallback < 0 ? -1 : findChild(ids, childStarts, k - 1, parentFallback, ids[k + 1][i]);
+          }
+        }
+      }
+      fallbacks[k + 1] = next;
+    }
+    return fallbacks;
+  }
+
+  // the children with their ids sorted by id
+  private static void sortedChildren(ImmutableNode node, List<ImmutableNode> children, IntArrayList childIds) {
+    final List<ImmutableNode> nodes = Lists.newArrayList();
+    final IntArrayList nodeIds = new IntArrayList();
+    // kylm's children are in a (shaded and obfuscated) hppc IntObjectHashMap keyed by the child's id so the only
+    // thing we rely on from its cursors is that one of their fields is the child
+    for (Object cursor : (Iterable<?>) node) {
+      ImmutableNode child = childOf(cursor);
+      nodeIds.add(readField(child, "id", Integer.class));
+      nodes.add(child);
+    }
+    Integer[] order = new Integer[nodes.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return Integer.compare(nodeIds.get(o1), nodeIds.get(o2));
+      }
+    });
+    for (Integer i : order) {
+      children.add(nodes.get(i));
+      childIds.add(nodeIds.get(i));
+    }
+  }
+
+  private static ImmutableNode childOf(Object cursor) {
+    try {
+      for (Field field : cursor.getClass().getDeclaredFields()) {
+        field.setAccessible(true);
+        Object value = field.get(cursor);
+        if (value instanceof ImmutableNode) {
+          return (ImmutableNode) value;
+        }
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      throw new IllegalStateException("Cant read the children from kylm's nodes; has the kylm version changed?", e);
+    }
+    throw new IllegalStateException("Cant find the child in kylm's node cursor; has the kylm version changed?");
+  }
+
+  private static <T> T readField(Object target, String name, Class<T> type) {
+    Object value;
+    try {
+      Field field = target.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      value = field.get(target);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      throw new IllegalStateException("Cant read " + name + " from kylm's " + target.getClass().getSimpleName() +
+                                      "; has the kylm version changed?", e);
+    }
+    if (value != null && !type.isInstance(value)) {
+      throw new IllegalStateException("Expected " + name + " from kylm's " + target.getClass().getSimpleName() +
+                                      " to be a " + type.getSimpleName() + "; has the kylm version changed?");
+    }
+    return type.cast(value);
+  }
+
+  private static int findChild(int[][] ids, int[][] childStarts, int level, int node, int id) {
+    int[] starts = childStarts[level];
+    int found = Arrays.binarySearch(ids[level + 1], starts[node], starts[node + 1], id);
+    return found >= 0 ? found : -1;
+  }
+
+  /**
+   * @return a copy of this model with its log probs and backoffs quantized to (separate) codebooks of at most 2^bits
+   * values (see WeightCodebook); the scores are no longer identical to kylm's but the codes take 1 (for up to 8 bits)
+   * or 2 (for up to 16 bits) bytes per n-gram instead of 4
+   */
+  public TrieLangModel quantize(int bits) {
+    Preconditions.checkArgument(bits >= 1 && bits <= 16, "can only quantize to 1 to 16 bits");
+    return new TrieLangModel(countTerminals, unknownPatterns, symbols, ids, scores.quantize(bits),
+                             backoffs.quantize(bits), fallbacks, childStarts, hasChildren);
+  }
+
+  /**
+   * @return the number of bits of the codes of the log probs or 0 if they aren't quantized
+   */
+  public int getQuantizedBits() {
+    return scores.bits;
+  }
+
+  /**
+   * @return the number of levels in the trie (not counting the root); this is the order of the model
+   */
+  public int getOrder() {
+    return ids.length - 1;
+  }
+
+  /**
+   * @return the number of n-grams of the given order
+   */
+  public int getNgramCount(int order) {
+    return ids[order].length;
+  }
+
+  /**
+   * @return the same score as LangModel.score would for the given graphones (i.e. the kylm log10 probability of the
+   * sentence of "grapheme^phoneme" symbols normalized by the length)
+   */
+  public double scoreGraphones(List<String> graphemes, List<String> phonemes) {
+    Preconditions.checkArgument(graphemes.size() == phonemes.size(), "must be same length");
+    Walk walk = new Walk();
+    for (int i = 0; i < graphemes.size(); i++) {
+      walk.advance(graphoneId(graphemes.get(i), phonemes.get(i)));
+    }
+    return walk.finish(graphemes.size());
+  }
+
+  /**
+   * @return the same score as ImmutableLM.sentenceProbNormalized for the given symbols
+   */
+  public double score(List<String> symbols) {
+    Walk walk = new Walk();
+    for (int i = 0; i < symbols.size(); i++) {
+      walk.advance(symbolId(symbols.get(i)));
+    }
+    return walk.finish(symbols.size());
+  }
+
+  /**
+   * Scores a batch of graphone sequences (like all of the candidates for one word) giving the same scores as
+   * scoreGraphones for each.  Candidates that share a prefix of graphones share the walk through the trie for that
+   * prefix so the cost scales with the number of distinct prefixes instead of candidates * length
+   * @return the score for each candidate in the same order as the given lists
+   */
+  public double[] scoreAllGraphones(List<? extends List<String>> graphemes, List<? extends List<String>> phonemes) {
+    Preconditions.checkArgument(graphemes.size() == phonemes.size(), "must be same number of candidates");
+    int[][] seqs = new int[graphemes.size()][];
+    for (int i = 0; i < seqs.length; i++) {
+      List<String> gs = graphemes.get(i);
+      List<String> ps = phonemes.get(i);
+      Preconditions.checkArgument(gs.size() == ps.size(), "must be same length");
+      seqs[i] = new int[gs.size()];
+      for (int j = 0; j < gs.size(); j++) {
+        seqs[i][j] = graphoneId(gs.get(j), ps.get(j));
+      }
+    }
+    return scoreIds(seqs);
+  }
+
+  /**
+   * Scores a batch of symbol sequences sharing the walk for common prefixes; see scoreAllGraphones
+   * @return the score for each sequence in the same order as given
+   */
+  public double[] scoreAll(List<? extends List<String>> symbolSeqs) {
+    int[][] seqs = new int[symbolSeqs.size()][];
+    for (int i = 0; i < seqs.length; i++) {
+      List<String> syms = symbolSeqs.get(i);
+      seqs[i] = new int[syms.size()];
+      for (int j = 0; j < syms.size(); j++) {
+        seqs[i][j] = symbolId(syms.get(j));
+      }
+    }
+    return scoreIds(seqs);
+  }
+
+  private double[] scoreIds(final int[][] seqs) {
+    double[] result = new double[seqs.length];
+    if (seqs.length == 0) {
+      return result;
+    }
+    // visiting the sequences in sorted order is a depth first walk of the prefix trie of the candidates; so we
+    // only need to keep the walk state for each position of the current candidate
+    Integer[] order = new Integer[seqs.length];
+    int maxLength = 0;
+    for (int i = 0; i < seqs.length; i++) {
+      order[i] = i;
+      maxLength = Math.max(maxLength, seqs[i].length);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return compareSeqs(seqs[o1], seqs[o2]);
+      }
+    });
+
+    double[] stackScores = new double[maxLength + 1];
+    int[] stackLevels = new int[maxLength + 1];
+    int[] stackNodes = new int[maxLength + 1];
+    Walk walk = new Walk();
+    walk.saveTo(stackScores, stackLevels, stackNodes, 0);
+    int[] prev = null;
+    for (Integer i : order) {
+      int[] seq = seqs[i];
+      int shared = (prev == null ? 0 : sharedPrefix(prev, seq));
+      walk.restoreFrom(stackScores, stackLevels, stackNodes, shared);
+      for (int j = shared; j < seq.length; j++) {
+        walk.advance(seq[j]);
+        walk.saveTo(stackScores, stackLevels, stackNodes, j + 1);
+      }
+      result[i] = walk.finish(seq.length);
+      prev = seq;
+    }
+    return result;
+  }
+
+  private static int compareSeqs(int[] a, int[] b) {
+    int shared = Math.min(a.length, b.length);
+    for (int i = 0; i < shared; i++) {
+      if (a[i] != b[i]) {
+        return Integer.compare(a[i], b[i]);
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  private static int sharedPrefix(int[] a, int[] b) {
+    int max = Math.min(a.length, b.length);
+    int i = 0;
+    while (i < max && a[i] == b[i]) {
+      i += 1;
+    }
+    return i;
+  }
+
+  /**
+   * @return the model id for the symbol, mapping it to the unknown symbol if this model doesn't know it
+   */
+  public int symbolId(String symbol) {
+    int slot = mix(symbol.hashCode()) & slotMask;
+    while (true) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return resolve(unknownId(symbol));
+      }
+      if (symbols[entry - 1].equals(symbol)) {
+        return resolve(entry - 1);
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  /**
+   * @return the model id for the graphone symbol grapheme^phoneme without making the string
+   */
+  public int graphoneId(String grapheme, String phoneme) {
+    // this is the String.hashCode() of grapheme + "^" + phoneme
+    int hash = 31 * grapheme.hashCode() + '^';
+    for (int i = 0; i < phoneme.length(); i++) {
+      hash *= 31;
+    }
+    hash += phoneme.hashCode();
+    int length = grapheme.length() + 1 + phoneme.length();
+
+    int slot = mix(hash) & slotMask;
+    while (true) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return resolve(unknownId(grapheme + "^" + phoneme));
+      }
+      String sym = symbols[entry - 1];
+      if (sym.length() == length && sym.startsWith(grapheme) && sym.charAt(grapheme.length()) == '^' &&
+          sym.endsWith(phoneme)) {
+        return resolve(entry - 1);
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  private int resolve(int id) {
+    // kylm maps ids that don't have unigrams to the unknown symbol (again)
+    if (childIndex(0, 0, id) < 0) {
+      return unknownId(symbols[id]);
+    }
+    return id;
+  }
+
+  private int unknownId(String symbol) {
+    if (unknownPatterns == null) {
+      return 2;
+    }
+    for (int i = 0; i < unknownPatterns.length; i++) {
+      Pattern pattern = unknownPatterns[i];
+      if (pattern == null || pattern.matcher(symbol).matches()) {
+        return i + 2;
+      }
+    }
+    throw new IllegalArgumentException("No unknown word model found to match " + symbol);
+  }
+
+  private int childIndex(int level, int node, int id) {
+    return findChild(ids, childStarts, level, node, id);
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private Object writeReplace() {
+    return new SerializedForm(this);
+  }
+
+  private void readObject(ObjectInputStream in) throws InvalidObjectException {
+    throw new InvalidObjectException("A TrieLangModel is only read through its serialized form");
+  }
+
+  // what's actually serialized: the ids and the child counts of each level are written as varints (the ids of
+  // siblings are sorted so they're small deltas) and the fallbacks and the symbol slots are rebuilt when it's read
+  private static final class SerializedForm implements Serializable {
+
+    private static final long serialVersionUID = 7034285014529830291L;
+
+    private final boolean countTerminals;
+    private final Pattern[] unknownPatterns;
+    private final String[] symbols;
+    // for each level: the child counts of its nodes then the ids of the next level (as deltas from the previous id)
+    private final byte[] structure;
+    private final LevelFloats scores;
+    private final LevelFloats backoffs;
+    private final BitSet[] hasChildren;
+
+    private SerializedForm(TrieLangModel model) {
+      this.countTerminals = model.countTerminals;
+      this.unknownPatterns = model.unknownPatterns;
+      this.symbols = model.symbols;
+      this.scores = model.scores;
+      this.backoffs = model.backoffs;
+      this.hasChildren = model.hasChildren;
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeVarint(out, model.ids.length);
+      for (int k = 0; k < model.ids.length; k++) {
+        int[] starts = model.childStarts[k];
+        for (int i = 0; i + 1 < starts.length; i++) {
+          writeVarint(out, starts[i + 1] - starts[i]);
+        }
+        if (k + 1 < model.ids.length) {
+          int previous = 0;
+          for (int id : model.ids[k + 1]) {
+            writeVarint(out, zigZag(id - previous));
+            previous = id;
+          }
+        }
+      }
+      this.structure = out.toByteArray();
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+      ByteArrayInputStream in = new ByteArrayInputStream(structure);
+      int levels = readVarint(in);
+      int[][] ids = new int[levels][];
+      int[][] childStarts = new int[levels][];
+      ids[0] = new int[]{-1};
+      for (int k = 0; k < levels; k++) {
+        int[] starts = new int[ids[k].length + 1];
+        for (int i = 0; i < ids[k].length; i++) {
+          starts[i + 1] = starts[i] + readVarint(in);
+        }
+        childStarts[k] = starts;
+        if (k + 1 < levels) {
+          int[] next = new int[starts[starts.length - 1]];
+          int previous = 0;
+          for (int i = 0; i < next.length; i++) {
+            next[i] = previous + unZigZag(readVarint(in));
+            previous = next[i];
+          }
+          ids[k + 1] = next;
+        }
+      }
+      if (in.available() != 0) {
+        throw new InvalidObjectException("The trie structure has " + in.available() + " extra bytes");
+      }
+      return new TrieLangModel(countTerminals, unknownPatterns, symbols, ids, scores, backoffs,
+                               computeFallbacks(ids, childStarts), childStarts, hasChildren);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private static int readVarint(ByteArrayInputStream in) throws InvalidObjectException {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = in.read();
+        if (b < 0) {
+          throw new InvalidObjectException("The trie structure is truncated");
+        }
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new InvalidObjectException("The trie structure has a malformed varint");
+    }
+
+    private static int zigZag(int value) {
+      return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+  }
+
+  // the per node floats of each level: either the floats themselves or codes in to a codebook
+  private static final class LevelFloats implements Serializable {
+
+    private static final long serialVersionUID = -1526930151846376510L;
+
+    private final float[][] values; // null if quantized
+    private final byte[][] byteCodes; // when quantized to at most 8 bits
+    private final char[][] charCodes; // when quantized to 9 to 16 bits
+    private final float[] codebook;
+    private final int bits;
+
+    private LevelFloats(float[][] values) {
+      this(values, null, null, null, 0);
+    }
+
+    private LevelFloats(float[][] values, byte[][] byteCodes, char[][] charCodes, float[] codebook, int bits) {
+      this.values = values;
+      this.byteCodes = byteCodes;
+      this.charCodes = charCodes;
+      this.codebook = codebook;
+      this.bits = bits;
+    }
+
+    private float get(int level, int index) {
+      if (values != null) {
+        return values[level][index];
+      }
+      if (byteCodes != null) {
+        return codebook[byteCodes[level][index] & 0xFF];
+      }
+      return codebook[charCodes[level][index]];
+    }
+
+    private LevelFloats quantize(int bits) {
+      Preconditions.checkState(values != null, "already quantized");
+      int count = 0;
+      for (float[] level : values) {
+        count += level.length;
+      }
+      double[] all = new double[count];
+      DoubleOpenHashSet nonFinite = new DoubleOpenHashSet();
+      int next = 0;
+      for (float[] level : values) {
+        for (float value : level) {
+          all[next++] = value;
+          if (!Doubles.isFinite(value)) {
+            nonFinite.add(value);
+          }
+        }
+      }
+      // the non-finite values (if any) get their own codes at the end of the codebook
+      WeightCodebook book = WeightCodebook.build(all, bits, nonFinite.size());
+      float[] codebook = new float[book.size() + nonFinite.size()];
+      for (int i = 0; i < book.size(); i++) {
+        codebook[i] = (float) book.decode(i);
+      }
+      double[] extras = nonFinite.toArray();
+      for (int i = 0; i < extras.length; i++) {
+        codebook[book.size() + i] = (float) extras[i];
+      }
+
+      byte[][] byteCodes = (bits <= 8 ? new byte[values.length][] : null);
+      char[][] charCodes = (bits <= 8 ? null : new char[values.length][]);
+      for (int k = 0; k < values.length; k++) {
+        float[] level = values[k];
+        int[] codes = new int[level.length];
+        for (int i = 0; i < level.length; i++) {
+          codes[i] = Doubles.isFinite(level[i]) ? book.encode(level[i])
+                                                : book.size() + Doubles.indexOf(extras, level[i]);
+        }
+        if (byteCodes != null) {
+          byteCodes[k] = new byte[codes.length];
+          for (int i = 0; i < codes.length; i++) {
+            byteCodes[k][i] = (byte) codes[i];
+          }
+        } else {
+          charCodes[k] = new char[codes.length];
+          for (int i = 0; i < codes.length; i++) {
+            charCodes[k][i] = (char) codes[i];
+          }
+        }
+      }
+      return new LevelFloats(null, byteCodes, charCodes, codebook, bits);
+    }
+  }
+
+  // walks the trie exactly the way that ImmutableLM.sentenceProb does
+  private class Walk {
+    private double score = 0;
+    private int level = 1;
+    private int node;
+
+    private Walk() {
+      node = childIndex(0, 0, TERMINAL_ID);
+      Preconditions.checkState(node >= 0, "the model doesn't have a start symbol");
+    }
+
+    private void advance(int id) {
+      while (!hasChildren[level].get(node)) {
+        fallBack();
+      }
+      while (true) {
+        int child = childIndex(level, node, id);
+        if (child >= 0) {
+          score += scores.get(level + 1, child);
+          level += 1;
+          node = child;
+          return;
+        }
+        score += backoffs.get(level, node);
+        if (level == 0) {
+          throw new IllegalArgumentException("Could not find word " + id + " - " + symbols[id] +
+                                             " in unigram vocabulary");
+        }
+        fallBack();
+      }
+    }
+
+    private void fallBack() {
+      int fallback = fallbacks[level][node];
+      Preconditions.checkState(fallback >= 0, "poorly constructed graph, no fallback for node at level", level);
+      node = fallback;
+      level -= 1;
+    }
+
+    private void saveTo(double[] stackScores, int[] stackLevels, int[] stackNodes, int depth) {
+      stackScores[depth] = score;
+      stackLevels[depth] = level;
+      stackNodes[depth] = node;
+    }
+
+    private void restoreFrom(double[] stackScores, int[] stackLevels, int[] stackNodes, int depth) {
+      score = stackScores[depth];
+      level = stackLevels[depth];
+      node = stackNodes[depth];
+    }
+
+    // note that this advances past the terminal so restore the walk before advancing it again
+    private double finish(int symbolCount) {
+      if (countTerminals) {
+        advance(TERMINAL_ID);
+      }
+      return score / -((double) (symbolCount + 2));
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.rerank;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cc.mallet.classify.Classifier;
+import cc.mallet.classify.RankMaxEnt;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSelection;
+
+/**
+ * Scores rerank candidates straight from the trained RankMaxEnt weights instead of going through Mallet's classify
+ * (an Instance through the pipe, a FeatureVectorSequence, a LabelVector, and then a label lookup per candidate).  The
+ * ranking model is linear with one weight vector shared by all of the candidates so the score for a candidate is
+ * just bias + dot(weights, features) and the probabilities are the softmax of those scores (exactly what
+ * RankMaxEnt.getClassificationScores does).
+ * <p>
+ * The weights are exported once from the classifier (with any feature selection already applied by zeroing the
+ * weights that aren't selected) so scoring is a single pass over primitive arrays.
+ *
+ * @author Steve Ash
+ */
+public class DirectRerankScorer {
+
+  private final ImmutableList<? extends RerankFeature> features;
+  private final Alphabet dataAlphabet;
+  private final double[] weights;
+  private final double bias;
+
+  DirectRerankScorer(ImmutableList<? extends RerankFeature> features, Alphabet dataAlphabet, double[] weights,
+                     double bias) {
+    this.features = features;
+    this.dataAlphabet = dataAlphabet;
+    this.weights = weights;
+    this.bias = bias;
+  }
+
+  /**
+   * Exports the weights from the given classifier
+   * @return the scorer or null if the classifier isn't a RankMaxEnt with the rerank pipe (or its feature alphabet
+   * is still growing)
+   */
+  public static DirectRerankScorer export(Classifier classifier) {
+    if (!(classifier instanceof RankMaxEnt)) {
+      return null;
+    }
+    RankMaxEnt maxEnt = (RankMaxEnt) classifier;
+    RerankFeaturePipe featurePipe = findFeaturePipe(maxEnt.getInstancePipe());
+    if (featurePipe == null || !featurePipe.getDataDict().growthStopped()) {
+      return null;
+    }
+    FeatureSelection selection = maxEnt.getFeatureSelection();
+    if (maxEnt.getPerClassFeatureSelection() != null) {
+      selection = maxEnt.getPerClassFeatureSelection()[0];
+    }
+    // the ranking model only ever uses the first row of parameters; the default feature (the bias) is last
+    int defaultIndex = maxEnt.getDefaultFeatureIndex();
+    double[] params = maxEnt.getParameters();
+    double[] weights = Arrays.copyOf(params, defaultIndex);
+    if (selection != null) {
+      for (int i = 0; i < weights.length; i++) {
+        if (!selection.contains(i)) {
+          weights[i] = 0;
+        }
+      }
+    }
+    return new DirectRerankScorer(featurePipe.getFeatures(), featurePipe.getDataDict(), weights, params[defaultIndex]);
+  }
+
+  private static RerankFeaturePipe findFeaturePipe(Pipe pipe) {
+    if (pipe instanceof RerankFeaturePipe) {
+      return (RerankFeaturePipe) pipe;
+    }
+    if (!(pipe instanceof SerialPipes)) {
+      return null;
+    }
+    RerankFeaturePipe found = null;
+    for (Pipe child : ((SerialPipes) pipe).pipes()) {
+      if (child instanceof RerankFeaturePipe && found == null) {
+        found = (RerankFeaturePipe) child;
+      } else if (!(child instanceof LoadTargetPipe)) {
+        // LoadTargetPipe doesn't do anything at test time; anything else we don't know how to reproduce
+        return null;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return the probability of each candidate (in the same order as the candidates)
+   */
+  public double[] probabilities(List<RerankExample> candidates) {
+    double[] scores = new double[candidates.size()];
+    if (scores.length == 0) {
+      return scores;
+    }
+    RerankFeatureBag bag = new RerankFeatureBag(dataAlphabet, null);
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < scores.length; i++) {
+      bag.reset(candidates.get(i));
+      for (RerankFeature feature : features) {
+        feature.emitFeatures(bag);
+      }
+      double score = bias + bag.dot(weights);
+      scores[i] = score;
+      max = Math.max(max, score);
+    }
+    double sum = 0;
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = Math.exp(scores[i] - max);
+      sum += scores[i];
+    }
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] /= sum;
+    }
+    return scores;
+  }
+
+  /**
+   * @return the exported weights indexed by feature index (not a copy so don't change it)
+   */
+  public double[] getWeights() {
+    return weights;
+  }
+
+  public double getBias() {
+    return bias;
+  }
+
+  public Alphabet getDataAlphabet() {
+    return dataAlphabet;
+  }
+}
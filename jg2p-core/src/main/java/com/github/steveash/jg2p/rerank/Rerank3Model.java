@@ -20,6 +20,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 
+import com.github.steveash.jg2p.util.LazyValue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.List;
@@ -74,16 +78,74 @@ public class Rerank3Model implements Serializable {
   }
 
   private final Classifier model;
+  private transient volatile boolean frozen = false;
+  // exported lazily from the model
+  private transient LazyValue<DirectRerankScorer> scorer;
 
   public Rerank3Model(RankMaxEnt model) {
     this.model = model;
+    this.scorer = makeScorer();
+  }
+
+  private LazyValue<DirectRerankScorer> makeScorer() {
+    return new LazyValue<DirectRerankScorer>() {
+      @Override
+      protected DirectRerankScorer compute() {
+        if (!frozen) {
+          freezeForInference();
+        }
+        return DirectRerankScorer.export(model);
+      }
+    };
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.scorer = makeScorer();
+  }
+
+  /**
+   * Stops the growth of the feature alphabet so that inference doesn't add (and contend on adding) the features of
+   * every new candidate; unknown features are just dropped since they don't have weights anyway.  This is called
+   * automatically the first time that probabilities() is called (the direct scorer needs the alphabet to be frozen)
+   */
+  public void freezeForInference() {
+    model.getAlphabet().stopGrowth();
+    frozen = true;
   }
 
   public List<RerankerResult> probabilities(List<RerankExample> ex) {
+    DirectRerankScorer direct = getDirectScorer();
+    if (direct == null) {
+      return classifierProbabilities(ex);
+    }
 
+    double[] probs = direct.probabilities(ex);
+    List<RerankerResult> result = Lists.newArrayListWithCapacity(ex.size());
+    for (int i = 0; i < ex.size(); i++) {
+      result.add(new RerankerResult(ex.get(i), probs[i]));
+    }
+    Collections.sort(result, Ordering.<RerankerResult>natural().reverse());
+    return result;
+  }
+
+  /**
+   * @return the scorer that computes the candidate probabilities directly from the exported weights or null if this
+   * model's classifier/pipe isn't something that it knows how to score
+   */
+  public DirectRerankScorer getDirectScorer() {
+    return scorer.get();
+  }
+
+  /**
+   * @return the probabilities from Mallet's classifier; this is the slow path that the direct scorer replaces
+   */
+  List<RerankerResult> classifierProbabilities(List<RerankExample> ex) {
+    if (!frozen) {
+      freezeForInference();
+    }
     Classification classify = model.classify(ex);
     LabelVector labeling = (LabelVector) classify.getLabeling();
-
     List<RerankerResult> result = Lists.newArrayListWithCapacity(ex.size());
     for (int i = 0; i < ex.size(); i++) {
       Label rankLabel = labeling.getLabelAlphabet().lookupLabel(Integer.toString(i));
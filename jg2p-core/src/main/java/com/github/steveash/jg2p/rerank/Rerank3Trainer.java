@@ -65,7 +65,9 @@ public class Rerank3Trainer {
 //    Trial trial = new Trial(model, instances);
 //    log.info("Trained reranker. Final accuracy on itself: " + trial.getAccuracy());
 //    log.info(new ConfusionMatrix(trial).toString());
-    return new Rerank3Model(model);
+    Rerank3Model rerankModel = new Rerank3Model(model);
+    rerankModel.freezeForInference();
+    return rerankModel;
   }
 
   private InstanceList convert(Collection<List<RerankExample>> trainingData) {
@@ -16,49 +16,60 @@
 
 package com.github.steveash.jg2p.rerank;
 
-import com.google.common.collect.Maps;
-
-import java.util.List;
-import java.util.Map;
-import java.util.SortedMap;
+import java.util.Arrays;
 
 import cc.mallet.types.Alphabet;
 import cc.mallet.types.FeatureVector;
 
 /**
- * Holder for feature values in the reranking pipe
+ * Holder for feature values in the reranking pipe.  The features are kept sorted by index in primitive arrays that
+ * are reused if the bag is reset() for the next example.  If the alphabet's growth has been stopped (i.e. at
+ * inference; see Rerank3Model) then features that aren't in the alphabet are dropped instead of growing it.
  * @author Steve Ash
  */
 public class RerankFeatureBag {
 
-  private static final Double ONE = 1.0;
-
   private final Alphabet dataAlphabet;
-  private final RerankExample example;
-  private final SortedMap<Integer,Double> features = Maps.newTreeMap();
+  private RerankExample example;
+  private int[] keys = new int[32];
+  private double[] vals = new double[32];
+  private int size = 0;
 
   public RerankFeatureBag(Alphabet dataAlphabet, RerankExample example) {
     this.dataAlphabet = dataAlphabet;
     this.example = example;
   }
 
+  /**
+   * Clears the features so this bag can be reused for the given example
+   */
+  public void reset(RerankExample example) {
+    this.example = example;
+    this.size = 0;
+  }
+
   public RerankExample getExample() {
     return example;
   }
 
   public void setBinary(String key) {
     int idx = lookup(key);
-    features.put(idx, ONE);
+    if (idx >= 0) {
+      put(idx, 1.0);
+    }
   }
 
   public void setFeature(String key, double value) {
     int idx = lookup(key);
-    if (value != 0) {
-      features.put(idx, value);
+    if (idx >= 0 && value != 0) {
+      put(idx, value);
     }
   }
 
   private int lookup(String key) {
+    if (dataAlphabet.growthStopped()) {
+      return dataAlphabet.lookupIndex(key, false); // unknown features are just dropped
+    }
     int idx = dataAlphabet.lookupIndex(key, true);
     if (idx < 0) {
       throw new IllegalArgumentException("Couldnt add new index for " + key);
@@ -66,16 +77,45 @@ public class RerankFeatureBag {
     return idx;
   }
 
-  public FeatureVector toVector() {
-    int[] keys = new int[features.size()];
-    double[] vals = new double[features.size()];
+  // sets the value keeping the keys sorted; the last value set for a key wins
+  private void put(int idx, double value) {
+    int pos = Arrays.binarySearch(keys, 0, size, idx);
+    if (pos >= 0) {
+      vals[pos] = value;
+      return;
+    }
+    pos = -(pos + 1);
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      vals = Arrays.copyOf(vals, size * 2);
+    }
+    System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+    System.arraycopy(vals, pos, vals, pos + 1, size - pos);
+    keys[pos] = idx;
+    vals[pos] = value;
+    size += 1;
+  }
+
+  public int size() {
+    return size;
+  }
 
-    int i = 0;
-    for (Map.Entry<Integer, Double> entry : features.entrySet()) {
-      keys[i] = entry.getKey();
-      vals[i] = entry.getValue();
-      i += 1;
+  /**
+   * @return the dot product of the features in this bag with the given weights (indexed by feature index); features
+   * past the end of the weights are ignored
+   */
+  double dot(double[] weights) {
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      int idx = keys[i];
+      if (idx < weights.length) {
+        sum += weights[idx] * vals[i];
+      }
     }
-    return new FeatureVector(dataAlphabet, keys, vals);
+    return sum;
+  }
+
+  public FeatureVector toVector() {
+    return new FeatureVector(dataAlphabet, Arrays.copyOf(keys, size), Arrays.copyOf(vals, size));
   }
 }
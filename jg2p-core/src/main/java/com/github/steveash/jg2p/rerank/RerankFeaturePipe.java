@@ -33,6 +33,8 @@ import cc.mallet.types.Instance;
  */
 public class RerankFeaturePipe extends Pipe {
 
+  private static final long serialVersionUID = 879386662817286061L;
+
   private final ImmutableList<? extends RerankFeature> features;
   private final Alphabet dataDict;
 
@@ -46,8 +48,9 @@ public class RerankFeaturePipe extends Pipe {
   public Instance pipe(Instance inst) {
     List<RerankExample> entries = (List<RerankExample>) inst.getData();
     FeatureVector[] output = new FeatureVector[entries.size()];
+    RerankFeatureBag bag = new RerankFeatureBag(dataDict, null);
     for (int i = 0; i < entries.size(); i++) {
-      RerankFeatureBag bag = new RerankFeatureBag(dataDict, entries.get(i));
+      bag.reset(entries.get(i));
       for (RerankFeature feature : features) {
         feature.emitFeatures(bag);
       }
@@ -56,4 +59,12 @@ public class RerankFeaturePipe extends Pipe {
     inst.setData(new FeatureVectorSequence(output));
     return inst;
   }
+
+  ImmutableList<? extends RerankFeature> getFeatures() {
+    return features;
+  }
+
+  Alphabet getDataDict() {
+    return dataDict;
+  }
 }
@@ -95,4 +95,8 @@ public class AlignmentToTokenSequence extends Pipe implements Serializable {
     }
     return ts;
   }
+
+  boolean isUpdateSyllable() {
+    return updateSyllable;
+  }
 }
@@ -0,0 +1,661 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.phoseq.Graphemes;
+import com.github.steveash.jg2p.syll.SyllStructure;
+import com.github.steveash.jg2p.syll.SyllTagTrainer;
+import com.github.steveash.jg2p.util.HashingAlphabet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.SerialPipes;
+import cc.mallet.pipe.Target2LabelSequence;
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence;
+import cc.mallet.pipe.TokenSequenceLowercase;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+
+import static com.google.common.base.CharMatcher.WHITESPACE;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Inference time replacement for the pronouncer's Mallet input pipe.  The pipe builds a Token per grapheme, then each
+ * feature pipe concatenates thousands of feature strings in to the tokens' property lists, and finally every string
+ * is looked up in the alphabet.  This is "compiled" from the trained pipe configuration: each feature pipe becomes a
+ * template that writes its feature key in to a reusable char buffer (straight from the flattened grapheme and
+ * syllable chars) and the key is looked up in an open addressing table over the frozen alphabet.  So the only
+ * allocations per word are the syllable structure and the output vectors; the vectors are identical to what the
+ * Mallet pipe produces.  If the features are hashed (see HashingAlphabet) then there is no table and the key's hash
+ * is the feature index.
+ * <p>
+ * Only the pipes that the PhonemeCrfTrainer uses are supported; compile() returns null for anything else (or if the
+ * alphabet can still grow) and callers should keep using the Mallet pipe.  Instances are read only and extract() is
+ * safe to call from multiple threads.
+ *
+ * @author Steve Ash
+ */
+public class CompiledFeatureExtractor {
+
+  private static final Logger log = LoggerFactory.getLogger(CompiledFeatureExtractor.class);
+
+  private static final ThreadLocal<Scratch> perThread = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * @return the compiled extractor for the given input pipe or null if there is some part of the pipe that this
+   * can't reproduce exactly
+   */
+  public static CompiledFeatureExtractor compile(Pipe inputPipe) {
+    if (!(inputPipe instanceof SerialPipes)) {
+      return null;
+    }
+    Alphabet alphabet = inputPipe.getDataAlphabet();
+    // hashed features never grow so it doesn't matter if the training code forgot to stop it
+    if (alphabet == null || (!alphabet.growthStopped() && !(alphabet instanceof HashingAlphabet))) {
+      return null;
+    }
+    List<Pipe> pipes = ((SerialPipes) inputPipe).pipes();
+    if (pipes.size() < 2 || pipes.get(0).getClass() != AlignmentToTokenSequence.class ||
+        pipes.get(1).getClass() != TokenSequenceLowercase.class) {
+      return null;
+    }
+    boolean hasSylls = ((AlignmentToTokenSequence) pipes.get(0)).isUpdateSyllable();
+    boolean vectorized = false;
+    ImmutableList.Builder<Template> templates = ImmutableList.builder();
+    for (Pipe pipe : pipes.subList(2, pipes.size())) {
+      if (vectorized) {
+        // only the label pipe can come after the vectors (and it doesn't do anything without a target)
+        if (pipe.getClass() != Target2LabelSequence.class) {
+          return null;
+        }
+        continue;
+      }
+      Class<?> clazz = pipe.getClass();
+      if (clazz == NeighborTokenFeature.class || clazz == NeighborShapeFeature.class) {
+        NeighborTokenFeature neighbor = (NeighborTokenFeature) pipe;
+        for (TokenWindow window : neighbor.getWindows()) {
+          if (!isValid(window)) {
+            return null;
+          }
+          templates.add(new WindowTemplate(neighbor.prefix(), window, clazz == NeighborShapeFeature.class,
+                                           neighbor.isIncludeCurrent(), false));
+        }
+      } else if (clazz == NeighborSyllableFeature.class && hasSylls) {
+        for (TokenWindow window : ((NeighborSyllableFeature) pipe).getWindows()) {
+          if (!isValid(window)) {
+            return null;
+          }
+          templates.add(new WindowTemplate("SYN_", window, false, false, true));
+        }
+      } else if (clazz == SyllCountingFeature.class && hasSylls) {
+        templates.add(new SyllCountTemplate());
+      } else if (clazz == SyllCharRoleFeature.class && hasSylls) {
+        templates.add(new SyllCharRoleTemplate());
+      } else if (clazz == EndingVowelFeature.class && hasSylls) {
+        templates.add(new EndingVowelTemplate());
+      } else if (clazz == VowelWindowFeature.class && hasSylls) {
+        templates.add(new VowelWindowTemplate((VowelWindowFeature) pipe));
+      } else if (clazz == SurroundingTokenFeature2.class) {
+        SurroundingTokenFeature2 surrounding = (SurroundingTokenFeature2) pipe;
+        if (surrounding.getBeforeChars() <= 0 || surrounding.getAfterChars() <= 0) {
+          return null;
+        }
+        templates.add(new SurroundingTemplate(surrounding));
+      } else if (clazz == TokenSequenceToFeature.class) {
+        templates.add(new TokenTextTemplate());
+      } else if (clazz == TokenSequence2FeatureVectorSequence.class) {
+        vectorized = true;
+      } else {
+        log.info("Can't compile the feature pipe " + clazz.getSimpleName() + " so using the mallet pipe");
+        return null;
+      }
+    }
+    if (!vectorized) {
+      return null;
+    }
+    return new CompiledFeatureExtractor(alphabet, hasSylls, templates.build());
+  }
+
+  // the window pipes throw for these; so leave it to them
+  private static boolean isValid(TokenWindow window) {
+    if (window.width <= 0 || window.offset == 0) {
+      return false;
+    }
+    return window.offset > 0 || window.offset + window.width <= 0;
+  }
+
+  private final Alphabet alphabet;
+  private final HashingAlphabet hashing; // not null if the features are hashed; then there isn't a table
+  private final boolean hasSylls;
+  private final List<Template> templates;
+  private final String[] keys;
+  private final int[] slots; // id + 1 of the key in that slot; 0 = empty
+  private final int slotMask;
+
+  private CompiledFeatureExtractor(Alphabet alphabet, boolean hasSylls, List<Template> templates) {
+    this.alphabet = alphabet;
+    this.hasSylls = hasSylls;
+    this.templates = templates;
+    if (alphabet instanceof HashingAlphabet) {
+      this.hashing = (HashingAlphabet) alphabet;
+      this.keys = null;
+      this.slots = null;
+      this.slotMask = 0;
+      return;
+    }
+    this.hashing = null;
+    int size = alphabet.size();
+    this.keys = new String[size];
+    int slotCount = 2;
+    while (slotCount < size * 2) {
+      slotCount <<= 1;
+    }
+    this.slots = new int[slotCount];
+    this.slotMask = slotCount - 1;
+    for (int i = 0; i < size; i++) {
+      Object entry = alphabet.lookupObject(i);
+      if (!(entry instanceof String)) {
+        continue; // can't be produced by any of the feature pipes
+      }
+      String key = (String) entry;
+      keys[i] = key;
+      int slot = mix(key.hashCode()) & slotMask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & slotMask;
+      }
+      slots[slot] = i + 1;
+    }
+  }
+
+  public Alphabet getAlphabet() {
+    return alphabet;
+  }
+
+  /**
+   * @return the same feature vector sequence that the Mallet input pipe would produce for this alignment
+   */
+  public FeatureVectorSequence extract(Alignment alignment) {
+    Scratch s = perThread.get();
+    List<String> tokens = alignment.getAllXTokensAsList();
+    SyllStructure struct = null;
+    if (hasSylls) {
+      checkNotNull(alignment.getGraphoneSyllableGrams(), "no syllables", alignment);
+      struct = new SyllStructure(alignment);
+      Preconditions.checkState(struct.getOncGrams().size() == tokens.size(), "graphemes and syll markers not equal");
+    }
+    s.prepare(tokens, struct);
+    FeatureVector[] vectors = new FeatureVector[tokens.size()];
+    for (int i = 0; i < tokens.size(); i++) {
+      s.idCount = 0;
+      for (int j = 0; j < templates.size(); j++) {
+        templates.get(j).emit(s, i, this);
+      }
+      // this sorts and removes duplicates the same as the mallet pipe does
+      vectors[i] = new FeatureVector(alphabet, Arrays.copyOf(s.ids, s.idCount));
+    }
+    return new FeatureVectorSequence(vectors);
+  }
+
+  // looks up the key that is in the scratch buffer and records its id if its a known feature
+  private void lookup(Scratch s) {
+    if (hashing != null) {
+      // the key hash is the same as the String.hashCode() of the key
+      s.addId(hashing.bucketFor(s.keyHash));
+      return;
+    }
+    int slot = mix(s.keyHash) & slotMask;
+    while (true) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return;
+      }
+      if (matches(keys[entry - 1], s.key, s.keyLength)) {
+        s.addId(entry - 1);
+        return;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  private static boolean matches(String key, char[] chars, int length) {
+    if (key.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (key.charAt(i) != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static char shapeOf(char c) {
+    if (Graphemes.consonants.matches(c)) {
+      return 'c';
+    } else if (Graphemes.vowels.matches(c)) {
+      return 'v';
+    } else if (WHITESPACE.matches(c)) {
+      return 's';
+    }
+    return 'p';
+  }
+
+  /**
+   * Per thread working state: the lower cased token text (with spaces), the same without spaces for the windows,
+   * the syllable codes without spaces, and the key being built
+   */
+  private static class Scratch {
+    private String[] text = new String[16];
+    private char[] graphs = new char[64];
+    private int graphCount;
+    private int[] graphStart = new int[16];
+    private int[] graphEnd = new int[16];
+    private char[] sylls = new char[64];
+    private int syllCount;
+    private int[] syllStart = new int[16];
+    private int[] syllEnd = new int[16];
+    private int tokenCount;
+    private SyllStructure struct;
+
+    private char[] key = new char[64];
+    private int keyLength;
+    private int keyHash;
+
+    private int[] ids = new int[256];
+    private int idCount;
+
+    void prepare(List<String> tokens, SyllStructure struct) {
+      this.tokenCount = tokens.size();
+      this.struct = struct;
+      if (text.length < tokenCount) {
+        int size = Math.max(tokenCount, text.length * 2);
+        text = new String[size];
+        graphStart = new int[size];
+        graphEnd = new int[size];
+        syllStart = new int[size];
+        syllEnd = new int[size];
+      }
+      graphCount = 0;
+      for (int i = 0; i < tokenCount; i++) {
+        // same as the TokenSequenceLowercase pipe; this is the original string if its already lower case
+        String lower = tokens.get(i).toLowerCase();
+        text[i] = lower;
+        graphStart[i] = graphCount;
+        graphCount = appendNonSpace(lower, true);
+        graphEnd[i] = graphCount;
+      }
+      syllCount = 0;
+      if (struct != null) {
+        List<String> oncGrams = struct.getOncGrams();
+        for (int i = 0; i < tokenCount; i++) {
+          syllStart[i] = syllCount;
+          syllCount = appendNonSpace(oncGrams.get(i), false);
+          syllEnd[i] = syllCount;
+        }
+      }
+    }
+
+    // the window functions skip spaces so we flatten everything without them
+    private int appendNonSpace(String value, boolean toGraphs) {
+      int count = toGraphs ? graphCount : syllCount;
+      char[] dest = toGraphs ? graphs : sylls;
+      if (dest.length < count + value.length()) {
+        dest = Arrays.copyOf(dest, Math.max(dest.length * 2, count + value.length()));
+        if (toGraphs) {
+          graphs = dest;
+        } else {
+          sylls = dest;
+        }
+      }
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c != ' ') {
+          dest[count++] = c;
+        }
+      }
+      return count;
+    }
+
+    void startKey() {
+      keyLength = 0;
+      keyHash = 0;
+    }
+
+    void append(char c) {
+      if (keyLength == key.length) {
+        key = Arrays.copyOf(key, key.length * 2);
+      }
+      key[keyLength++] = c;
+      keyHash = (31 * keyHash) + c;
+    }
+
+    void append(String value) {
+      for (int i = 0; i < value.length(); i++) {
+        append(value.charAt(i));
+      }
+    }
+
+    void append(String value, boolean shape) {
+      for (int i = 0; i < value.length(); i++) {
+        append(shape ? shapeOf(value.charAt(i)) : value.charAt(i));
+      }
+    }
+
+    void append(char[] source, int start, int end, boolean shape) {
+      for (int i = start; i < end; i++) {
+        append(shape ? shapeOf(source[i]) : source[i]);
+      }
+    }
+
+    // matches String.valueOf(int) without making the string
+    void append(int value) {
+      if (value < 0) {
+        append('-');
+        if (value == Integer.MIN_VALUE) {
+          append("2147483648");
+          return;
+        }
+        value = -value;
+      }
+      int digits = 1;
+      for (int v = value / 10; v > 0; v /= 10) {
+        digits *= 10;
+      }
+      for (; digits > 0; digits /= 10) {
+        append((char) ('0' + ((value / digits) % 10)));
+      }
+    }
+
+    void addId(int id) {
+      if (idCount == ids.length) {
+        ids = Arrays.copyOf(ids, ids.length * 2);
+      }
+      ids[idCount++] = id;
+    }
+  }
+
+  private abstract static class Template {
+    abstract void emit(Scratch s, int i, CompiledFeatureExtractor x);
+  }
+
+  // NeighborTokenFeature, NeighborShapeFeature, and NeighborSyllableFeature
+  private static class WindowTemplate extends Template {
+    private final String prefix;
+    private final int offset;
+    private final int width;
+    private final boolean shape;
+    private final boolean includeCurrent;
+    private final boolean overSylls;
+
+    WindowTemplate(String prefix, TokenWindow window, boolean shape, boolean includeCurrent, boolean overSylls) {
+      this.prefix = prefix;
+      this.offset = window.offset;
+      this.width = window.width;
+      this.shape = shape;
+      this.includeCurrent = includeCurrent;
+      this.overSylls = overSylls;
+    }
+
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      if (overSylls && s.text[i].length() != s.struct.oncGramForGraphoneIndex(i).length()) {
+        throw new IllegalStateException("grams doesnt match syll grams " + s.text[i] + " - " + s.struct.getOncGrams());
+      }
+      char[] chars = overSylls ? s.sylls : s.graphs;
+      int count = overSylls ? s.syllCount : s.graphCount;
+      int start;
+      if (offset < 0) {
+        start = (overSylls ? s.syllStart[i] : s.graphStart[i]) + offset;
+        if (start < 0) {
+          return;
+        }
+      } else {
+        start = (overSylls ? s.syllEnd[i] : s.graphEnd[i]) + offset - 1;
+        if (start + width > count) {
+          return;
+        }
+      }
+      s.startKey();
+      s.append(prefix);
+      s.append(chars, start, start + width, shape);
+      s.append('@');
+      s.append(offset);
+      if (includeCurrent) {
+        s.append('^');
+        s.append(s.text[i]);
+      }
+      x.lookup(s);
+    }
+  }
+
+  // SurroundingTokenFeature2
+  private static class SurroundingTemplate extends Template {
+    private final boolean shape;
+    private final String prefix;
+    private final int beforeChars;
+    private final int afterChars;
+
+    SurroundingTemplate(SurroundingTokenFeature2 pipe) {
+      this.shape = pipe.isOnlyShape();
+      this.prefix = pipe.getPrefix();
+      this.beforeChars = pipe.getBeforeChars();
+      this.afterChars = pipe.getAfterChars();
+    }
+
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      if (i < 1 || i >= s.tokenCount - 1) {
+        return;
+      }
+      int beforeStart = s.graphStart[i] - beforeChars;
+      int afterStart = s.graphEnd[i];
+      if (beforeStart < 0 || afterStart + afterChars > s.graphCount) {
+        return;
+      }
+      if (isBlank(s.graphs, beforeStart, s.graphStart[i]) || isBlank(s.graphs, afterStart, afterStart + afterChars)) {
+        return;
+      }
+      s.startKey();
+      s.append(prefix);
+      s.append(s.graphs, beforeStart, s.graphStart[i], shape);
+      s.append('^');
+      s.append(s.text[i], shape);
+      s.append('^');
+      s.append(s.graphs, afterStart, afterStart + afterChars, shape);
+      x.lookup(s);
+    }
+
+    private static boolean isBlank(char[] chars, int start, int end) {
+      for (int i = start; i < end; i++) {
+        if (!Character.isWhitespace(chars[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  // TokenSequenceToFeature
+  private static class TokenTextTemplate extends Template {
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      s.startKey();
+      s.append(s.text[i]);
+      x.lookup(s);
+    }
+  }
+
+  // SyllCountingFeature
+  private static class SyllCountTemplate extends Template {
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      s.startKey();
+      s.append("SYLLCNT_");
+      s.append(s.struct.getSyllIndexForGraphoneGramIndex(i));
+      x.lookup(s);
+    }
+  }
+
+  // SyllCharRoleFeature; walks the whitespace separated symbols of the token and its onc gram together
+  private static class SyllCharRoleTemplate extends Template {
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      String text = s.text[i];
+      String codes = s.struct.oncGramForGraphoneIndex(i);
+      int t = 0;
+      int c = 0;
+      while (true) {
+        t = skipWhitespace(text, t);
+        if (t >= text.length()) {
+          return;
+        }
+        int tEnd = endOfSymbol(text, t);
+        c = skipWhitespace(codes, c);
+        if (c >= codes.length()) {
+          throw new IndexOutOfBoundsException("no onc code for " + text + " in " + codes);
+        }
+        int cEnd = endOfSymbol(codes, c);
+        s.startKey();
+        s.append("SYLLCHROL_");
+        appendRange(s, text, t, tEnd);
+        s.append('_');
+        appendRange(s, codes, c, cEnd);
+        x.lookup(s);
+        t = tEnd;
+        c = cEnd;
+      }
+    }
+
+    private static int skipWhitespace(String value, int index) {
+      while (index < value.length() && WHITESPACE.matches(value.charAt(index))) {
+        index += 1;
+      }
+      return index;
+    }
+
+    private static int endOfSymbol(String value, int index) {
+      while (index < value.length() && !WHITESPACE.matches(value.charAt(index))) {
+        index += 1;
+      }
+      return index;
+    }
+
+    private static void appendRange(Scratch s, String value, int start, int end) {
+      for (int i = start; i < end; i++) {
+        s.append(value.charAt(i));
+      }
+    }
+  }
+
+  // EndingVowelFeature
+  private static class EndingVowelTemplate extends Template {
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      String lastToken = s.text[s.tokenCount - 1];
+      char lastChar = lastToken.charAt(lastToken.length() - 1);
+      if (lastChar != 'y' && lastChar != 'e') {
+        return;
+      }
+      String text = s.text[i];
+      String codes = s.struct.oncGramForGraphoneIndex(i);
+      Preconditions.checkState(text.length() == codes.length(), "grams doesnt match syll grams");
+      boolean tagged = false;
+      for (int j = 0; j < text.length(); j++) {
+        char textChar = text.charAt(j);
+        char syllChar = codes.charAt(j);
+        if (Character.isWhitespace(textChar) || Character.isWhitespace(syllChar)) {
+          Preconditions.checkState(textChar == syllChar, "mismatched whitespace in gram");
+          continue;
+        }
+        if (!tagged && Graphemes.vowels.matches(Character.toUpperCase(textChar)) &&
+            syllChar == SyllTagTrainer.NucleusChar) {
+          // only the first nucleus vowel in the gram is tagged
+          s.startKey();
+          s.append("TE_VOWEL_");
+          s.append(textChar);
+          boolean before = s.struct.getSyllIndexForGraphoneGramIndex(i) < s.struct.getLastSyllIndex();
+          s.append(before ? "_BEFORE" : "_END");
+          x.lookup(s);
+          tagged = true;
+        }
+      }
+    }
+  }
+
+  // VowelWindowFeature; the syllable part is small so this just uses the string that the struct makes
+  private static class VowelWindowTemplate extends Template {
+    private final int maxOnset;
+    private final int maxCoda;
+    private final String prefix;
+    private final int relativeIndex;
+    private final boolean onlyLast;
+
+    VowelWindowTemplate(VowelWindowFeature pipe) {
+      this.maxOnset = pipe.getMaxOnset();
+      this.maxCoda = pipe.getMaxCoda();
+      this.prefix = pipe.getPrefix();
+      this.relativeIndex = pipe.getRelativeIndex();
+      this.onlyLast = pipe.isOnlyLast();
+    }
+
+    @Override
+    void emit(Scratch s, int i, CompiledFeatureExtractor x) {
+      SyllStructure struct = s.struct;
+      if (!struct.graphoneGramIndexContainsNucleus(i)) {
+        return;
+      }
+      int syllIndex = struct.getSyllIndexForGraphoneGramIndex(i);
+      int targetSyll;
+      if (onlyLast) {
+        if (syllIndex >= struct.getLastSyllIndex()) {
+          return;
+        }
+        targetSyll = struct.getLastSyllIndex();
+      } else if (relativeIndex != 0) {
+        targetSyll = syllIndex + relativeIndex;
+        if (targetSyll < 0 || targetSyll > struct.getLastSyllIndex()) {
+          return;
+        }
+      } else {
+        return;
+      }
+      s.startKey();
+      s.append(prefix);
+      s.append(struct.getSyllPart(targetSyll, maxOnset, -1, maxCoda));
+      x.lookup(s);
+    }
+  }
+}
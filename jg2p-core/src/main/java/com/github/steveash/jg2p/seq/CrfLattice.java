@@ -0,0 +1,385 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cc.mallet.fst.Transducer;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.Sequence;
+
+/**
+ * Reusable replacement for the Mallet MaxLattice + SumLattice combination that we use at inference time.  The Mallet
+ * lattices each re-evaluate every transition weight (the expensive feature dot products) and allocate node objects
+ * for every cell; so tagging one word with n-best outputs was evaluating all of the transitions 2 + n times.  This
+ * evaluates each transition once in prepare() (computing the forward pass at the same time) and then answers the
+ * partition, k-best and constrained queries from primitive arrays.
+ * <p>
+ * The buffers grow to fit the longest input (and largest transducer) seen and are then reused, so an instance is
+ * NOT thread safe.  Use forCurrentThread() to get the instance owned by the calling thread.  Results (sequences,
+ * weights) are copied out so they remain valid after the lattice is prepared for the next input.
+ *
+ * @author Steve Ash
+ */
+public class CrfLattice {
+
+  private static final ThreadLocal<CrfLattice> perThread = new ThreadLocal<CrfLattice>() {
+    @Override
+    protected CrfLattice initialValue() {
+      return new CrfLattice();
+    }
+  };
+
+  /**
+   * @return the lattice owned by the calling thread; it is only valid until this thread prepares it again
+   */
+  public static CrfLattice forCurrentThread() {
+    return perThread.get();
+  }
+
+  private static final double NEG_INF = Double.NEGATIVE_INFINITY;
+
+  private int length;      // the input size; the lattice has length + 1 positions
+  private int numStates;
+  private double logZ;
+
+  private double[] initialWeights = new double[0];
+  private double[] finalWeights = new double[0];
+  // forward log weights indexed by (position * numStates) + state
+  private double[] alpha = new double[0];
+  private double[] scratch = new double[0];
+
+  // evaluated transitions in CSR layout: the edges out of (position, state) are the range
+  // [edgeStart[position * numStates + state], edgeStart[position * numStates + state + 1])
+  private int[] edgeStart = new int[0];
+  private int edgeCount;
+  private int[] edgeSource = new int[0];
+  private int[] edgeDest = new int[0];
+  private double[] edgeWeight = new double[0];
+  private Object[] edgeOutput = new Object[0];
+
+  // k-best viterbi entries indexed by ((position * numStates) + state) * k + rank, sorted best first per cell
+  private int kbest;
+  private double[] kScore = new double[0];
+  private int[] kEdge = new int[0];
+  private int[] kRank = new int[0];
+  private int[] kCount = new int[0];
+  private int[] kHead = new int[0];
+
+  /**
+   * Evaluates all of the reachable transitions for this input and runs the forward pass.  Must be called before
+   * any of the query methods
+   */
+  public void prepare(Transducer tduc, Sequence<?> input) {
+    this.length = input.size();
+    this.numStates = tduc.numStates();
+    int cells = (length + 1) * numStates;
+    initialWeights = ensure(initialWeights, numStates);
+    finalWeights = ensure(finalWeights, numStates);
+    alpha = ensure(alpha, cells);
+    Arrays.fill(alpha, 0, cells, NEG_INF);
+    if (edgeStart.length < cells + 1) {
+      edgeStart = new int[cells + 1];
+    }
+
+    for (int s = 0; s < numStates; s++) {
+      Transducer.State state = tduc.getState(s);
+      initialWeights[s] = state.getInitialWeight();
+      finalWeights[s] = state.getFinalWeight();
+      if (initialWeights[s] > NEG_INF) {
+        alpha[s] = initialWeights[s];
+      }
+    }
+
+    edgeCount = 0;
+    for (int ip = 0; ip < length; ip++) {
+      int base = ip * numStates;
+      int nextBase = base + numStates;
+      for (int s = 0; s < numStates; s++) {
+        edgeStart[base + s] = edgeCount;
+        double a = alpha[base + s];
+        if (a == NEG_INF) {
+          continue;
+        }
+        Transducer.TransitionIterator iter = tduc.getState(s).transitionIterator(input, ip, null, ip);
+        while (iter.hasNext()) {
+          iter.next();
+          int d = iter.getDestinationState().getIndex();
+          double w = iter.getWeight();
+          addEdge(s, d, w, iter.getOutput());
+          alpha[nextBase + d] = Transducer.sumLogProb(alpha[nextBase + d], a + w);
+        }
+      }
+    }
+    for (int i = length * numStates; i <= cells; i++) {
+      edgeStart[i] = edgeCount;
+    }
+
+    logZ = NEG_INF;
+    int lastBase = length * numStates;
+    for (int s = 0; s < numStates; s++) {
+      if (alpha[lastBase + s] > NEG_INF) {
+        logZ = Transducer.sumLogProb(logZ, alpha[lastBase + s] + finalWeights[s]);
+      }
+    }
+  }
+
+  /**
+   * @return the log partition function (log Z) of the prepared input; same as SumLattice.getTotalWeight()
+   */
+  public double logPartition() {
+    return logZ;
+  }
+
+  /**
+   * @return the log of the (unnormalized) sum of weights of all of the paths that emit the given output; same as
+   * the total weight of a SumLattice constrained to the given output sequence
+   */
+  public double constrainedLogWeight(Sequence<?> output) {
+    Preconditions.checkArgument(output.size() == length, "output is not the same length as the input");
+    int cells = (length + 1) * numStates;
+    scratch = ensure(scratch, cells);
+    Arrays.fill(scratch, 0, cells, NEG_INF);
+    for (int s = 0; s < numStates; s++) {
+      if (initialWeights[s] > NEG_INF) {
+        scratch[s] = initialWeights[s];
+      }
+    }
+    for (int ip = 0; ip < length; ip++) {
+      int base = ip * numStates;
+      int nextBase = base + numStates;
+      Object expected = output.get(ip);
+      for (int s = 0; s < numStates; s++) {
+        double a = scratch[base + s];
+        if (a == NEG_INF) {
+          continue;
+        }
+        for (int e = edgeStart[base + s]; e < edgeStart[base + s + 1]; e++) {
+          if (!expected.equals(edgeOutput[e])) {
+            continue;
+          }
+          int d = edgeDest[e];
+          scratch[nextBase + d] = Transducer.sumLogProb(scratch[nextBase + d], a + edgeWeight[e]);
+        }
+      }
+    }
+    double total = NEG_INF;
+    int lastBase = length * numStates;
+    for (int s = 0; s < numStates; s++) {
+      if (scratch[lastBase + s] > NEG_INF) {
+        total = Transducer.sumLogProb(total, scratch[lastBase + s] + finalWeights[s]);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Runs a k-best viterbi over the prepared transitions and returns up to n output sequences, best first; same as
+   * MaxLattice.bestOutputSequences(n) except that the paths are strictly ranked by their full weight (initial +
+   * transitions + final).  The A* search in MaxLatticeDefault leaves the final state weight out of the path cost
+   * but not out of its heuristic, so it can return neighboring candidates slightly out of order
+   */
+  public List<Sequence<Object>> bestOutputSequences(int n) {
+    List<ScoredPath> paths = bestPaths(n);
+    List<Sequence<Object>> results = Lists.newArrayListWithCapacity(paths.size());
+    for (ScoredPath path : paths) {
+      results.add(path.getOutput());
+    }
+    return results;
+  }
+
+  /**
+   * Same as bestOutputSequences(n) but each output carries the weight of its viterbi path and its log probability
+   * (that weight minus log Z), so the n-best candidates can be scored without a constrained lattice per candidate.
+   * This is the same as constrainedLogWeight(output) - logPartition() when each output sequence has exactly one
+   * state path through the transducer, which is true for all of our label-state CRFs
+   */
+  public List<ScoredPath> bestPaths(int n) {
+    Preconditions.checkArgument(n > 0, "must ask for at least one sequence");
+    viterbi(n);
+
+    List<ScoredPath> results = Lists.newArrayListWithCapacity(n);
+    int lastBase = length * numStates;
+    kHead = ensure(kHead, numStates);
+    Arrays.fill(kHead, 0, numStates, 0);
+    while (results.size() < n) {
+      // pick the best remaining final entry across all of the states
+      int bestState = -1;
+      double bestScore = NEG_INF;
+      for (int s = 0; s < numStates; s++) {
+        int cell = lastBase + s;
+        if (kHead[s] < kCount[cell]) {
+          double score = kScore[cell * kbest + kHead[s]];
+          if (score > bestScore) {
+            bestScore = score;
+            bestState = s;
+          }
+        }
+      }
+      if (bestState < 0) {
+        break;
+      }
+      results.add(new ScoredPath(backtrack(bestState, kHead[bestState]), bestScore, bestScore - logZ));
+      kHead[bestState] += 1;
+    }
+    return results;
+  }
+
+  private void viterbi(int k) {
+    this.kbest = k;
+    int cells = (length + 1) * numStates;
+    kCount = ensure(kCount, cells);
+    Arrays.fill(kCount, 0, cells, 0);
+    kScore = ensure(kScore, cells * k);
+    kEdge = ensure(kEdge, cells * k);
+    kRank = ensure(kRank, cells * k);
+
+    for (int s = 0; s < numStates; s++) {
+      if (initialWeights[s] > NEG_INF) {
+        kScore[s * k] = initialWeights[s];
+        kEdge[s * k] = -1;
+        kCount[s] = 1;
+      }
+    }
+    for (int ip = 0; ip < length; ip++) {
+      int base = ip * numStates;
+      int nextBase = base + numStates;
+      boolean isLast = (ip == length - 1);
+      for (int s = 0; s < numStates; s++) {
+        int cell = base + s;
+        int count = kCount[cell];
+        if (count == 0) {
+          continue;
+        }
+        for (int e = edgeStart[cell]; e < edgeStart[cell + 1]; e++) {
+          int d = edgeDest[e];
+          double w = edgeWeight[e];
+          if (isLast) {
+            w += finalWeights[d];
+          }
+          for (int r = 0; r < count; r++) {
+            if (!offer(nextBase + d, kScore[cell * k + r] + w, e, r)) {
+              break; // the entries are sorted so none of the rest can get in either
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // inserts the entry in to the sorted top-k for the cell; returns false if it didn't make the cut
+  private boolean offer(int cell, double score, int edge, int rank) {
+    int k = kbest;
+    int count = kCount[cell];
+    int start = cell * k;
+    if (!(score > NEG_INF)) {
+      return false;
+    }
+    if (count == k && !(score > kScore[start + k - 1])) {
+      return false;
+    }
+    int pos = Math.min(count, k - 1);
+    while (pos > 0 && score > kScore[start + pos - 1]) {
+      kScore[start + pos] = kScore[start + pos - 1];
+      kEdge[start + pos] = kEdge[start + pos - 1];
+      kRank[start + pos] = kRank[start + pos - 1];
+      pos -= 1;
+    }
+    kScore[start + pos] = score;
+    kEdge[start + pos] = edge;
+    kRank[start + pos] = rank;
+    if (count < k) {
+      kCount[cell] = count + 1;
+    }
+    return true;
+  }
+
+  private Sequence<Object> backtrack(int finalState, int finalRank) {
+    Object[] outputs = new Object[length];
+    int state = finalState;
+    int rank = finalRank;
+    for (int ip = length; ip > 0; ip--) {
+      int entry = ((ip * numStates) + state) * kbest + rank;
+      int edge = kEdge[entry];
+      outputs[ip - 1] = edgeOutput[edge];
+      rank = kRank[entry];
+      state = edgeSource[edge];
+    }
+    return new ArraySequence<Object>(outputs, false);
+  }
+
+  private void addEdge(int source, int dest, double weight, Object output) {
+    if (edgeCount == edgeDest.length) {
+      int newSize = Math.max(256, edgeCount * 2);
+      edgeSource = Arrays.copyOf(edgeSource, newSize);
+      edgeDest = Arrays.copyOf(edgeDest, newSize);
+      edgeWeight = Arrays.copyOf(edgeWeight, newSize);
+      edgeOutput = Arrays.copyOf(edgeOutput, newSize);
+    }
+    edgeSource[edgeCount] = source;
+    edgeDest[edgeCount] = dest;
+    edgeWeight[edgeCount] = weight;
+    edgeOutput[edgeCount] = output;
+    edgeCount += 1;
+  }
+
+  private static double[] ensure(double[] array, int size) {
+    if (array.length >= size) {
+      return array;
+    }
+    return new double[Math.max(size, array.length * 2)];
+  }
+
+  private static int[] ensure(int[] array, int size) {
+    if (array.length >= size) {
+      return array;
+    }
+    return new int[Math.max(size, array.length * 2)];
+  }
+
+  /**
+   * One of the k-best outputs with its unnormalized path weight and its normalized log probability
+   */
+  public static class ScoredPath {
+
+    private final Sequence<Object> output;
+    private final double logWeight;
+    private final double logProb;
+
+    private ScoredPath(Sequence<Object> output, double logWeight, double logProb) {
+      this.output = output;
+      this.logWeight = logWeight;
+      this.logProb = logProb;
+    }
+
+    public Sequence<Object> getOutput() {
+      return output;
+    }
+
+    public double getLogWeight() {
+      return logWeight;
+    }
+
+    public double getLogProb() {
+      return logProb;
+    }
+  }
+}
@@ -71,4 +71,8 @@ public class NeighborSyllableFeature extends Pipe {
     }
     return carrier;
   }
+
+  List<TokenWindow> getWindows() {
+    return windows;
+  }
 }
@@ -21,7 +21,10 @@ import com.google.common.collect.Lists;
 
 import com.github.steveash.jg2p.align.Alignment;
 import com.github.steveash.jg2p.util.GramBuilder;
+import com.github.steveash.jg2p.util.LazyValue;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,6 +37,9 @@ import cc.mallet.types.Sequence;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 /**
+ * The pronouncer CRF that tags each grapheme of an alignment with its phoneme(s).  tag() is safe to call from
+ * multiple threads at once: the model itself is read only and each thread does its lattice work in its own
+ * reusable CrfLattice
  * @author Steve Ash
  */
 public class PhonemeCrfModel implements Serializable {
@@ -41,28 +47,64 @@ public class PhonemeCrfModel implements Serializable {
   private static final long serialVersionUID = 1888858574145460221L;
 
   private final Transducer tduc;
+  // compiled lazily from the input pipe
+  private transient LazyValue<CompiledFeatureExtractor> extractor;
 
   public PhonemeCrfModel(Transducer tduc) {
     this.tduc = tduc;
+    this.extractor = makeExtractor();
   }
 
-  public List<TagResult> tag(Alignment alignment, int nBest) {
-    Instance instance = new Instance(alignment, null, null, null);
-    instance = tduc.getInputPipe().instanceFrom(instance);
+  private LazyValue<CompiledFeatureExtractor> makeExtractor() {
+    return new LazyValue<CompiledFeatureExtractor>() {
+      @Override
+      protected CompiledFeatureExtractor compute() {
+        return CompiledFeatureExtractor.compile(tduc.getInputPipe());
+      }
+    };
+  }
 
-    Sequence inSeq = (Sequence) instance.getData();
-    List<Sequence<Object>> outSeqs = tduc.getMaxLatticeFactory().newMaxLattice(tduc, inSeq).bestOutputSequences(nBest);
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.extractor = makeExtractor();
+  }
 
-    ArrayList<TagResult> results = Lists.newArrayListWithCapacity(outSeqs.size());
-    double z = tduc.getSumLatticeFactory().newSumLattice(tduc, inSeq).getTotalWeight();
-    for (Sequence<Object> outSeq : outSeqs) {
-      double score = tduc.getSumLatticeFactory().newSumLattice(tduc, inSeq, outSeq).getTotalWeight();
-      results.add(makeTagResult(outSeq, score - z));
+  public List<TagResult> tag(Alignment alignment, int nBest) {
+    Sequence<?> inSeq = extractFeatures(alignment);
+    CrfLattice lattice = CrfLattice.forCurrentThread();
+    lattice.prepare(tduc, inSeq);
+    List<CrfLattice.ScoredPath> paths = lattice.bestPaths(nBest);
+
+    ArrayList<TagResult> results = Lists.newArrayListWithCapacity(paths.size());
+    for (CrfLattice.ScoredPath path : paths) {
+      results.add(makeTagResult(path.getOutput(), path.getLogProb()));
     }
 
     return results;
   }
 
+  /**
+   * @return the input feature vector sequence for the alignment; this uses the compiled feature extractor if the
+   * input pipe can be compiled and the Mallet input pipe if not
+   */
+  public Sequence<?> extractFeatures(Alignment alignment) {
+    CompiledFeatureExtractor compiled = getCompiledExtractor();
+    if (compiled != null) {
+      return compiled.extract(alignment);
+    }
+    Instance instance = new Instance(alignment, null, null, null);
+    instance = tduc.getInputPipe().instanceFrom(instance);
+    return (Sequence<?>) instance.getData();
+  }
+
+  /**
+   * @return the compiled feature extractor or null if the input pipe has something that can't be compiled (or its
+   * alphabet is still growing)
+   */
+  public CompiledFeatureExtractor getCompiledExtractor() {
+    return extractor.get();
+  }
+
   private TagResult makeTagResult(Sequence<?> labels, double logScore) {
     ArrayList<String> phones = Lists.newArrayListWithExpectedSize(labels.size());
     ArrayList<String> graphones = Lists.newArrayListWithCapacity(labels.size());
@@ -17,6 +17,7 @@
 package com.github.steveash.jg2p.seq;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
@@ -26,6 +27,7 @@ import com.github.steveash.jg2p.align.Alignment;
 import com.github.steveash.jg2p.align.TrainOptions;
 import com.github.steveash.jg2p.util.FeatureSelections;
 import com.github.steveash.jg2p.util.GramBuilder;
+import com.github.steveash.jg2p.util.HashingAlphabet;
 import com.github.steveash.jg2p.util.ModelReadWrite;
 import com.github.steveash.jg2p.util.ReadWrite;
 
@@ -41,6 +43,7 @@ import cc.mallet.fst.CRF;
 import cc.mallet.fst.CRFTrainerByLabelLikelihood;
 import cc.mallet.fst.CRFTrainerByThreadedLabelLikelihood;
 import cc.mallet.fst.TokenAccuracyEvaluator;
+import cc.mallet.fst.Transducer;
 import cc.mallet.fst.TransducerTrainer;
 import cc.mallet.pipe.Pipe;
 import cc.mallet.pipe.SerialPipes;
@@ -52,6 +55,7 @@ import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
 import cc.mallet.types.LabelAlphabet;
 import cc.mallet.types.RankedFeatureVector;
+import cc.mallet.types.SparseVector;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
@@ -97,10 +101,70 @@ public class PhonemeCrfTrainer {
     crf.setWeightsDimensionAsIn(examples, false);
 
     if (crfFrom != null) {
-      crf.initializeApplicableParametersFrom(crfFrom);
+      initializeWeightsFrom(crf, crfFrom);
     }
   }
 
+  /**
+   * Warm starts the crf's weights from the weights of another crf.  Mallet matches up the features of the two by
+   * name but a HashingAlphabet doesn't keep the names; so when both are hashed to the same number of bits they're
+   * matched up by index instead (the same feature always hashes to the same index)
+   */
+  static void initializeWeightsFrom(CRF crf, CRF from) {
+    Alphabet alpha = crf.getInputAlphabet();
+    checkCanInitializeFrom(alpha instanceof HashingAlphabet ? ((HashingAlphabet) alpha).getBits() : 0,
+                           from.getInputAlphabet());
+    if (!(alpha instanceof HashingAlphabet)) {
+      crf.initializeApplicableParametersFrom(from);
+      return;
+    }
+    CRF.Factors params = crf.getParameters();
+    CRF.Factors fromParams = from.getParameters();
+    for (int i = 0; i < crf.numStates(); i++) {
+      Transducer.State state = crf.getState(i);
+      CRF.State fromState = from.getState(state.getName());
+      if (fromState != null) {
+        params.initialWeights[state.getIndex()] = fromParams.initialWeights[fromState.getIndex()];
+        params.finalWeights[state.getIndex()] = fromParams.finalWeights[fromState.getIndex()];
+      }
+    }
+    int featureCount = 0;
+    for (int i = 0; i < params.weightAlphabet.size(); i++) {
+      int fromIndex = fromParams.weightAlphabet.lookupIndex(params.weightAlphabet.lookupObject(i), false);
+      if (fromIndex < 0) {
+        continue;
+      }
+      params.defaultWeights[i] = fromParams.defaultWeights[fromIndex];
+      SparseVector weights = params.weights[i];
+      SparseVector fromWeights = fromParams.weights[fromIndex];
+      for (int j = 0; j < weights.numLocations(); j++) {
+        double value = fromWeights.value(weights.indexAtLocation(j));
+        if (value != 0.0) {
+          weights.setValueAtLocation(j, value);
+          featureCount += 1;
+        }
+      }
+    }
+    crf.weightsValueChanged();
+    log.info("Initialized " + featureCount + " hashed feature weights from the previous model");
+  }
+
+  /**
+   * Hashed features can only be warm started from a crf whose features are hashed to the same number of bits (and
+   * named features only from named ones)
+   * @param hashBits the bits that the features of the crf being trained are hashed to or <= 0 if they aren't
+   */
+  static void checkCanInitializeFrom(int hashBits, Alphabet from) {
+    int fromBits = (from instanceof HashingAlphabet ? ((HashingAlphabet) from).getBits() : 0);
+    Preconditions.checkArgument(Math.max(hashBits, 0) == fromBits,
+                                "cant initialize a crf with %s from one with %s", describeFeatures(hashBits),
+                                describeFeatures(fromBits));
+  }
+
+  private static String describeFeatures(int hashBits) {
+    return hashBits > 0 ? "features hashed to " + hashBits + " bits" : "named (unhashed) features";
+  }
+
   private CRF readCrfFrom() throws IOException, ClassNotFoundException {
     return ModelReadWrite.readPronouncerFrom(opts.initCrfFromModelFile).getCrf();
   }
@@ -108,10 +172,18 @@ public class PhonemeCrfTrainer {
   public void trainFor(Collection<Alignment> inputs) {
     // this pipe is the default pipe with new alphabet
     Stopwatch watch = Stopwatch.createStarted();
-    trainRound(inputs, new Alphabet(), 0);
+    Preconditions.checkArgument(opts.crfFeatureHashBits <= 0 || opts.trimFeaturesByGradientGain <= 0,
+                                "cant trim features by gradient when the features are hashed");
+    if (crfFrom != null) {
+      checkCanInitializeFrom(opts.crfFeatureHashBits, crfFrom.getInputAlphabet());
+    }
+    trainRound(inputs, opts.makeCrfAlphabet(), 0);
 
     crf.getInputAlphabet().stopGrowth();
     crf.getOutputAlphabet().stopGrowth();
+    if (crf.getInputAlphabet() instanceof HashingAlphabet) {
+      log.info(((HashingAlphabet) crf.getInputAlphabet()).collisionReport());
+    }
     watch.stop();
     log.info("Training took " + watch);
   }
@@ -248,7 +320,7 @@ public class PhonemeCrfTrainer {
     }
   }
 
-  private SerialPipes makePipe(Alphabet alpha) {
+  static SerialPipes makePipe(Alphabet alpha) {
     Target2LabelSequence labelPipe = new Target2LabelSequence();
     LabelAlphabet labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet();
 
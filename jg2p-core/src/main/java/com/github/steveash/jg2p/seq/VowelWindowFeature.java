@@ -85,4 +85,24 @@ public class VowelWindowFeature extends Pipe {
     }
     return inst;
   }
+
+  int getMaxOnset() {
+    return maxOnset;
+  }
+
+  int getMaxCoda() {
+    return maxCoda;
+  }
+
+  String getPrefix() {
+    return prefix;
+  }
+
+  int getRelativeIndex() {
+    return relativeIndex;
+  }
+
+  boolean isOnlyLast() {
+    return onlyLast;
+  }
 }
@@ -22,6 +22,7 @@ import com.google.common.collect.Lists;
 import com.github.steveash.jg2p.Word;
 import com.github.steveash.jg2p.align.Aligner;
 import com.github.steveash.jg2p.align.Alignment;
+import com.github.steveash.jg2p.seq.CrfLattice;
 
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -60,13 +61,13 @@ public class SyllTagModel implements Aligner, Serializable {
     instance = crf.getInputPipe().instanceFrom(instance);
 
     Sequence inSeq = (Sequence) instance.getData();
-    List<Sequence<Object>> outSeqs = crf.getMaxLatticeFactory().newMaxLattice(crf, inSeq).bestOutputSequences(nBest);
+    CrfLattice lattice = CrfLattice.forCurrentThread();
+    lattice.prepare(crf, inSeq);
+    List<CrfLattice.ScoredPath> paths = lattice.bestPaths(nBest);
 
-    ArrayList<Alignment> results = Lists.newArrayListWithCapacity(outSeqs.size());
-    double z = crf.getSumLatticeFactory().newSumLattice(crf, inSeq).getTotalWeight();
-    for (Sequence<Object> outSeq : outSeqs) {
-      double score = crf.getSumLatticeFactory().newSumLattice(crf, inSeq, outSeq).getTotalWeight();
-      Alignment align = makeAlignment(x, outSeq, score - z);
+    ArrayList<Alignment> results = Lists.newArrayListWithCapacity(paths.size());
+    for (CrfLattice.ScoredPath path : paths) {
+      Alignment align = makeAlignment(x, path.getOutput(), path.getLogProb());
       if (!resultsContain(align.getGraphones(), results)) {
         results.add(align);
       }
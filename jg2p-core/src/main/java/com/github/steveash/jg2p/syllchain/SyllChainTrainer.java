@@ -33,6 +33,7 @@ import com.github.steveash.jg2p.seq.TokenSequenceToFeature;
 import com.github.steveash.jg2p.seq.TokenWindow;
 import com.github.steveash.jg2p.syll.SWord;
 import com.github.steveash.jg2p.syll.SyllTagTrainer;
+import com.github.steveash.jg2p.util.HashingAlphabet;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
@@ -65,11 +66,19 @@ public class SyllChainTrainer {
   private static final Logger log = LoggerFactory.getLogger(SyllChainTrainer.class);
 
   private CRF initFrom = null;
+  private int featureHashBits = 0;
 
   public void setInitFrom(CRF initFrom) {
     this.initFrom = initFrom;
   }
 
+  /**
+   * @param featureHashBits if > 0 then hash the features in to 2^bits indexes instead of keeping an alphabet of them
+   */
+  public void setFeatureHashBits(int featureHashBits) {
+    this.featureHashBits = featureHashBits;
+  }
+
   public SyllChainModel train(List<Alignment> aligns) {
     log.info("About to train the syll chain...");
     InstanceList examples = makeExamplesFromAligns(aligns);
@@ -104,6 +113,9 @@ public class SyllChainTrainer {
     log.info("SyllChain CRF Training took " + watch.toString());
     crf.getInputAlphabet().stopGrowth();
     crf.getOutputAlphabet().stopGrowth();
+    if (crf.getInputAlphabet() instanceof HashingAlphabet) {
+      log.info(((HashingAlphabet) crf.getInputAlphabet()).collisionReport());
+    }
     return trainer;
   }
 
@@ -131,7 +143,7 @@ public class SyllChainTrainer {
   }
 
   private Pipe makePipe() {
-    Alphabet alpha = new Alphabet();
+    Alphabet alpha = featureHashBits > 0 ? new HashingAlphabet(featureHashBits) : new Alphabet();
     Target2LabelSequence labelPipe = new Target2LabelSequence();
     LabelAlphabet labelAlpha = (LabelAlphabet) labelPipe.getTargetAlphabet();
 
@@ -54,6 +54,10 @@ public class SyllTagAlignerAdapter implements Aligner, Serializable {
     return result;
   }
 
+  public Aligner getBaseAligner() {
+    return baseAligner;
+  }
+
   public SyllChainModel getSyllTagger() {
     return syllTagger;
   }
@@ -69,7 +69,8 @@ public class PipelineTrainer {
 
   private static final Logger log = LoggerFactory.getLogger(PipelineTrainer.class);
 
-  private List<InputRecord> inputs;
+  // a (lazy) view of the trainable records; each stage iterates over the given inputs again
+  private Iterable<InputRecord> inputs;
   private List<Alignment> alignedInputs;
   private TrainOptions opts;
 
@@ -115,12 +116,17 @@ public class PipelineTrainer {
     }
   };
 
-  public void train(List<InputRecord> inputs, TrainOptions opts, PipelineModel model) {
-    inputs = FluentIterable.from(inputs)
+  /**
+   * Trains all of the pipeline stages.  The inputs aren't copied: each stage that needs the records iterates over
+   * them again (filtering and transforming them as it goes) so they can be streamed (see InputReader.stream) to avoid
+   * holding the corpus in memory, which means that they have to be re-iterable.  The stages do keep their own
+   * derived state (like the aligned inputs that the CRFs train on) and collecting the reranker examples needs the
+   * records grouped by word so that stage sorts its own copy of them while it runs
+   */
+  public void train(Iterable<InputRecord> inputs, TrainOptions opts, PipelineModel model) {
+    this.inputs = FluentIterable.from(inputs)
         .filter(keepTrainable)
-        .transform(trainingXforms)
-        .toSortedList(InputRecord.OrderByX);
-    this.inputs = inputs;
+        .transform(trainingXforms);
     this.opts = opts;
     validateInputs();
 
@@ -205,7 +211,7 @@ public class PipelineTrainer {
     }
     // we need to collect some
     RerankExampleCollector collector = new RerankExampleCollector(modelSoFar.getRerankEncoder(), this.opts);
-    return collector.makeExamples(this.inputs);
+    return collector.makeExamples(FluentIterable.from(this.inputs).toSortedList(InputRecord.OrderByX));
   }
 
   private LangModel makeGraphoneModel() {
@@ -281,6 +287,7 @@ public class PipelineTrainer {
     }
     if (opts.trainSyllTag) {
       SyllChainTrainer trainer = new SyllChainTrainer();
+      trainer.setFeatureHashBits(opts.crfFeatureHashBits);
       return trainer.train(this.alignedInputs);
     }
     return checkNotNull(loadedSyllTag, "shoulve already loaded syll tag model");
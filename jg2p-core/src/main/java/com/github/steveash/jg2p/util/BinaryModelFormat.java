@@ -0,0 +1,728 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
+import com.github.steveash.jg2p.ModelException;
+import com.github.steveash.jg2p.PipelineModel;
+import com.github.steveash.jg2p.align.AlignModel;
+import com.github.steveash.jg2p.align.Aligner;
+import com.github.steveash.jg2p.align.ProbTable;
+import com.github.steveash.jg2p.lm.LangModel;
+import com.github.steveash.jg2p.rerank.Rerank3Model;
+import com.github.steveash.jg2p.seq.PhonemeCrfModel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.HashedSparseVector;
+import cc.mallet.types.IndexedSparseVector;
+import cc.mallet.types.SparseVector;
+
+/**
+ * Versioned, sectioned binary format for the PipelineModel that loads much faster (and with a much smaller transient
+ * heap) than plain java serialization of the whole object graph.
+ * <p>
+ * The file starts with a table of contents (magic, version, then the name and byte length of each section) followed
+ * by one section per sub-model.  Within a section the bulky parts of the model are pulled out of the object graph
+ * and written as primitives: Alphabets (the CRF feature names) become string pools, the CRF weight vectors become
+ * int/double arrays (or, when there are few enough distinct weights as in a model quantized by ModelQuantizer, int
+ * arrays plus 1 or 2 byte codes in to one table of the distinct weights), and ProbTables become a string pool plus
+ * parallel int/int/double arrays.  What's left of the object graph (the CRF states, the pipes, the LM, etc.) is a
+ * small java serialized skeleton that refers to those pools by index.  Read with ModelReadWrite.readBinary* (or any
+ * of the ModelReadWrite.read*From methods, which detect the format).
+ * <p>
+ * Files are memory mapped and each section is decoded straight out of the mapped buffer, so the file itself is never
+ * copied in to the heap and replicas on the same host share its pages in the page cache.  The decoded weights still
+ * live on the heap as mallet and kylm need them in their own arrays at inference time.
+ * <p>
+ * Converting an existing model: BinaryModelFormat input.dat output.bin
+ *
+ * @author Steve Ash
+ */
+public class BinaryModelFormat {
+
+  private static final Logger log = LoggerFactory.getLogger(BinaryModelFormat.class);
+
+  public static final int MAGIC = 0x4A473242; // JG2B
+  public static final int VERSION = 2;
+  // version 1 files don't have any coded vectors (but are otherwise the same) so we can still read them
+  private static final int MIN_VERSION = 1;
+
+  static final String TRAINING_ALIGNER = "trainingAligner";
+  static final String TESTING_ALIGNER = "testingAligner";
+  static final String PRONOUNCER = "pronouncer";
+  static final String GRAPHONE = "graphone";
+  static final String RERANKER = "reranker";
+
+  private static final List<String> INFERENCE_SECTIONS = ImmutableList.of(TESTING_ALIGNER, PRONOUNCER, GRAPHONE,
+                                                                          RERANKER);
+  private static final List<String> ALL_SECTIONS = ImmutableList.<String>builder()
+      .add(TRAINING_ALIGNER)
+      .addAll(INFERENCE_SECTIONS)
+      .build();
+
+  private static final byte KIND_SPARSE = 0;
+  private static final byte KIND_INDEXED = 1;
+  private static final byte KIND_HASHED = 2;
+
+  private static final int MAX_CODES = 1 << 16;
+
+  public static void main(String[] args) {
+    try {
+      if (args.length != 2) {
+        throw new IllegalArgumentException("usage: BinaryModelFormat input.dat output.bin");
+      }
+      log.info("Converting the model " + args[0] + " to the binary model " + args[1] + "...");
+      ModelReadWrite.convertToBinary(new File(args[0]), new File(args[1]));
+      log.info("Conversion complete!");
+    } catch (Exception e) {
+      log.error("Problem converting the model ", e);
+    }
+  }
+
+  /**
+   * @return true if the given header bytes (at least the first 4 of the file) are from a binary model file
+   */
+  public static boolean isBinaryModel(byte[] header) {
+    return header.length >= 4 && ByteBuffer.wrap(header).getInt(0) == MAGIC;
+  }
+
+  public static void write(PipelineModel model, OutputStream output) throws IOException {
+    // the training aligner goes last so that the inference sections are contiguous at the front of the file
+    Map<String, byte[]> sections = new LinkedHashMap<>();
+    sections.put(TESTING_ALIGNER, encodeSection(model.getTestingAlignerModel()));
+    sections.put(PRONOUNCER, encodeSection(model.getPronouncerModel()));
+    sections.put(GRAPHONE, encodeSection(model.getGraphoneModel()));
+    sections.put(RERANKER, encodeSection(model.getRerankerModel()));
+    sections.put(TRAINING_ALIGNER, encodeSection(model.getTrainingAlignerModel()));
+
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(sections.size());
+    for (Map.Entry<String, byte[]> entry : sections.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+    }
+    for (byte[] section : sections.values()) {
+      out.write(section);
+    }
+    out.flush();
+  }
+
+  public static PipelineModel read(InputStream input) throws IOException {
+    return decodeModel(readSections(input));
+  }
+
+  /**
+   * Reads the model straight out of the given buffer (usually a MappedByteBuffer of the whole file) without
+   * copying the file in to the heap first; each section is decoded directly from a slice of the buffer
+   */
+  public static PipelineModel read(ByteBuffer file) throws IOException {
+    return decodeModel(sliceSections(file));
+  }
+
+  /**
+   * Decodes the sections of the model in parallel on the given executor (which the caller owns).  The returned
+   * future completes as soon as all of the requested sections are in memory, so a service can wait on it before
+   * taking traffic.  If the buffer is a mapped file then the mapping must stay reachable until the future completes
+   * (which it does since the sections are slices of it)
+   * @param includeTrainingOnly if false then the training aligner (which nothing uses at inference time) is skipped
+   *                            and left null in the resulting model
+   */
+  public static ListenableFuture<PipelineModel> readAsync(ByteBuffer file, boolean includeTrainingOnly,
+                                                          ExecutorService executor) throws IOException {
+    final Map<String, ByteBuffer> sections = sliceSections(file);
+    final List<String> names = (includeTrainingOnly ? ALL_SECTIONS : INFERENCE_SECTIONS);
+    ListeningExecutorService service = MoreExecutors.listeningDecorator(executor);
+    List<ListenableFuture<Object>> decoded = Lists.newArrayListWithCapacity(names.size());
+    for (final String name : names) {
+      decoded.add(service.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return decodeSection(sections.get(name));
+        }
+      }));
+    }
+    return Futures.transform(Futures.allAsList(decoded), new Function<List<Object>, PipelineModel>() {
+      @Override
+      public PipelineModel apply(List<Object> input) {
+        PipelineModel model = new PipelineModel();
+        for (int i = 0; i < names.size(); i++) {
+          setComponent(model, names.get(i), input.get(i));
+        }
+        return model;
+      }
+    });
+  }
+
+  private static PipelineModel decodeModel(Map<String, ByteBuffer> sections) throws IOException {
+    PipelineModel model = new PipelineModel();
+    for (String name : ALL_SECTIONS) {
+      setComponent(model, name, decodeSection(sections.get(name)));
+    }
+    return model;
+  }
+
+  private static void setComponent(PipelineModel model, String section, Object component) {
+    switch (section) {
+      case TRAINING_ALIGNER:
+        model.setTrainingAlignerModel((AlignModel) component);
+        break;
+      case TESTING_ALIGNER:
+        model.setTestingAlignerModel((Aligner) component);
+        break;
+      case PRONOUNCER:
+        model.setPronouncerModel((PhonemeCrfModel) component);
+        break;
+      case GRAPHONE:
+        model.setGraphoneModel((LangModel) component);
+        break;
+      case RERANKER:
+        model.setRerankerModel((Rerank3Model) component);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown section " + section);
+    }
+  }
+
+  static Map<String, ByteBuffer> readSections(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    checkHeader(in.readInt(), in.readInt());
+    int count = in.readInt();
+    List<String> names = Lists.newArrayListWithCapacity(count);
+    List<Integer> lengths = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      names.add(in.readUTF());
+      lengths.add(in.readInt());
+    }
+    Map<String, ByteBuffer> sections = Maps.newHashMap();
+    for (int i = 0; i < count; i++) {
+      byte[] section = new byte[lengths.get(i)];
+      in.readFully(section);
+      sections.put(names.get(i), ByteBuffer.wrap(section));
+    }
+    return sections;
+  }
+
+  static Map<String, ByteBuffer> sliceSections(ByteBuffer file) throws IOException {
+    ByteBuffer in = file.duplicate();
+    in.position(0);
+    if (in.remaining() < 12) {
+      throw new ModelException("This is not a binary model file");
+    }
+    checkHeader(in.getInt(), in.getInt());
+    int count = in.getInt();
+    List<String> names = Lists.newArrayListWithCapacity(count);
+    List<Integer> lengths = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      byte[] name = new byte[in.getShort() & 0xFFFF];
+      in.get(name);
+      names.add(new String(name, Charsets.UTF_8)); // section names are plain ascii so this is the same as readUTF
+      lengths.add(in.getInt());
+    }
+    Map<String, ByteBuffer> sections = Maps.newHashMap();
+    for (int i = 0; i < count; i++) {
+      ByteBuffer section = in.slice();
+      section.limit(lengths.get(i));
+      sections.put(names.get(i), section);
+      in.position(in.position() + lengths.get(i));
+    }
+    return sections;
+  }
+
+  private static void checkHeader(int magic, int version) {
+    if (magic != MAGIC) {
+      throw new ModelException("This is not a binary model file");
+    }
+    if (version < MIN_VERSION || version > VERSION) {
+      throw new ModelException("Binary model is version " + version + " but can only read versions " + MIN_VERSION +
+                               " to " + VERSION);
+    }
+  }
+
+  static byte[] encodeSection(Object model) throws IOException {
+    if (model == null) {
+      return new byte[0];
+    }
+    ByteArrayOutputStream skeletonBytes = new ByteArrayOutputStream();
+    PoolingOutputStream skeleton = new PoolingOutputStream(skeletonBytes);
+    skeleton.writeObject(model);
+    skeleton.close();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(skeletonBytes.size() * 2);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(skeleton.pooled.size());
+    LongIntOpenHashMap codebook = makeCodebook(skeleton.pooled);
+    if (codebook != null) {
+      writeCodebook(out, codebook);
+    }
+    for (Object pooled : skeleton.pooled) {
+      if (pooled instanceof Alphabet) {
+        writeAlphabet(out, (Alphabet) pooled);
+      } else if (pooled instanceof SparseVector) {
+        if (codebook != null) {
+          writeCodedVector(out, (SparseVector) pooled, codebook);
+        } else {
+          writeVector(out, (SparseVector) pooled);
+        }
+      } else {
+        writeProbTable(out, (ProbTable) pooled);
+      }
+    }
+    out.writeInt(skeletonBytes.size());
+    skeletonBytes.writeTo(out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  static Object decodeSection(ByteBuffer section) throws IOException {
+    if (section == null || section.remaining() == 0) {
+      return null;
+    }
+    ByteBuffer in = section.duplicate();
+    int count = in.getInt();
+    Object[] pool = new Object[count];
+    double[] codebook = null;
+    for (int i = 0; i < count; i++) {
+      byte type = in.get();
+      if (type == PoolRef.CODEBOOK) {
+        // the codebook isn't itself in the pool; its just needed by the coded vectors after it
+        codebook = readCodebook(in);
+        i -= 1;
+      } else if (type == PoolRef.VECTOR_CODED) {
+        if (codebook == null) {
+          throw new ModelException("Binary model has a coded vector without a codebook");
+        }
+        pool[i] = readCodedVector(in, codebook);
+      } else if (type == PoolRef.ALPHABET) {
+        pool[i] = readAlphabet(in);
+      } else if (type == PoolRef.VECTOR) {
+        pool[i] = readVector(in);
+      } else if (type == PoolRef.PROB_TABLE) {
+        pool[i] = readProbTable(in);
+      } else {
+        throw new ModelException("Unknown pooled type " + type + " in binary model");
+      }
+    }
+    int skeletonLength = in.getInt();
+    ByteBuffer skeletonBytes = in.slice();
+    skeletonBytes.limit(skeletonLength);
+    try (ResolvingInputStream skeleton = new ResolvingInputStream(new ByteBufferInputStream(skeletonBytes), pool)) {
+      return skeleton.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new ModelException("Binary model refers to a class that isn't on the classpath", e);
+    }
+  }
+
+  private static void writeAlphabet(DataOutputStream out, Alphabet alphabet) throws IOException {
+    out.writeByte(PoolRef.ALPHABET);
+    out.writeBoolean(alphabet.growthStopped());
+    Object[] entries = alphabet.toArray();
+    out.writeInt(entries.length);
+    for (Object entry : entries) {
+      writeString(out, (String) entry);
+    }
+  }
+
+  private static Alphabet readAlphabet(ByteBuffer in) {
+    boolean growthStopped = in.get() != 0;
+    int size = in.getInt();
+    Alphabet alphabet = new Alphabet(size, String.class);
+    for (int i = 0; i < size; i++) {
+      alphabet.lookupIndex(readString(in), true);
+    }
+    if (growthStopped) {
+      alphabet.stopGrowth();
+    }
+    return alphabet;
+  }
+
+  private static void writeVector(DataOutputStream out, SparseVector vector) throws IOException {
+    out.writeByte(PoolRef.VECTOR);
+    out.writeByte(vectorKind(vector));
+    int[] indices = vector.getIndices();
+    double[] values = vector.getValues();
+    out.writeBoolean(indices != null);
+    out.writeInt(values.length);
+    if (indices != null) {
+      for (int index : indices) {
+        out.writeInt(index);
+      }
+    }
+    for (double value : values) {
+      out.writeDouble(value);
+    }
+  }
+
+  private static SparseVector readVector(ByteBuffer in) {
+    byte kind = in.get();
+    boolean hasIndices = in.get() != 0;
+    int size = in.getInt();
+    int[] indices = null;
+    if (hasIndices) {
+      indices = new int[size];
+      in.asIntBuffer().get(indices);
+      in.position(in.position() + (size * 4));
+    }
+    double[] values = new double[size];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + (size * 8));
+    return makeVector(kind, indices, values);
+  }
+
+  static SparseVector makeVector(byte kind, int[] indices, double[] values) {
+    int size = values.length;
+    if (kind == KIND_INDEXED) {
+      return new IndexedSparseVector(indices, values, size, size, false, false, false);
+    }
+    if (kind == KIND_HASHED) {
+      return new HashedSparseVector(indices, values, size, size, false, false, false);
+    }
+    return new SparseVector(indices, values, size, size, false, false, false);
+  }
+
+  // if all of the weights in all of the vectors (e.g. a quantized model's) are few enough distinct values then we
+  // write the distinct values once and each weight as a 1 or 2 byte code in to them; this is still lossless
+  private static LongIntOpenHashMap makeCodebook(List<Object> pooled) {
+    LongIntOpenHashMap codes = new LongIntOpenHashMap();
+    int valueCount = 0;
+    for (Object obj : pooled) {
+      if (!(obj instanceof SparseVector)) {
+        continue;
+      }
+      for (double value : ((SparseVector) obj).getValues()) {
+        long bits = Double.doubleToLongBits(value);
+        if (!codes.containsKey(bits)) {
+          if (codes.size() >= MAX_CODES) {
+            return null;
+          }
+          codes.put(bits, codes.size());
+        }
+        valueCount += 1;
+      }
+    }
+    int codeBytes = (codes.size() <= 256 ? 1 : 2);
+    if ((8L * codes.size()) + ((long) codeBytes * valueCount) >= 8L * valueCount) {
+      return null; // the codebook would be no smaller than just writing the values
+    }
+    return codes;
+  }
+
+  private static void writeCodebook(DataOutputStream out, LongIntOpenHashMap codes) throws IOException {
+    out.writeByte(PoolRef.CODEBOOK);
+    long[] values = new long[codes.size()];
+    for (LongIntCursor cursor : codes) {
+      values[cursor.value] = cursor.key;
+    }
+    out.writeInt(values.length);
+    for (long value : values) {
+      out.writeLong(value);
+    }
+  }
+
+  private static double[] readCodebook(ByteBuffer in) {
+    double[] codebook = new double[in.getInt()];
+    in.asDoubleBuffer().get(codebook);
+    in.position(in.position() + (codebook.length * 8));
+    return codebook;
+  }
+
+  private static void writeCodedVector(DataOutputStream out, SparseVector vector, LongIntOpenHashMap codes)
+      throws IOException {
+    out.writeByte(PoolRef.VECTOR_CODED);
+    out.writeByte(vectorKind(vector));
+    int[] indices = vector.getIndices();
+    double[] values = vector.getValues();
+    out.writeBoolean(indices != null);
+    out.writeInt(values.length);
+    if (indices != null) {
+      for (int index : indices) {
+        out.writeInt(index);
+      }
+    }
+    boolean byteCodes = codes.size() <= 256;
+    for (double value : values) {
+      int code = codes.get(Double.doubleToLongBits(value));
+      if (byteCodes) {
+        out.writeByte(code);
+      } else {
+        out.writeChar(code);
+      }
+    }
+  }
+
+  private static SparseVector readCodedVector(ByteBuffer in, double[] codebook) {
+    byte kind = in.get();
+    boolean hasIndices = in.get() != 0;
+    int size = in.getInt();
+    int[] indices = null;
+    if (hasIndices) {
+      indices = new int[size];
+      in.asIntBuffer().get(indices);
+      in.position(in.position() + (size * 4));
+    }
+    double[] values = new double[size];
+    boolean byteCodes = codebook.length <= 256;
+    for (int i = 0; i < size; i++) {
+      values[i] = codebook[byteCodes ? (in.get() & 0xFF) : in.getChar()];
+    }
+    return makeVector(kind, indices, values);
+  }
+
+  private static void writeProbTable(DataOutputStream out, ProbTable table) throws IOException {
+    out.writeByte(PoolRef.PROB_TABLE);
+    Map<String, Integer> strings = Maps.newHashMap();
+    List<String> pool = Lists.newArrayList();
+    int cells = (int) table.entryCount();
+    int[] xs = new int[cells];
+    int[] ys = new int[cells];
+    double[] probs = new double[cells];
+    int i = 0;
+    for (Table.Cell<String, String, Double> cell : table) {
+      xs[i] = intern(cell.getRowKey(), strings, pool);
+      ys[i] = intern(cell.getColumnKey(), strings, pool);
+      probs[i] = cell.getValue();
+      i += 1;
+    }
+    out.writeInt(pool.size());
+    for (String s : pool) {
+      writeString(out, s);
+    }
+    out.writeInt(cells);
+    for (int x : xs) {
+      out.writeInt(x);
+    }
+    for (int y : ys) {
+      out.writeInt(y);
+    }
+    for (double prob : probs) {
+      out.writeDouble(prob);
+    }
+  }
+
+  private static ProbTable readProbTable(ByteBuffer in) {
+    int poolSize = in.getInt();
+    String[] pool = new String[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      pool[i] = readString(in);
+    }
+    int cells = in.getInt();
+    int[] xs = new int[cells];
+    int[] ys = new int[cells];
+    double[] probs = new double[cells];
+    in.asIntBuffer().get(xs);
+    in.position(in.position() + (cells * 4));
+    in.asIntBuffer().get(ys);
+    in.position(in.position() + (cells * 4));
+    in.asDoubleBuffer().get(probs);
+    in.position(in.position() + (cells * 8));
+    ProbTable table = new ProbTable(cells);
+    for (int i = 0; i < cells; i++) {
+      table.setProb(pool[xs[i]], pool[ys[i]], probs[i]);
+    }
+    return table;
+  }
+
+  private static int intern(String value, Map<String, Integer> strings, List<String> pool) {
+    Integer existing = strings.get(value);
+    if (existing != null) {
+      return existing;
+    }
+    strings.put(value, pool.size());
+    pool.add(value);
+    return pool.size() - 1;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  static byte vectorKind(SparseVector vector) {
+    if (vector.getClass() == IndexedSparseVector.class) {
+      return KIND_INDEXED;
+    }
+    if (vector.getClass() == HashedSparseVector.class) {
+      return KIND_HASHED;
+    }
+    return KIND_SPARSE;
+  }
+
+  // only replace the things that we can write (and rebuild) exactly; everything else stays java serialized
+  private static boolean canPool(Object obj) {
+    if (obj.getClass() == Alphabet.class) {
+      for (Object entry : ((Alphabet) obj).toArray()) {
+        if (!(entry instanceof String)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (obj.getClass() == SparseVector.class || obj.getClass() == IndexedSparseVector.class ||
+        obj.getClass() == HashedSparseVector.class) {
+      SparseVector vector = (SparseVector) obj;
+      if (vector.getValues() == null) {
+        return false;
+      }
+      return vector.getIndices() == null ? obj.getClass() == SparseVector.class
+                                         : vector.getIndices().length == vector.getValues().length;
+    }
+    return obj.getClass() == ProbTable.class;
+  }
+
+  /**
+   * The stand in for a pooled object in the serialized skeleton
+   */
+  private static class PoolRef implements Serializable {
+
+    private static final long serialVersionUID = 3137472659135210593L;
+
+    static final byte ALPHABET = 1;
+    static final byte VECTOR = 2;
+    static final byte PROB_TABLE = 3;
+    static final byte CODEBOOK = 4;
+    static final byte VECTOR_CODED = 5;
+
+    private final int index;
+
+    private PoolRef(int index) {
+      this.index = index;
+    }
+  }
+
+  private static class PoolingOutputStream extends ObjectOutputStream {
+
+    private final List<Object> pooled = Lists.newArrayList();
+    // the same object must always get the same ref so that objects shared within the graph are still shared when
+    // they are read back in
+    private final IdentityHashMap<Object, PoolRef> refs = new IdentityHashMap<>();
+
+    private PoolingOutputStream(OutputStream out) throws IOException {
+      super(out);
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+      if (obj == null) {
+        return null;
+      }
+      PoolRef ref = refs.get(obj);
+      if (ref != null) {
+        return ref;
+      }
+      if (!canPool(obj)) {
+        return obj;
+      }
+      ref = new PoolRef(pooled.size());
+      pooled.add(obj);
+      refs.put(obj, ref);
+      return ref;
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  private static class ResolvingInputStream extends ObjectInputStream {
+
+    private final Object[] pool;
+
+    private ResolvingInputStream(InputStream in, Object[] pool) throws IOException {
+      super(in);
+      this.pool = pool;
+      enableResolveObject(true);
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+      if (obj instanceof PoolRef) {
+        return pool[((PoolRef) obj).index];
+      }
+      return obj;
+    }
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Doubles;
+
+import com.github.steveash.jg2p.ModelException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.rmi.dgc.VMID;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSelection;
+import cc.mallet.types.SparseVector;
+
+/**
+ * Prunes the low magnitude features out of the CRFs in a (sub) model.  A weight is dropped if its magnitude is below
+ * the given minimum and a feature is dropped (along with its entry in the input alphabet) once it has no weights
+ * left; if there are still more than maxFeatures features then the ones with the smallest max weight magnitude are
+ * dropped too.  Mallet can't remove entries from an Alphabet or a SparseVector, so the result is a copy of the model
+ * (made by java serializing it) where each CRF's input alphabet and weight vectors are replaced with compacted ones.
+ * Since the pipes and the CRF share the same alphabet instance they all get the compacted one and features that
+ * were pruned are just unknown features at inference time.
+ * <p>
+ * Hashing alphabets (which don't store the feature names) keep their size and only the weights are pruned.
+ *
+ * @author Steve Ash
+ */
+public class CrfCompactor {
+
+  private static final Logger log = LoggerFactory.getLogger(CrfCompactor.class);
+
+  private final double minWeight;
+  private final int maxFeatures;
+
+  /**
+   * @param minWeight weights with a smaller magnitude than this are dropped (zero weights are always dropped)
+   * @param maxFeatures the most features to keep per CRF or Integer.MAX_VALUE for no budget
+   */
+  public CrfCompactor(double minWeight, int maxFeatures) {
+    Preconditions.checkArgument(minWeight >= 0, "minWeight must be non-negative");
+    Preconditions.checkArgument(maxFeatures > 0, "maxFeatures must be positive");
+    this.minWeight = minWeight;
+    this.maxFeatures = maxFeatures;
+  }
+
+  /**
+   * @return a compacted copy of the given model (e.g. a PhonemeCrfModel or an Aligner) with all of the CRFs that it
+   * refers to compacted; the given model isn't changed
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T compact(T model) {
+    try {
+      // first find all of the CRFs in the object graph so we know what to replace when we copy it
+      FindingOutputStream finder = new FindingOutputStream(ByteStreams.nullOutputStream());
+      finder.writeObject(model);
+      finder.close();
+
+      IdentityHashMap<Object, Object> replacements = new IdentityHashMap<>();
+      IdentityHashMap<Alphabet, int[]> newIndexes = new IdentityHashMap<>();
+      planCrfs(finder.crfs, replacements, newIndexes);
+      for (FeatureSelection selection : finder.selections) {
+        planSelection(selection, replacements, newIndexes);
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ReplacingOutputStream out = new ReplacingOutputStream(bytes, replacements);
+      out.writeObject(model);
+      out.close();
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+        return (T) in.readObject();
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      throw new ModelException("Problem copying the model while compacting it", e);
+    }
+  }
+
+  // CRFs can share an input alphabet so the features to keep are planned once per alphabet over all of its CRFs
+  private void planCrfs(List<CRF> crfs, Map<Object, Object> replacements, Map<Alphabet, int[]> newIndexes) {
+    Map<Alphabet, List<CRF>> byAlphabet = new IdentityHashMap<>();
+    List<Alphabet> alphabets = Lists.newArrayList();
+    for (CRF crf : crfs) {
+      List<CRF> sharing = byAlphabet.get(crf.getInputAlphabet());
+      if (sharing == null) {
+        sharing = Lists.newArrayList();
+        byAlphabet.put(crf.getInputAlphabet(), sharing);
+        alphabets.add(crf.getInputAlphabet());
+      }
+      sharing.add(crf);
+    }
+    for (Alphabet alphabet : alphabets) {
+      List<CRF> sharing = byAlphabet.get(alphabet);
+      BitSet kept = keptFeatures(alphabet, sharing);
+      int featureCount = alphabet.size();
+      // the old feature index -> the new index (or -1 if its pruned); hashing alphabets keep their indices
+      boolean canShrinkAlphabet = (alphabet.getClass() == Alphabet.class);
+      int[] newIndex = new int[featureCount];
+      int next = 0;
+      for (int i = 0; i < featureCount; i++) {
+        if (canShrinkAlphabet) {
+          newIndex[i] = (kept.get(i) ? next++ : -1);
+        } else {
+          newIndex[i] = (kept.get(i) ? i : -1);
+        }
+      }
+      if (canShrinkAlphabet) {
+        Alphabet compacted = new Alphabet(Math.max(1, next));
+        for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1)) {
+          compacted.lookupIndex(alphabet.lookupObject(i), true);
+        }
+        // the compacted model is only good for inference so new features should never be added to it
+        compacted.stopGrowth();
+        replacements.put(alphabet, compacted);
+        newIndexes.put(alphabet, newIndex);
+      }
+      int newSize = (canShrinkAlphabet ? next : featureCount);
+      for (CRF crf : sharing) {
+        long weightsBefore = 0;
+        long weightsAfter = 0;
+        for (SparseVector vector : crf.getParameters().weights) {
+          SparseVector compacted = compactVector(vector, newIndex, newSize);
+          weightsBefore += vector.getValues().length;
+          weightsAfter += compacted.getValues().length;
+          replacements.put(vector, compacted);
+        }
+        log.info("Compacted a CRF from {} features with {} weights to {} features with {} weights",
+                 featureCount, weightsBefore, kept.cardinality(), weightsAfter);
+      }
+    }
+  }
+
+  // the features that have a weight worth keeping in any of the CRFs, limited to the maxFeatures biggest
+  private BitSet keptFeatures(Alphabet alphabet, List<CRF> crfs) {
+    int featureCount = alphabet.size();
+    double[] maxMagnitude = new double[featureCount];
+    for (CRF crf : crfs) {
+      for (SparseVector vector : crf.getParameters().weights) {
+        double[] values = vector.getValues();
+        for (int i = 0; i < values.length; i++) {
+          int feature = (vector.getIndices() == null ? i : vector.getIndices()[i]);
+          if (feature < featureCount && keepWeight(values[i])) {
+            maxMagnitude[feature] = Math.max(maxMagnitude[feature], Math.abs(values[i]));
+          }
+        }
+      }
+    }
+    BitSet kept = new BitSet(featureCount);
+    for (int i = 0; i < featureCount; i++) {
+      if (maxMagnitude[i] > 0) {
+        kept.set(i);
+      }
+    }
+    if (kept.cardinality() > maxFeatures) {
+      double[] sorted = maxMagnitude.clone();
+      Arrays.sort(sorted);
+      double cutoff = sorted[featureCount - maxFeatures];
+      // ties at the cutoff are broken by feature index so we never go over the budget
+      int atCutoff = 0;
+      for (int i = featureCount - maxFeatures; i < featureCount && sorted[i] == cutoff; i++) {
+        atCutoff += 1;
+      }
+      for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1)) {
+        if (maxMagnitude[i] < cutoff) {
+          kept.clear(i);
+        } else if (maxMagnitude[i] == cutoff) {
+          if (atCutoff > 0) {
+            atCutoff -= 1;
+          } else {
+            kept.clear(i);
+          }
+        }
+      }
+    }
+    return kept;
+  }
+
+  private boolean keepWeight(double value) {
+    return value != 0 && (!Doubles.isFinite(value) || Math.abs(value) >= minWeight);
+  }
+
+  private SparseVector compactVector(SparseVector vector, int[] newIndex, int newSize) {
+    int[] indices = vector.getIndices();
+    double[] values = vector.getValues();
+    if (indices == null) {
+      // dense vectors have a value for every feature so the pruned features are dropped and small weights zeroed
+      double[] dense = new double[newSize];
+      for (int i = 0; i < values.length && i < newIndex.length; i++) {
+        if (newIndex[i] >= 0 && keepWeight(values[i])) {
+          dense[newIndex[i]] = values[i];
+        }
+      }
+      return BinaryModelFormat.makeVector(BinaryModelFormat.vectorKind(vector), null, dense);
+    }
+    int count = 0;
+    for (int i = 0; i < indices.length; i++) {
+      if (keepEntry(indices[i], values[i], newIndex)) {
+        count += 1;
+      }
+    }
+    int[] newIndices = new int[count];
+    double[] newValues = new double[count];
+    int next = 0;
+    for (int i = 0; i < indices.length; i++) {
+      if (keepEntry(indices[i], values[i], newIndex)) {
+        newIndices[next] = newIndex[indices[i]];
+        newValues[next] = values[i];
+        next += 1;
+      }
+    }
+    // the kept features keep their relative order so the indices are still sorted
+    return BinaryModelFormat.makeVector(BinaryModelFormat.vectorKind(vector), newIndices, newValues);
+  }
+
+  private boolean keepEntry(int feature, double value, int[] newIndex) {
+    return feature < newIndex.length && newIndex[feature] >= 0 && keepWeight(value);
+  }
+
+  // any feature selections over a compacted alphabet have to be re-indexed to match it
+  private static void planSelection(FeatureSelection selection, Map<Object, Object> replacements,
+                                    Map<Alphabet, int[]> newIndexes) {
+    int[] newIndex = newIndexes.get(selection.getAlphabet());
+    if (newIndex == null || replacements.containsKey(selection)) {
+      return;
+    }
+    Alphabet compacted = (Alphabet) replacements.get(selection.getAlphabet());
+    BitSet bits = new BitSet(compacted.size());
+    BitSet old = selection.getBitSet();
+    for (int i = old.nextSetBit(0); i >= 0 && i < newIndex.length; i = old.nextSetBit(i + 1)) {
+      if (newIndex[i] >= 0) {
+        bits.set(newIndex[i]);
+      }
+    }
+    replacements.put(selection, new FeatureSelection(compacted, bits));
+  }
+
+  private static class FindingOutputStream extends ObjectOutputStream {
+
+    private final List<CRF> crfs = Lists.newArrayList();
+    private final List<FeatureSelection> selections = Lists.newArrayList();
+
+    private FindingOutputStream(OutputStream out) throws IOException {
+      super(out);
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+      if (obj instanceof CRF) {
+        crfs.add((CRF) obj);
+      } else if (obj instanceof FeatureSelection) {
+        selections.add((FeatureSelection) obj);
+      }
+      return obj;
+    }
+  }
+
+  private static class ReplacingOutputStream extends ObjectOutputStream {
+
+    private final IdentityHashMap<Object, Object> replacements;
+
+    private ReplacingOutputStream(OutputStream out, IdentityHashMap<Object, Object> replacements)
+        throws IOException {
+      super(out);
+      this.replacements = replacements;
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) throws IOException {
+      Object replacement = replacements.get(obj);
+      if (replacement == null && obj instanceof VMID) {
+        // mallet's pipes and alphabets resolve to whatever was last deserialized with the same instance id, which
+        // would be the pipes of any earlier copy of this model; so the copy gets its own ids
+        replacement = new VMID();
+        replacements.put(obj, replacement);
+      }
+      return (replacement != null ? replacement : obj);
+    }
+  }
+}
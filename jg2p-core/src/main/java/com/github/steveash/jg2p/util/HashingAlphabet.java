@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.util.BitSet;
+
+import cc.mallet.types.Alphabet;
+
+/**
+ * A feature "alphabet" for the CRF pipes that hashes feature strings in to a fixed size space of 2^bits features
+ * instead of keeping every feature string (the hashing trick).  So the model (and the training heap) doesn't have to
+ * hold the millions of feature strings and lookups are just a hash.  Distinct features can collide in to the same
+ * index; while growth is allowed (i.e. while the training examples are being piped) this tracks how many distinct
+ * features it has seen and how many indexes they used so that you can pick the number of bits.
+ * <p>
+ * The index is bucketFor(feature.hashCode()) so that anything that can compute String.hashCode() without making the
+ * string (like the CompiledFeatureExtractor) can find the same index.  There are no feature names so lookupObject()
+ * just returns a placeholder.
+ *
+ * @author Steve Ash
+ */
+public class HashingAlphabet extends Alphabet {
+
+  private static final long serialVersionUID = -1873412690843275331L;
+
+  private final int bits;
+  private final int mask;
+  private long distinctFeatures = 0;
+  private long usedIndexes = 0;
+  // only used while collecting the collision stats
+  private transient LongOpenHashSet seen = new LongOpenHashSet();
+  private transient BitSet used = new BitSet();
+
+  public HashingAlphabet(int bits) {
+    super(1, String.class);
+    Preconditions.checkArgument(bits > 0 && bits <= 30, "bits must be in [1, 30]");
+    this.bits = bits;
+    this.mask = (1 << bits) - 1;
+  }
+
+  public int getBits() {
+    return bits;
+  }
+
+  /**
+   * @return the index for a feature with the given String.hashCode()
+   */
+  public int bucketFor(int stringHash) {
+    // murmur3's finalizer; String.hashCode() doesn't spread its bits very well
+    int h = stringHash;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h & mask;
+  }
+
+  @Override
+  public int lookupIndex(Object entry, boolean addIfNotPresent) {
+    String feature = (String) entry;
+    int index = bucketFor(feature.hashCode());
+    if (addIfNotPresent && !growthStopped()) {
+      record(feature, index);
+    }
+    return index;
+  }
+
+  private synchronized void record(String feature, int index) {
+    if (seen == null) {
+      return;
+    }
+    if (seen.add(Hashing.murmur3_128().hashString(feature, Charsets.UTF_8).asLong())) {
+      distinctFeatures += 1;
+      if (!used.get(index)) {
+        used.set(index);
+        usedIndexes += 1;
+      }
+    }
+  }
+
+  @Override
+  public Object lookupObject(int index) {
+    return "#" + index;
+  }
+
+  @Override
+  public boolean contains(Object entry) {
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return mask + 1;
+  }
+
+  @Override
+  public synchronized void stopGrowth() {
+    super.stopGrowth();
+    // the stats are final now so don't hang on to the sets
+    this.seen = null;
+    this.used = null;
+  }
+
+  /**
+   * @return the number of distinct feature strings that were seen while the alphabet could grow
+   */
+  public synchronized long getDistinctFeatures() {
+    return distinctFeatures;
+  }
+
+  /**
+   * @return the number of indexes that the distinct features hashed to
+   */
+  public synchronized long getUsedIndexes() {
+    return usedIndexes;
+  }
+
+  /**
+   * @return the number of distinct features that share their index with some other feature
+   */
+  public synchronized long getCollisions() {
+    return distinctFeatures - usedIndexes;
+  }
+
+  public synchronized String collisionReport() {
+    double rate = distinctFeatures == 0 ? 0 : ((double) getCollisions()) / distinctFeatures;
+    return String.format("%d bit hashed features: %d distinct features in %d of %d indexes; %d collisions (%.2f%%)",
+                         bits, distinctFeatures, usedIndexes, size(), getCollisions(), rate * 100.0);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+/**
+ * Holds something that a model derives from its serialized state the first time that it's needed (like a compiled
+ * feature extractor) so the derived thing never has to be serialized.  Models keep these in transient fields that
+ * they make in their constructor and again in readObject.
+ * <p>
+ * There's no locking: it's fine if a few threads race to compute the value the first time because they all make the
+ * same thing and whichever one is stored last is kept.  compute() can return null if the value can't be made (e.g.
+ * the model has something that the faster path doesn't support); that is remembered too so that callers fall back
+ * to their slow path without trying again on every call.  There's no way to forget the value: if the inputs to
+ * compute() change then make a new holder (so a compute() that's still running can only store its value in the old
+ * one).
+ *
+ * @author Steve Ash
+ */
+public abstract class LazyValue<T> {
+
+  private static final Object UNAVAILABLE = new Object();
+
+  private volatile Object value;
+
+  /**
+   * @return the value or null if it can't be made
+   */
+  protected abstract T compute();
+
+  /**
+   * @return the value (computing it if this is the first call) or null if it can't be made
+   */
+  @SuppressWarnings("unchecked")
+  public T get() {
+    Object maybe = value;
+    if (maybe == null) {
+      maybe = compute();
+      if (maybe == null) {
+        maybe = UNAVAILABLE;
+      }
+      value = maybe;
+    }
+    if (maybe == UNAVAILABLE) {
+      return null;
+    }
+    return (T) maybe;
+  }
+}
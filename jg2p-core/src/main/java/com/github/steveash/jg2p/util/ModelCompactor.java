@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.github.steveash.jg2p.PipelineEncoder;
+import com.github.steveash.jg2p.PipelineModel;
+import com.github.steveash.jg2p.Word;
+import com.github.steveash.jg2p.align.InputReader;
+import com.github.steveash.jg2p.align.InputRecord;
+import com.github.steveash.jg2p.eval.BulkEval;
+import com.github.steveash.jg2p.eval.EvalStats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command to compact a model by pruning the low magnitude features out of its CRFs (the pronouncer, the align tagger,
+ * and the syllable chain tagger; see CrfCompactor) and writing the result as a binary model.  If a held out file (in
+ * the psaurus format) is given then the original and the compacted models are both evaluated on it and the binary
+ * size, load time, per word latency, and word/phone accuracy of each is reported so that a size/accuracy trade off
+ * can be picked for production.
+ * <p>
+ * Compacting a model: ModelCompactor input.dat output.bin minWeight [maxFeatures [heldout.txt]]
+ *
+ * @author Steve Ash
+ */
+public class ModelCompactor {
+
+  private static final Logger log = LoggerFactory.getLogger(ModelCompactor.class);
+
+  private static final int WARM_UP_WORDS = 500;
+
+  public static void main(String[] args) {
+    try {
+      if (args.length < 3 || args.length > 5) {
+        throw new IllegalArgumentException(
+            "usage: ModelCompactor input.dat output.bin minWeight [maxFeatures [heldout.txt]]");
+      }
+      File inputFile = new File(args[0]);
+      File outputFile = new File(args[1]);
+      double minWeight = Double.parseDouble(args[2]);
+      int maxFeatures = (args.length > 3 ? Integer.parseInt(args[3]) : Integer.MAX_VALUE);
+      log.info("Compacting the model " + args[0] + " with min weight " + minWeight + " and max features " +
+               maxFeatures + " in to " + args[1] + "...");
+
+      PipelineModel original = ModelReadWrite.readPipelineFrom(inputFile);
+      PipelineModel compacted = compact(original, new CrfCompactor(minWeight, maxFeatures));
+      ModelReadWrite.writeBinary(compacted, outputFile);
+      log.info("Compaction complete!");
+
+      if (args.length > 4) {
+        List<InputRecord> heldOut = InputReader.makePSaurusReader().readFromFile(new File(args[4]));
+        File originalBinary = File.createTempFile("original", ".bin");
+        try {
+          ModelReadWrite.writeBinary(original, originalBinary);
+          report("original", originalBinary, heldOut);
+        } finally {
+          originalBinary.delete();
+        }
+        report("compacted", outputFile, heldOut);
+      }
+    } catch (Exception e) {
+      log.error("Problem compacting the model ", e);
+    }
+  }
+
+  /**
+   * @return a copy of the model with all of its CRFs compacted (the given model isn't changed); the parts of the
+   * model without CRFs are shared with the original
+   */
+  public static PipelineModel compact(PipelineModel model, CrfCompactor compactor) {
+    PipelineModel result = new PipelineModel();
+    result.setTrainingAlignerModel(model.getTrainingAlignerModel());
+    result.setGraphoneModel(model.getGraphoneModel());
+    result.setRerankerModel(model.getRerankerModel());
+    if (model.getPronouncerModel() != null) {
+      result.setPronouncerModel(compactor.compact(model.getPronouncerModel()));
+    }
+    if (model.getTestingAlignerModel() != null) {
+      result.setTestingAlignerModel(compactor.compact(model.getTestingAlignerModel()));
+    }
+    return result;
+  }
+
+  private static void report(String label, File binaryFile, List<InputRecord> heldOut) throws IOException {
+    Stopwatch loading = Stopwatch.createStarted();
+    PipelineModel model = ModelReadWrite.readBinary(binaryFile);
+    loading.stop();
+
+    PipelineEncoder encoder = new PipelineEncoder(model);
+    LinkedHashSet<Word> words = Sets.newLinkedHashSet();
+    for (InputRecord record : heldOut) {
+      words.add(record.xWord);
+    }
+    List<Word> toEncode = Lists.newArrayList(words);
+    for (Word word : toEncode.subList(0, Math.min(WARM_UP_WORDS, toEncode.size()))) {
+      encoder.encode(word);
+    }
+    Stopwatch encoding = Stopwatch.createStarted();
+    for (Word word : toEncode) {
+      encoder.encode(word);
+    }
+    encoding.stop();
+    double microsPerWord = encoding.elapsed(TimeUnit.MICROSECONDS) / (double) Math.max(1, toEncode.size());
+
+    EvalStats stats = new BulkEval(encoder).groupAndEval(heldOut);
+    log.info(String.format("%-10s binary size %,d bytes, load time %s, latency %.1f us/word, word accuracy %.4f, "
+                           + "phone accuracy %.4f", label, binaryFile.length(), loading, microsPerWord,
+                           stats.wordAccuracy(), stats.phoneAccuracy()));
+  }
+}
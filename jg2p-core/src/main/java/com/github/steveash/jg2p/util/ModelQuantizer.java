@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Preconditions;
+
+import com.github.steveash.jg2p.PipelineModel;
+import com.github.steveash.jg2p.align.Aligner;
+import com.github.steveash.jg2p.aligntag.AlignTagModel;
+import com.github.steveash.jg2p.syll.SyllTagModel;
+import com.github.steveash.jg2p.syllchain.SyllTagAlignerAdapter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+import cc.mallet.fst.CRF;
+import cc.mallet.types.SparseVector;
+
+/**
+ * Quantizes the weights of a model to a codebook of 2^bits values (see WeightCodebook).  The CRF weights (of the
+ * pronouncer, the aligner, and the syllable tagger) are snapped to their codes in place, which makes the binary
+ * model file much smaller (BinaryModelFormat writes weights that fit in a codebook as 1 or 2 byte codes).  The
+ * graphone language model is converted to its trie with its log probs and backoffs as codes and the kylm model is
+ * dropped, so the LM is smaller both in the file and on the heap.
+ * <p>
+ * Mallet still needs the CRF weights as doubles at inference time so quantizing doesn't make those smaller on the
+ * heap.
+ * <p>
+ * Quantizing a model: ModelQuantizer input.dat output.bin bits (usually 8 or 16)
+ *
+ * @author Steve Ash
+ */
+public class ModelQuantizer {
+
+  private static final Logger log = LoggerFactory.getLogger(ModelQuantizer.class);
+
+  public static void main(String[] args) {
+    try {
+      if (args.length != 3) {
+        throw new IllegalArgumentException("usage: ModelQuantizer input.dat output.bin bits");
+      }
+      int bits = Integer.parseInt(args[2]);
+      log.info("Quantizing the model " + args[0] + " to " + bits + " bits in " + args[1] + "...");
+      PipelineModel model = ModelReadWrite.readPipelineFrom(new File(args[0]));
+      quantize(model, bits);
+      ModelReadWrite.writeBinary(model, new File(args[1]));
+      log.info("Quantization complete!");
+    } catch (Exception e) {
+      log.error("Problem quantizing the model ", e);
+    }
+  }
+
+  /**
+   * Quantizes all of the weights in the model in place
+   */
+  public static void quantize(PipelineModel model, int bits) {
+    checkBits(bits);
+    if (model.getPronouncerModel() != null) {
+      quantize(model.getPronouncerModel().getCrf(), bits, "pronouncer");
+    }
+    quantizeAligner(model.getTestingAlignerModel(), bits);
+    if (model.getGraphoneModel() != null) {
+      model.getGraphoneModel().setQuantizeBits(bits);
+      log.info("Quantized the graphone model to {} bits", bits);
+    }
+  }
+
+  private static void quantizeAligner(Aligner aligner, int bits) {
+    if (aligner instanceof AlignTagModel) {
+      quantize(((AlignTagModel) aligner).getCrf(), bits, "aligner");
+    } else if (aligner instanceof SyllTagModel) {
+      quantize(((SyllTagModel) aligner).getCrf(), bits, "aligner");
+    } else if (aligner instanceof SyllTagAlignerAdapter) {
+      SyllTagAlignerAdapter adapter = (SyllTagAlignerAdapter) aligner;
+      quantizeAligner(adapter.getBaseAligner(), bits);
+      quantize(adapter.getSyllTagger().getCrf(), bits, "syllable tagger");
+    } else if (aligner != null) {
+      log.warn("Don't know how to quantize the aligner " + aligner.getClass().getSimpleName() + "; leaving it as is");
+    }
+  }
+
+  /**
+   * Quantizes the weights (and default weights) of the given CRF in place.  The initial and final weights of the
+   * states are left alone as there are only a few of them and they're mostly -Infinity
+   * @return the codebook that the weights were quantized to
+   */
+  public static WeightCodebook quantize(CRF crf, int bits) {
+    checkBits(bits);
+    CRF.Factors params = crf.getParameters();
+    int count = params.defaultWeights.length;
+    for (SparseVector weights : params.weights) {
+      count += weights.getValues().length;
+    }
+    double[] all = new double[count];
+    int next = 0;
+    for (SparseVector weights : params.weights) {
+      double[] values = weights.getValues();
+      System.arraycopy(values, 0, all, next, values.length);
+      next += values.length;
+    }
+    System.arraycopy(params.defaultWeights, 0, all, next, params.defaultWeights.length);
+
+    WeightCodebook codebook = WeightCodebook.build(all, bits);
+    for (SparseVector weights : params.weights) {
+      codebook.quantizeInPlace(weights.getValues());
+    }
+    codebook.quantizeInPlace(params.defaultWeights);
+    crf.weightsValueChanged();
+    return codebook;
+  }
+
+  private static void quantize(CRF crf, int bits, String name) {
+    WeightCodebook codebook = quantize(crf, bits);
+    log.info("Quantized the {} CRF weights to {} codes", name, codebook.size());
+  }
+
+  private static void checkBits(int bits) {
+    Preconditions.checkArgument(bits >= 1 && bits <= 16, "can only quantize to 1 to 16 bits");
+  }
+}
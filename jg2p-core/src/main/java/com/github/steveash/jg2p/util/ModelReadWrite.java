@@ -17,6 +17,11 @@
 package com.github.steveash.jg2p.util;
 
 import com.google.common.base.Throwables;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.github.steveash.jg2p.PhoneticEncoder;
 import com.github.steveash.jg2p.PipelineModel;
@@ -32,6 +37,14 @@ import com.github.steveash.jg2p.syllchain.SyllTagAlignerAdapter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -96,12 +109,126 @@ public class ModelReadWrite {
       throw new IllegalArgumentException("Can't read a model from " + file);
     }
     try {
+      ByteSource source = Files.asByteSource(new File(file));
+      if (isBinaryModel(source)) {
+        return readBinary(new File(file));
+      }
       return ReadWrite.readFromFile(Object.class, new File(file));
     } catch (IOException | ClassNotFoundException e) {
       throw Throwables.propagate(e);
     }
   }
 
+  /**
+   * Writes the model in the BinaryModelFormat which is much faster to load than the java serialized .dat files
+   */
+  public static void writeBinary(PipelineModel model, File outputFile) throws IOException {
+    ByteSink sink = Files.asByteSink(outputFile);
+    try (OutputStream out = sink.openBufferedStream()) {
+      BinaryModelFormat.write(model, out);
+    }
+  }
+
+  /**
+   * Reads the binary model by memory mapping the file and decoding the sections directly out of the page cache
+   * (instead of streaming the file through the heap)
+   */
+  public static PipelineModel readBinary(File inputFile) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(inputFile, "r")) {
+      FileChannel channel = raf.getChannel();
+      return BinaryModelFormat.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Memory maps the binary model file and decodes its sections in parallel on the given executor (which the caller
+   * owns); the future completes when all of the requested components are loaded
+   * @param includeTrainingOnly if false then the training aligner model isn't loaded (its null in the result)
+   */
+  public static ListenableFuture<PipelineModel> readBinaryAsync(File inputFile, boolean includeTrainingOnly,
+                                                                ExecutorService executor) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(inputFile, "r")) {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return BinaryModelFormat.readAsync(mapped, includeTrainingOnly, executor);
+    }
+  }
+
+  /**
+   * Reads the binary model from the classpath; if the resource is a plain file (not inside of a jar) then it is
+   * memory mapped like readBinary(File)
+   */
+  public static PipelineModel readBinaryFromClasspath(String resourceName) throws IOException {
+    URL url = Resources.getResource(resourceName);
+    File file = asFile(url);
+    if (file != null) {
+      return readBinary(file);
+    }
+    return readBinary(Resources.asByteSource(url));
+  }
+
+  /**
+   * Reads the pipeline model from the classpath in either the binary format or the older java serialized format
+   */
+  public static PipelineModel readPipelineFromClasspath(String resourceName) throws IOException {
+    ByteSource source = Resources.asByteSource(Resources.getResource(resourceName));
+    if (isBinaryModel(source)) {
+      return readBinaryFromClasspath(resourceName);
+    }
+    try {
+      return ReadWrite.readFromClasspath(PipelineModel.class, resourceName);
+    } catch (ClassNotFoundException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Reads the pipeline model from the file in either the binary format (which is memory mapped) or the older java
+   * serialized format
+   */
+  public static PipelineModel readPipelineFrom(File file) throws IOException {
+    if (isBinaryModel(Files.asByteSource(file))) {
+      return readBinary(file);
+    }
+    try {
+      return ReadWrite.readFromFile(PipelineModel.class, file);
+    } catch (ClassNotFoundException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static PipelineModel readBinary(ByteSource source) throws IOException {
+    try (InputStream in = source.openBufferedStream()) {
+      return BinaryModelFormat.read(in);
+    }
+  }
+
+  /**
+   * Reads the java serialized model from the given .dat file and writes it back out in the binary format
+   */
+  public static void convertToBinary(File datFile, File outputFile) throws IOException {
+    try {
+      writeBinary(ReadWrite.readFromFile(PipelineModel.class, datFile), outputFile);
+    } catch (ClassNotFoundException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static File asFile(URL url) {
+    if (!"file".equalsIgnoreCase(url.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static boolean isBinaryModel(ByteSource source) throws IOException {
+    return BinaryModelFormat.isBinaryModel(source.slice(0, 4).read());
+  }
+
   public static PhonemeCrfModel readPronouncerFrom(String file) {
     Object model = read(file);
     if (model instanceof PhonemeCrfModel) {
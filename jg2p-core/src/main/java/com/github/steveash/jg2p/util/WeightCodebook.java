@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+
+import java.util.Arrays;
+
+/**
+ * A codebook of at most 2^bits values that model weights (CRF weights, LM log probs) are quantized to.  The
+ * codebook is built from the distribution of the weights: the sorted (finite, non-zero) weights are cut in to bins
+ * with the same number of weights in each and the code for a bin is the mean of its weights; so there is more
+ * resolution where there are more weights.  Zero is always its own code (so sparse weights stay exactly zero) and
+ * if there are no more distinct values than codes then the codebook is just the distinct values (i.e. lossless).
+ * <p>
+ * Values are encoded as the nearest code.  Non-finite values (like the -Infinity initial weights of the CRF states)
+ * can't be quantized so callers should leave them alone.
+ *
+ * @author Steve Ash
+ */
+public class WeightCodebook {
+
+  private final double[] codes; // sorted ascending
+
+  private WeightCodebook(double[] codes) {
+    this.codes = codes;
+  }
+
+  /**
+   * @param values the values to build the codebook for (this isn't modified); non-finite values are ignored
+   * @param bits the codebook will have at most 2^bits codes; must be in [1, 16]
+   */
+  public static WeightCodebook build(double[] values, int bits) {
+    return build(values, bits, 0);
+  }
+
+  /**
+   * @param reservedCodes this many of the 2^bits codes are left for the caller (e.g. for the non-finite values)
+   */
+  public static WeightCodebook build(double[] values, int bits, int reservedCodes) {
+    Preconditions.checkArgument(bits >= 1 && bits <= 16, "bits must be in [1, 16]");
+    int maxCodes = (1 << bits) - reservedCodes;
+    Preconditions.checkArgument(maxCodes >= 2, "must leave at least two codes");
+    double[] sorted = new double[values.length];
+    int count = 0;
+    boolean hasZero = false;
+    for (double value : values) {
+      if (value == 0) {
+        hasZero = true;
+      } else if (Doubles.isFinite(value)) {
+        sorted[count++] = value;
+      }
+    }
+    Arrays.sort(sorted, 0, count);
+    int binCount = maxCodes - (hasZero ? 1 : 0);
+
+    double[] built = new double[Math.min(binCount, count) + 1];
+    int used = 0;
+    if (hasZero) {
+      built[used++] = 0.0;
+    }
+    if (countDistinct(sorted, count) <= binCount) {
+      for (int i = 0; i < count; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          built[used++] = sorted[i];
+        }
+      }
+    } else {
+      int start = 0;
+      for (int bin = 0; bin < binCount && start < count; bin++) {
+        // the bins are the same size but equal values always go in the same bin
+        int end = (int) (((long) count * (bin + 1)) / binCount);
+        end = Math.max(end, start + 1);
+        while (end < count && sorted[end] == sorted[end - 1]) {
+          end += 1;
+        }
+        double sum = 0;
+        for (int i = start; i < end; i++) {
+          sum += sorted[i];
+        }
+        built[used++] = sum / (end - start);
+        start = end;
+      }
+    }
+    double[] result = Arrays.copyOf(built, used);
+    Arrays.sort(result);
+    return new WeightCodebook(result);
+  }
+
+  private static int countDistinct(double[] sorted, int count) {
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        distinct += 1;
+      }
+    }
+    return distinct;
+  }
+
+  /**
+   * Makes a codebook from codes that were already built (e.g. when reading a model)
+   */
+  public static WeightCodebook fromCodes(double[] codes) {
+    double[] sorted = codes.clone();
+    Arrays.sort(sorted);
+    return new WeightCodebook(sorted);
+  }
+
+  public int size() {
+    return codes.length;
+  }
+
+  /**
+   * @return the code (index in to the codebook) that is nearest to the value
+   */
+  public int encode(double value) {
+    Preconditions.checkArgument(Doubles.isFinite(value), "cant quantize non-finite values");
+    int found = Arrays.binarySearch(codes, value);
+    if (found >= 0) {
+      return found;
+    }
+    int above = -(found + 1);
+    if (above == 0) {
+      return 0;
+    }
+    if (above == codes.length) {
+      return codes.length - 1;
+    }
+    return (value - codes[above - 1]) <= (codes[above] - value) ? above - 1 : above;
+  }
+
+  public double decode(int code) {
+    return codes[code];
+  }
+
+  /**
+   * @return the value of the code that is nearest to the given value; non-finite values are returned as-is
+   */
+  public double quantize(double value) {
+    if (!Doubles.isFinite(value)) {
+      return value;
+    }
+    return codes[encode(value)];
+  }
+
+  /**
+   * Replaces each (finite) value in the array with its nearest code value
+   * @return the largest absolute change of any value
+   */
+  public double quantizeInPlace(double[] values) {
+    double maxError = 0;
+    for (int i = 0; i < values.length; i++) {
+      double quantized = quantize(values[i]);
+      if (Doubles.isFinite(values[i])) {
+        maxError = Math.max(maxError, Math.abs(quantized - values[i]));
+      }
+      values[i] = quantized;
+    }
+    return maxError;
+  }
+
+  /**
+   * @return a copy of the code values in code order
+   */
+  public double[] getCodes() {
+    return codes.clone();
+  }
+}
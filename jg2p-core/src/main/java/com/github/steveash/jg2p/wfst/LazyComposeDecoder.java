@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.wfst;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongDoubleOpenHashMap;
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+import com.github.steveash.jopenfst.Arc;
+import com.github.steveash.jopenfst.Fst;
+import com.github.steveash.jopenfst.ImmutableFst;
+import com.github.steveash.jopenfst.State;
+import com.github.steveash.jopenfst.SymbolTable;
+import com.github.steveash.jopenfst.semiring.TropicalSemiring;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Decodes the k best distinct output strings for an entry acceptor against the transducer without ever building the
+ * composition.  The composed states (entry state, model state) are only made as the search reaches them: the search
+ * is best first on the path cost and each partial path is only expanded if its cost is within the beam of the best
+ * partial path that has reached the same entry state (i.e. the same position in the input word).  Partial paths that
+ * end in the same composed state with the same output so far can only be extended the same way so only the cheapest
+ * of them is kept, which is also what makes the complete paths come out as distinct strings.  The search stops as
+ * soon as it has found topK distinct output strings.
+ * <p>
+ * With non-negative arc weights the strings come out in cost order and (beam pruning aside) are the same as the k
+ * best strings of the full composition.  The LM backoff arcs can have small negative weights so the results are
+ * sorted by cost at the end, but a string that is only found after the search stops is missed.
+ *
+ * @author Steve Ash
+ */
+class LazyComposeDecoder {
+
+  private static final Logger log = LoggerFactory.getLogger(LazyComposeDecoder.class);
+  private static final TropicalSemiring RING = TropicalSemiring.INSTANCE;
+  // a guard against pathological inputs; no real word comes anywhere near this with a sane beam
+  private static final int MAX_EXPANSIONS = 250000;
+  private static final int NO_LABEL = -1;
+
+  private final ImmutableFst fst;
+  private final int epsLabel;
+  private final boolean arcsSorted;
+  private final boolean[] dropOutput; // indexed by output label; eps and skip labels aren't part of the output
+  private final SymbolTable.InvertedSymbolTable outputLabels;
+
+  LazyComposeDecoder(ImmutableFst fst, Set<String> skipLabels) {
+    this.fst = fst;
+    SymbolTable isyms = fst.getInputSymbols();
+    this.epsLabel = (isyms.contains(Fst.EPS) ? isyms.get(Fst.EPS) : NO_LABEL);
+    this.arcsSorted = isSortedByInput(fst);
+    this.outputLabels = fst.getOutputSymbols().invert();
+    int maxLabel = 0;
+    for (ObjectIntCursor<String> cursor : fst.getOutputSymbols()) {
+      maxLabel = Math.max(maxLabel, cursor.value);
+    }
+    this.dropOutput = new boolean[maxLabel + 1];
+    for (ObjectIntCursor<String> cursor : fst.getOutputSymbols()) {
+      dropOutput[cursor.value] = cursor.key.equals(Fst.EPS) || skipLabels.contains(cursor.key);
+    }
+  }
+
+  private static boolean isSortedByInput(Fst fst) {
+    for (int i = 0; i < fst.getStateCount(); i++) {
+      State state = fst.getState(i);
+      for (int j = 1; j < state.getArcCount(); j++) {
+        if (state.getArc(j - 1).getIlabel() > state.getArc(j).getIlabel()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param entry the acceptor of the input word (no epsilons) with the same input symbols as the transducer
+   * @param beam partial paths that cost more than this over the best partial path at the same entry state are pruned
+   * @return the best (up to) topK distinct output strings in cost order
+   */
+  List<PathDecoder.CandidatePath> decode(Fst entry, int topK, double beam) {
+    Preconditions.checkArgument(topK > 0, "must ask for at least one result");
+    Preconditions.checkArgument(beam >= 0, "beam must be non-negative");
+    Search search = new Search(entry, beam);
+    return search.run(topK);
+  }
+
+  private static final class Hyp implements Comparable<Hyp> {
+
+    private final int entryState;
+    private final State modelState;
+    private final int output;
+    private final double cost;
+    private final boolean complete;
+
+    private Hyp(int entryState, State modelState, int output, double cost, boolean complete) {
+      this.entryState = entryState;
+      this.modelState = modelState;
+      this.output = output;
+      this.cost = cost;
+      this.complete = complete;
+    }
+
+    @Override
+    public int compareTo(Hyp o) {
+      return Double.compare(this.cost, o.cost);
+    }
+  }
+
+  // the state of one decode; the outputs are interned in a trie so that equal output strings have equal ids
+  private final class Search {
+
+    private final Fst entry;
+    private final double beam;
+    private final double[] bestAtEntryState;
+    private final PriorityQueue<Hyp> queue = new PriorityQueue<>();
+    // the best cost of each (model state, output) per entry state; entry states are only the positions in the word
+    private final LongDoubleOpenHashMap[] bestCost;
+    private final LongIntOpenHashMap outputChildren = new LongIntOpenHashMap();
+    private final IntArrayList outputParent = new IntArrayList();
+    private final IntArrayList outputLabel = new IntArrayList();
+
+    private Search(Fst entry, double beam) {
+      this.entry = entry;
+      this.beam = beam;
+      this.bestAtEntryState = new double[entry.getStateCount()];
+      Arrays.fill(bestAtEntryState, Double.POSITIVE_INFINITY);
+      this.bestCost = new LongDoubleOpenHashMap[entry.getStateCount()];
+      outputParent.add(-1); // the root is the empty output
+      outputLabel.add(NO_LABEL);
+    }
+
+    private List<PathDecoder.CandidatePath> run(int topK) {
+      List<PathDecoder.CandidatePath> results = Lists.newArrayListWithCapacity(topK);
+      boolean[] emitted = new boolean[0];
+      push(entry.getStartState().getId(), fst.getStartState(), 0, RING.one());
+      int expansions = 0;
+      while (!queue.isEmpty() && results.size() < topK && expansions < MAX_EXPANSIONS) {
+        Hyp hyp = queue.poll();
+        if (hyp.complete) {
+          if (hyp.output >= emitted.length) {
+            emitted = Arrays.copyOf(emitted, Math.max(hyp.output + 1, emitted.length * 2));
+          }
+          if (!emitted[hyp.output]) {
+            emitted[hyp.output] = true;
+            results.add(new PathDecoder.CandidatePath(outputString(hyp.output), hyp.cost));
+          }
+          continue;
+        }
+        if (isStale(hyp)) {
+          continue;
+        }
+        expansions += 1;
+        expand(hyp);
+      }
+      if (expansions >= MAX_EXPANSIONS && results.size() < topK) {
+        log.warn("Gave up decoding after " + MAX_EXPANSIONS + " expansions with only " + results.size() + " of the " +
+                 topK + " results; try a smaller beam");
+      }
+      return Ordering.natural().sortedCopy(results);
+    }
+
+    // a cheaper path got to the same composed state or this one fell out of the beam since it was queued
+    private boolean isStale(Hyp hyp) {
+      if (hyp.cost > bestAtEntryState[hyp.entryState] + beam) {
+        return true;
+      }
+      LongDoubleOpenHashMap costs = bestCost[hyp.entryState];
+      long key = composedKey(hyp.modelState.getId(), hyp.output);
+      return costs != null && costs.containsKey(key) && costs.lget() < hyp.cost;
+    }
+
+    private void expand(Hyp hyp) {
+      State model = hyp.modelState;
+      State entryState = entry.getState(hyp.entryState);
+      if (isFinal(entryState.getFinalWeight()) && isFinal(model.getFinalWeight())) {
+        double cost = RING.times(hyp.cost, RING.times(entryState.getFinalWeight(), model.getFinalWeight()));
+        queue.add(new Hyp(hyp.entryState, model, hyp.output, cost, true));
+      }
+      // epsilon input arcs in the model move without consuming any of the input
+      if (epsLabel != NO_LABEL) {
+        for (int i = firstArc(model, epsLabel); i < model.getArcCount(); i++) {
+          Arc arc = model.getArc(i);
+          if (arc.getIlabel() != epsLabel) {
+            if (arcsSorted) {
+              break;
+            }
+            continue;
+          }
+          push(hyp.entryState, arc.getNextState(), extend(hyp.output, arc.getOlabel()),
+               RING.times(hyp.cost, arc.getWeight()));
+        }
+      }
+      for (int e = 0; e < entryState.getArcCount(); e++) {
+        Arc entryArc = entryState.getArc(e);
+        int label = entryArc.getIlabel();
+        int nextEntry = entryArc.getNextState().getId();
+        double entryCost = RING.times(hyp.cost, entryArc.getWeight());
+        for (int i = firstArc(model, label); i < model.getArcCount(); i++) {
+          Arc arc = model.getArc(i);
+          if (arc.getIlabel() != label) {
+            if (arcsSorted) {
+              break;
+            }
+            continue;
+          }
+          push(nextEntry, arc.getNextState(), extend(hyp.output, arc.getOlabel()),
+               RING.times(entryCost, arc.getWeight()));
+        }
+      }
+    }
+
+    private void push(int entryState, State modelState, int output, double cost) {
+      if (!RING.isMember(cost) || RING.isZero(cost) || cost > bestAtEntryState[entryState] + beam) {
+        return;
+      }
+      LongDoubleOpenHashMap costs = bestCost[entryState];
+      if (costs == null) {
+        costs = new LongDoubleOpenHashMap();
+        bestCost[entryState] = costs;
+      }
+      long key = composedKey(modelState.getId(), output);
+      if (costs.containsKey(key) && costs.lget() <= cost) {
+        return;
+      }
+      costs.put(key, cost);
+      bestAtEntryState[entryState] = Math.min(bestAtEntryState[entryState], cost);
+      queue.add(new Hyp(entryState, modelState, output, cost, false));
+    }
+
+    private int extend(int output, int olabel) {
+      if (olabel < 0 || (olabel < dropOutput.length && dropOutput[olabel])) {
+        return output;
+      }
+      long childKey = (((long) output) << 32) | (olabel & 0xFFFFFFFFL);
+      if (outputChildren.containsKey(childKey)) {
+        return outputChildren.lget();
+      }
+      int child = outputParent.size();
+      outputParent.add(output);
+      outputLabel.add(olabel);
+      outputChildren.put(childKey, child);
+      return child;
+    }
+
+    private List<String> outputString(int output) {
+      LinkedList<String> labels = Lists.newLinkedList();
+      for (int node = output; node > 0; node = outputParent.get(node)) {
+        labels.addFirst(outputLabels.keyForId(outputLabel.get(node)));
+      }
+      return labels;
+    }
+  }
+
+  // the model state and the (interned) output so far packed in to one key
+  private static long composedKey(int modelState, int output) {
+    return (((long) modelState) << 32) | (output & 0xFFFFFFFFL);
+  }
+
+  // the index of the first arc that could have this input label
+  private int firstArc(State state, int label) {
+    if (!arcsSorted) {
+      return 0;
+    }
+    int lo = 0;
+    int hi = state.getArcCount();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (state.getArc(mid).getIlabel() < label) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static boolean isFinal(double finalWeight) {
+    return RING.isMember(finalWeight) && RING.isNotZero(finalWeight);
+  }
+}
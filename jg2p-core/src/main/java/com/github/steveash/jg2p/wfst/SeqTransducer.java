@@ -62,6 +62,11 @@ public class SeqTransducer implements Serializable {
   private static final double precision = 0.85;
   private static final double ratio = 0.72;
   private static final int beamWidth = 1500;
+  /**
+   * The default beam (in the tropical cost, i.e. -ln(p)) for decoding; paths that cost more than this over the best
+   * path at the same position in the input word are pruned
+   */
+  public static final double DEFAULT_BEAM = 15.0;
   private static final TropicalSemiring RING = TropicalSemiring.INSTANCE;
 
   private final ImmutableFst fst;
@@ -69,6 +74,7 @@ public class SeqTransducer implements Serializable {
   private final ImmutableBiMap<String, Integer> skipInputIndexes;
   private final ImmutableFst epsMapper;
   private final EntryFstMaker entryMaker;
+  private final LazyComposeDecoder decoder;
   private final int order;
 
   public SeqTransducer(ImmutableFst fst, int order) {
@@ -85,6 +91,7 @@ public class SeqTransducer implements Serializable {
 //    epsMapper = makeEpsMapper(osyms, skipInputIndexes.keySet());
     epsMapper = null;
     entryMaker = new EntryFstMaker(fst.getInputSymbols().symbols());
+    decoder = new LazyComposeDecoder(this.fst, ALL_SKIP_STRINGS);
   }
 
   private static ImmutableFst makeEpsMapper(ImmutableSymbolTable osyms, ImmutableSet<String> skipLabels) {
@@ -114,6 +121,26 @@ public class SeqTransducer implements Serializable {
   }
 
   public List<WordResult> translate(Word inputWord, int topKResults) {
+    return translate(inputWord, topKResults, DEFAULT_BEAM);
+  }
+
+  /**
+   * Decodes the topK best distinct pronunciations by composing the input word with the transducer lazily (only the
+   * composed states within the beam of the best path so far are ever made) and stopping as soon as topK distinct
+   * pronunciations have been found
+   * @param beam the pruning beam (see DEFAULT_BEAM); larger is slower but less likely to miss a good path
+   */
+  public List<WordResult> translate(Word inputWord, int topKResults, double beam) {
+    throwIfInvalidInput(inputWord);
+    MutableFst efst = entryMaker.inputToFst(inputWord, fst.getInputSymbols());
+    return convertResults(decoder.decode(efst, topKResults, beam));
+  }
+
+  /**
+   * Decodes by building the whole composition of the input word and the transducer and then taking the n shortest
+   * paths of that; this is much slower than translate but isn't pruned so its useful to check translate against
+   */
+  public List<WordResult> translateByFullComposition(Word inputWord, int topKResults) {
     throwIfInvalidInput(inputWord);
     MutableFst efst = entryMaker.inputToFst(inputWord, fst.getInputSymbols());
 //    double[] thetas = computeThetas(inputWord.unigramCount());
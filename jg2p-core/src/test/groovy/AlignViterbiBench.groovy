@@ -0,0 +1,52 @@
+import com.github.steveash.jg2p.align.AlignerTrainer
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.align.TrainOptions
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.google.common.base.Stopwatch
+import org.slf4j.LoggerFactory
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// times the k-best viterbi decoders over the training set (like AlignTagTrainer.makeAlignmentInputFromRaw does)
+def trainFile = "cmu7b.train"
+def nBest = 5
+def rounds = 3
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def train = InputReader.makePSaurusReader().readFromClasspath(trainFile)
+def opts = new TrainOptions()
+opts.trainingAlignerMaxIterations = 10
+def model = new AlignerTrainer(opts).train(train)
+
+// warm up the jit before timing anything
+train.take(5000).each { model.align(it.left, it.right, nBest) }
+
+rounds.times { round ->
+  def watch = Stopwatch.createStarted()
+  def paths = 0
+  train.each { paths += model.align(it.left, it.right, nBest).size() }
+  watch.stop()
+  out.println("Round $round aligned ${train.size()} x,y pairs ($paths paths) in $watch")
+
+  watch = Stopwatch.createStarted()
+  paths = 0
+  train.each { paths += model.inferAlignments(it.left, nBest).size() }
+  watch.stop()
+  out.println("Round $round inferred ${train.size()} x alignments ($paths paths) in $watch")
+}
@@ -0,0 +1,94 @@
+import com.github.steveash.jg2p.align.AlignerTrainer
+import com.github.steveash.jg2p.align.FullXyWalker
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.align.ProbTable
+import com.github.steveash.jg2p.align.TrainOptions
+import com.github.steveash.jg2p.align.XyWalker
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.google.common.base.Stopwatch
+import com.google.common.collect.HashBasedTable
+import org.slf4j.LoggerFactory
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// compares the table operations of an EM round on the old guava HashBasedTable against the primitive ProbTable
+// and then times the real aligner EM rounds
+def trainFile = "cmu7b.train"
+def rounds = 5
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def train = InputReader.makePSaurusReader().readFromClasspath(trainFile)
+def opts = new TrainOptions()
+def walker = new FullXyWalker(opts.makeGramOptions())
+
+// collect every xy gram visit that the expectation step makes so we can replay them against each table
+def xs = []
+def ys = []
+train.each { rec ->
+  walker.forward(rec.left, rec.right, { int xb, int xa, String xg, int yb, int ya, String yg ->
+    xs << xg
+    ys << yg
+  } as XyWalker.Visitor)
+}
+String[] xGrams = xs as String[]
+String[] yGrams = ys as String[]
+out.println("Replaying ${xGrams.length} gram visits from ${train.size()} records")
+
+def guavaProbs = HashBasedTable.create()
+def probs = new ProbTable()
+for (int i = 0; i < xGrams.length; i++) {
+  guavaProbs.put(xGrams[i], yGrams[i], 0.5d)
+  probs.setProb(xGrams[i], yGrams[i], 0.5d)
+}
+
+def guavaRound = {
+  def counts = HashBasedTable.create()
+  for (int i = 0; i < xGrams.length; i++) {
+    double p = guavaProbs.get(xGrams[i], yGrams[i])
+    Double existing = counts.get(xGrams[i], yGrams[i])
+    counts.put(xGrams[i], yGrams[i], (existing == null ? 0.0d : existing) + p)
+  }
+  return counts.size()
+}
+def primitiveRound = {
+  def counts = new ProbTable()
+  for (int i = 0; i < xGrams.length; i++) {
+    counts.addProb(xGrams[i], yGrams[i], probs.prob(xGrams[i], yGrams[i]))
+  }
+  return counts.entryCount()
+}
+
+// warm up the jit before timing anything
+guavaRound()
+primitiveRound()
+
+[guava: guavaRound, primitive: primitiveRound].each { name, round ->
+  def watch = Stopwatch.createStarted()
+  def cells = 0
+  rounds.times { cells = round() }
+  watch.stop()
+  out.println("$name table did $rounds replayed rounds ($cells cells) in $watch")
+}
+
+opts.trainingAlignerMaxIterations = rounds
+opts.probDeltaConvergenceThreshold = 0
+def watch = Stopwatch.createStarted()
+def model = new AlignerTrainer(opts).train(train)
+watch.stop()
+out.println("Aligner EM with ProbTable ran $rounds rounds (${model.transitions.entryCount()} cells) in $watch")
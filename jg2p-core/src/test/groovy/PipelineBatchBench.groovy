@@ -0,0 +1,63 @@
+import com.github.steveash.jg2p.PipelineEncoder
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.github.steveash.jg2p.util.ReadWrite
+import com.google.common.base.Stopwatch
+import com.google.common.util.concurrent.MoreExecutors
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// compares the single word encode loop against the batch encodeAll api
+def testFile = "cmu7b.test"
+def modelFile = "../resources/pipe_43sy_cmu7_fixsg_1.dat"
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def test = InputReader.makePSaurusReader().readFromClasspath(testFile)
+def words = test.collect { it.left }.unique()
+def model = ReadWrite.readFromFile(PipelineModel, new File(modelFile))
+def enc = new PipelineEncoder(model)
+
+// warm up the jit on a slice before timing anything
+words.take(1000).each { enc.encode(it) }
+
+def watch = Stopwatch.createStarted()
+def singleCount = 0
+for (Word word : words) {
+  singleCount += enc.encode(word).size()
+}
+watch.stop()
+out.println("Single word loop encoded ${words.size()} words ($singleCount results) in $watch")
+
+def workers = Runtime.getRuntime().availableProcessors()
+def exec = Executors.newFixedThreadPool(workers)
+try {
+  watch = Stopwatch.createStarted()
+  def batch = enc.encodeAll(words, exec, workers)
+  watch.stop()
+  def batchCount = batch.sum { it.size() }
+  out.println("Batch encodeAll with $workers workers encoded ${batch.size()} words ($batchCount results) in $watch")
+} finally {
+  MoreExecutors.shutdownAndAwaitTermination(exec, 60, TimeUnit.SECONDS)
+}
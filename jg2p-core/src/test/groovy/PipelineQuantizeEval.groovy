@@ -0,0 +1,55 @@
+import com.github.steveash.jg2p.PipelineEncoder
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.eval.BulkEval
+import com.github.steveash.jg2p.util.GroovyLogger
+import com.github.steveash.jg2p.util.ModelQuantizer
+import com.github.steveash.jg2p.util.ModelReadWrite
+import com.github.steveash.jg2p.util.ReadWrite
+import com.google.common.base.Stopwatch
+import org.slf4j.LoggerFactory
+
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// compares the accuracy (and binary file size) of a model before and after quantizing its weights
+def testFile = "cmu7b.test"
+def modelFile = "../resources/pipe_43sy_cmu7_fixsg_1.dat"
+def bitsToTry = [16, 8]
+
+def log = LoggerFactory.getLogger("psaurus")
+out = new GroovyLogger(log)
+
+def test = InputReader.makePSaurusReader().readFromClasspath(testFile)
+
+def evalModel = { PipelineModel model, String label ->
+  def watch = Stopwatch.createStarted()
+  def stats = new BulkEval(new PipelineEncoder(model)).groupAndEval(test)
+  watch.stop()
+  def binFile = File.createTempFile("quantized", ".bin")
+  binFile.deleteOnExit()
+  ModelReadWrite.writeBinary(model, binFile)
+  out.println(String.format("%-12s word acc %.4f phone acc %.4f binary size %,d bytes (eval took %s)", label,
+                            stats.wordAccuracy(), stats.phoneAccuracy(), binFile.length(), watch))
+}
+
+evalModel(ReadWrite.readFromFile(PipelineModel, new File(modelFile)), "baseline")
+bitsToTry.each { int bits ->
+  // quantizing changes the model in place so start from a fresh copy each time
+  def model = ReadWrite.readFromFile(PipelineModel, new File(modelFile))
+  ModelQuantizer.quantize(model, bits)
+  evalModel(model, "$bits bits")
+}
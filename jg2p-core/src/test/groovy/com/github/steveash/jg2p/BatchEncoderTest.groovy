@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p
+
+import com.google.common.util.concurrent.MoreExecutors
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * @author Steve Ash
+ */
+class BatchEncoderTest {
+
+  private ExecutorService exec
+
+  // "encodes" a word by just reversing the letters
+  private final Encoder reversing = new Encoder() {
+    @Override
+    List<? extends EncodingResult> encode(Word input) {
+      def enc = PhoneticEncoder.Encoding.createEncoding(input.value, input.value.reverse(), [], 0, 0, 0, 0)
+      return [enc]
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    exec = Executors.newFixedThreadPool(3)
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    MoreExecutors.shutdownAndAwaitTermination(exec, 10, TimeUnit.SECONDS)
+  }
+
+  @Test
+  public void shouldPreserveInputOrder() throws Exception {
+    def words = (0..<1000).collect { Word.fromNormalString("ABC" + it) }
+    def results = new BatchEncoder(reversing, exec, 3, 64).encodeAll(words)
+    assert results.size() == words.size()
+    words.eachWithIndex { Word w, int i ->
+      assert results[i][0].phones == w.value.reverse()
+    }
+  }
+
+  @Test
+  public void shouldStreamInBlocks() throws Exception {
+    def words = (0..<1000).collect { Word.fromNormalString("XY" + it) }
+    def results = new BatchEncoder(reversing, exec, 3, 64).encodeAllLazily(words).collect()
+    assert results.size() == words.size()
+    words.eachWithIndex { Word w, int i ->
+      assert results[i][0].phones == w.value.reverse()
+    }
+  }
+
+  @Test
+  public void shouldHandleEmpty() throws Exception {
+    assert new BatchEncoder(reversing, exec).encodeAll([]).isEmpty()
+    assert !new BatchEncoder(reversing, exec).encodeAllLazily([]).iterator().hasNext()
+  }
+}
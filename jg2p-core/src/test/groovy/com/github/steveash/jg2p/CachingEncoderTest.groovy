@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p
+
+import com.google.common.util.concurrent.MoreExecutors
+import org.junit.Test
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * @author Steve Ash
+ */
+class CachingEncoderTest {
+
+  private final AtomicInteger calls = new AtomicInteger(0)
+
+  // "encodes" a word by just reversing the letters and counts how many times it was called
+  private final Encoder reversing = new Encoder() {
+    @Override
+    List<? extends EncodingResult> encode(Word input) {
+      calls.incrementAndGet()
+      def first = PhoneticEncoder.Encoding.createEncoding(input.value, input.value.reverse(), [], 0, 0, 0, 0)
+      def second = PhoneticEncoder.Encoding.createEncoding(input.value, input.value, [], 0, 0, 0, 0)
+      second.rank = 1
+      return [first, second]
+    }
+  }
+
+  @Test
+  public void shouldOnlyEncodeOnce() throws Exception {
+    def enc = CachingEncoder.withMaximumSize(reversing, 100)
+    def first = enc.encode(Word.fromNormalString("STEVE"))
+    def second = enc.encode(Word.fromNormalString("STEVE"))
+    assert calls.get() == 1
+    assert first*.phones == second*.phones
+    assert first[0].phones == ["E", "V", "E", "T", "S"]
+    assert enc.stats().hitCount() == 1
+    assert enc.stats().missCount() == 1
+  }
+
+  @Test
+  public void shouldNotLetCallersCorruptTheCache() throws Exception {
+    def enc = CachingEncoder.withMaximumSize(reversing, 100)
+    def word = Word.fromNormalString("ASH")
+    def first = enc.encode(word)
+    first[1].rank = 99
+    try {
+      first[0].phones.set(0, "X")
+      assert false: "phones should be immutable"
+    } catch (UnsupportedOperationException ignored) {
+      // expected
+    }
+    try {
+      first.remove(0)
+      assert false: "results should be immutable"
+    } catch (UnsupportedOperationException ignored) {
+      // expected
+    }
+    // the rank stripping decorator re-assigns ranks on what it gets back
+    DuplicateStrippingEncoder.decorateIfNotAlready(enc).encode(word)
+
+    def again = enc.encode(word)
+    assert again*.rank == [0, 1]
+    assert again[0].phones == ["H", "S", "A"]
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() throws Exception {
+    def enc = CachingEncoder.withMaximumWeight(reversing, 30)
+    (0..<20).each { enc.encode(Word.fromNormalString("WORD" + it)) }
+    assert enc.stats().evictionCount() > 0
+    assert enc.size() < 20
+  }
+
+  @Test
+  public void shouldWarmFromWordList() throws Exception {
+    def enc = CachingEncoder.withMaximumSize(reversing, 1000)
+    def words = (0..<200).collect { Word.fromNormalString("W" + it) }
+    def exec = Executors.newFixedThreadPool(3)
+    try {
+      enc.warm(words, exec, 3)
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(exec, 10, TimeUnit.SECONDS)
+    }
+    enc.warm(words.subList(0, 10))
+    assert calls.get() == 200
+    assert enc.encode(words[57])[0].phones == words[57].value.reverse()
+    assert calls.get() == 200
+  }
+}
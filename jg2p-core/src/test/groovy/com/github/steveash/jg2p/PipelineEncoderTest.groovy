@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p
+
+import com.github.steveash.jg2p.align.InputReader
+import com.github.steveash.jg2p.lexicon.Lexicon
+import com.github.steveash.jg2p.lexicon.LexiconWriter
+import com.github.steveash.jg2p.lm.LangModel
+import com.github.steveash.jg2p.rerank.Rerank3Model
+import com.github.steveash.jg2p.rerank.RerankExample
+import com.github.steveash.jg2p.rerank.RerankableEncoder
+import com.github.steveash.jg2p.rerank.RerankableResult
+import com.github.steveash.jg2p.rerank.RerankerResult
+import com.google.common.io.CharSource
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * @author Steve Ash
+ */
+class PipelineEncoderTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder()
+
+  private Lexicon lexicon
+  private PipelineModel model
+  private List<Word> modelInputs = []
+
+  @Before
+  public void setUp() throws Exception {
+    def records = InputReader.makeCmuReader().read(CharSource.wrap("STEVE  S T IY1 V\nASH  AE1 SH\nASH(1)  AA1 SH\n"))
+    def file = folder.newFile()
+    LexiconWriter.write(records, file)
+    lexicon = Lexicon.open(file)
+    model = new StubModel()
+  }
+
+  // stands in for the trained models: every word that gets to them is "pronounced" as its own letters
+  private class StubModel extends PipelineModel {
+
+    @Override
+    RerankableEncoder getRerankEncoder() {
+      def lm = new LangModel(null, false) {
+        @Override
+        double[] scoreAll(List<PhoneticEncoder.Encoding> encodings) {
+          return encodings.collect { -1.0d } as double[]
+        }
+      }
+      return new RerankableEncoder(null, lm) {
+        @Override
+        RerankableResult encode(Word input) {
+          modelInputs << input
+          def result = new PhoneticEncoder.Result()
+          result.overallResults << PhoneticEncoder.Encoding.createEncoding(
+              input.value, input.value*.toUpperCase(), [], 0, 0, 0, 0)
+          return new RerankableResult(result, lm)
+        }
+      }
+    }
+
+    @Override
+    Rerank3Model getRerankerModel() {
+      return new Rerank3Model(null) {
+        @Override
+        List<RerankerResult> probabilities(List<RerankExample> ex) {
+          return ex.collect { new RerankerResult(it, 1.0d) }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldUseTheLexiconForKnownWords() throws Exception {
+    def encoder = new PipelineEncoder(model, false, lexicon)
+    // the models lower case their input so the lexicon shouldn't care about the case either
+    def steve = encoder.encode(Word.fromNormalString("steve"))
+    assert steve*.phones == [["S", "T", "IY", "V"]]
+    def ash = encoder.encode(Word.fromNormalString("ASH"))
+    assert ash*.phones == [["AE", "SH"], ["AA", "SH"]]
+    assert ash*.rank == [0, 1]
+    assert modelInputs.isEmpty()
+  }
+
+  @Test
+  public void shouldFallThroughToTheModelsForUnknownWords() throws Exception {
+    def encoder = new PipelineEncoder(model, false, lexicon)
+    def results = encoder.encode(Word.fromNormalString("basil"))
+    assert results*.phones == [["B", "A", "S", "I", "L"]]
+    assert modelInputs == [Word.fromNormalString("basil")]
+  }
+
+  @Test
+  public void shouldCountHitsAndMisses() throws Exception {
+    def encoder = new PipelineEncoder(model, false, lexicon)
+    ["steve", "ash", "basil", "Steve"].each { encoder.encode(Word.fromNormalString(it)) }
+    assert encoder.lexicon.hitCount == 3
+    assert encoder.lexicon.missCount == 1
+    assert encoder.lexicon.hitRate() == 0.75d
+  }
+}
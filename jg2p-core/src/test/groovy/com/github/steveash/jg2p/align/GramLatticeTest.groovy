@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.util.DoubleTable
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+
+/**
+ * @author Steve Ash
+ */
+class GramLatticeTest {
+
+  private static final Word x = Word.fromNormalString("shock")
+  private static final Word y = Word.fromSpaceSeparated("SH AA K")
+
+  @Test
+  public void shouldMatchWalkingTheFullLattice() throws Exception {
+    def opts = new GramOptions(1, 2, 1, 2, true, true, false, 0)
+    assertSameExpectation(new FullXyWalker(opts))
+  }
+
+  @Test
+  public void shouldMatchWalkingTheWindowLattice() throws Exception {
+    assertSameExpectation(new WindowXyWalker(new GramOptions(1, 2, 1, 1, true, false, true, 0)))
+  }
+
+  @Test
+  public void shouldShareTheEdgesOfSameSizedRecords() throws Exception {
+    def walker = new WindowXyWalker(new GramOptions(1, 2, 1, 1, true, false, true, 0))
+    def builder = new GramLattice.Builder()
+    def a = build(builder, walker, Word.fromNormalString("cat"), Word.fromSpaceSeparated("K AE T"))
+    def b = build(builder, walker, Word.fromNormalString("dog"), Word.fromSpaceSeparated("D AO G"))
+    assert a.shape.is(b.shape)
+    assert !a.transitions.is(b.transitions)
+    assert builder.transitionCount() > a.edgeCount() // dog and cat dont share any transitions
+  }
+
+  private static GramLattice build(GramLattice.Builder builder, XyWalker walker, Word x, Word y) {
+    builder.start(x, y)
+    walker.forward(x, y, { int xxb, int xxa, String xg, int yyb, int yya, String yg ->
+      builder.addEdge(xxb, xxa, xg, yyb, yya, yg)
+    } as XyWalker.Visitor)
+    return builder.finish()
+  }
+
+  private static void assertSameExpectation(XyWalker walker) {
+    def builder = new GramLattice.Builder()
+    def lattice = build(builder, walker, x, y)
+    // just some arbitrary but distinct probability for each transition
+    def probOf = { String xg, String yg -> 1.0d / (2 + ((xg + "|" + yg).hashCode() & 0x7)) }
+    double[] transitionProbs = (0..<builder.transitionCount()).collect {
+      probOf(builder.xGram(it), builder.yGram(it))
+    } as double[]
+    double[] actual = new double[builder.transitionCount()]
+    lattice.expectation(transitionProbs, new double[lattice.nodeCount()], new double[lattice.nodeCount()], actual)
+
+    // the way the trainer used to do it by walking the strings each time
+    def alpha = new DoubleTable(x.unigramCount() + 1, y.unigramCount() + 1)
+    def beta = new DoubleTable(x.unigramCount() + 1, y.unigramCount() + 1)
+    alpha.put(0, 0, 1.0)
+    walker.forward(x, y, { int xxb, int xxa, String xg, int yyb, int yya, String yg ->
+      alpha.add(xxa, yya, probOf(xg, yg) * alpha.get(xxb, yyb))
+    } as XyWalker.Visitor)
+    beta.put(x.unigramCount(), y.unigramCount(), 1.0)
+    walker.backward(x, y, { int xxb, int xxa, String xg, int yyb, int yya, String yg ->
+      beta.add(xxb, yyb, probOf(xg, yg) * beta.get(xxa, yya))
+    } as XyWalker.Visitor)
+    def alphaXy = alpha.get(x.unigramCount(), y.unigramCount())
+    assert alphaXy > 0
+    def expected = new ProbTable()
+    walker.forward(x, y, { int xxb, int xxa, String xg, int yyb, int yya, String yg ->
+      expected.addProb(xg, yg, alpha.get(xxb, yyb) * probOf(xg, yg) * beta.get(xxa, yya) / alphaXy)
+    } as XyWalker.Visitor)
+
+    assert expected.entryCount() == builder.transitionCount()
+    (0..<builder.transitionCount()).each {
+      assertEquals(expected.prob(builder.xGram(it), builder.yGram(it)), actual[it], 1e-12)
+    }
+  }
+}
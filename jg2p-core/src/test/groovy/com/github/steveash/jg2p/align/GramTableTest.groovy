@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.github.steveash.jg2p.Word
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class GramTableTest {
+
+  @Test
+  public void shouldReuseGramInstances() throws Exception {
+    def x = Word.fromNormalString("steve")
+    def y = Word.fromSpaceSeparated("S T IY V")
+    def t = new GramTable()
+    t.init(x, 2, y, 1)
+    def first = t.xGram(0, 2)
+    assert first == "s t"
+    assert first.is(t.xGram(0, 2))
+    assert t.xGram(1, 3) == "t e v" // bigger than the cache just works as before
+    assert t.yGram(2, 1) == "IY"
+    assert t.yGram(2, 1).is(t.yGram(2, 1))
+    assert t.yGram(0, 2) == "S T"
+    (0..<x.unigramCount()).each { int i ->
+      assert t.xGram(i, 1) == x.gram(i, 1)
+      if (i < x.unigramCount() - 1) {
+        assert t.xGram(i, 2) == x.gram(i, 2)
+      }
+    }
+
+    // the same gram from another word is the same interned instance and nothing from the last word is left over
+    t.init(Word.fromNormalString("stove"), 2)
+    assert t.xGram(0, 2).is(first)
+    assert t.xGram(2, 2) == "o v"
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.google.common.io.CharSource
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class InputReaderTest {
+
+  private static final String cmu = """;;; some comment
+ABBOTT  AE1 B AH0 T
+
+ASH  AE1 SH
+TOMATO(1)  T AH0 M AA1 T OW2
+"""
+
+  @Test
+  public void shouldStreamTheSameRecordsAsRead() throws Exception {
+    def reader = InputReader.makeCmuReader()
+    def source = CharSource.wrap(cmu)
+    def read = reader.read(source)
+    def streamed = reader.stream(source)
+    assert read.size() == 3
+    assert streamed.collect { it.xWord.asSpaceString + "/" + it.yWord.asSpaceString } ==
+           read.collect { it.xWord.asSpaceString + "/" + it.yWord.asSpaceString }
+    // can iterate again for another pass
+    assert streamed.collect { it.xWord.asNoSpaceString } == ["ABBOTT", "ASH", "TOMATO"]
+  }
+
+  @Test
+  public void shouldStreamFromFilesAndClasspath() throws Exception {
+    def reader = InputReader.makeDefaultFormatReader()
+    assert reader.streamFromClasspath("sample.txt").collect() == reader.readFromClasspath("sample.txt")
+
+    def file = File.createTempFile("inputreader", ".txt")
+    file.deleteOnExit()
+    file.text = "a b\tAH B\nc\tK\n"
+    def iter = (InputReader.RecordIterator) reader.streamFromFile(file).iterator()
+    assert iter.next().xWord.asSpaceString == "a b"
+    iter.close() // stopping early
+    assert reader.streamFromFile(file).collect { it.yWord.asSpaceString } == ["AH B", "K"]
+  }
+}
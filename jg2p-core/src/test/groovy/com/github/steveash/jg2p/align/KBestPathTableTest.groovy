@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+
+/**
+ * @author Steve Ash
+ */
+class KBestPathTableTest {
+
+  // score of taking a gram of size i that ends at xx
+  private static double gramScore(int xx, int i) {
+    return -((xx * 7 + i * 3) % 5) - (0.1 * i)
+  }
+
+  @Test
+  public void shouldKeepTheKBestSegmentations() throws Exception {
+    int size = 7
+    def t = new KBestPathTable()
+    // init it bigger first to make sure that reusing it is fine
+    t.init(20, 3, 10)
+    t.start(0)
+    t.extendPath(1, 0, 0, 0, -1.0, 1, 0)
+
+    t.init(size + 1, 1, 4)
+    t.start(0)
+    for (int xx = 1; xx <= size; xx++) {
+      for (int i = 1; i <= 3 && xx - i >= 0; i++) {
+        t.extendPath(xx, 0, xx - i, 0, gramScore(xx, i), i, 0)
+      }
+    }
+
+    def expected = allSegmentations(size).collect { List<Integer> seg -> [score: score(seg), seg: seg] }
+        .sort { -it.score }.take(4)
+    assert t.pathCount(size, 0) == 4
+    def actual = (0..<4).collect { int slot -> [score: t.score(size, 0, slot), seg: decode(t, size, slot)] }
+        .sort { -it.score }
+    (0..<4).each {
+      assertEquals(expected[it].score, actual[it].score, 1e-9)
+      assertEquals(actual[it].score, score(actual[it].seg), 1e-9)
+    }
+  }
+
+  @Test
+  public void shouldHaveNoPathsToUnreachableCells() throws Exception {
+    def t = new KBestPathTable()
+    t.init(3, 3, 2)
+    t.start(0)
+    t.extendPath(1, 1, 0, 0, -1.0, 1, 1)
+    assert t.pathCount(1, 1) == 1
+    assert t.pathCount(2, 2) == 0
+    t.extendPath(2, 2, 0, 1, -1.0, 2, 1)
+    assert t.pathCount(2, 2) == 0
+  }
+
+  private static List<Integer> decode(KBestPathTable t, int size, int slot) {
+    def grams = []
+    int xx = size
+    while (xx > 0) {
+      int back = t.xBackRef(xx, 0, slot)
+      grams.add(0, back)
+      slot = t.pathBackRef(xx, 0, slot)
+      xx -= back
+    }
+    return grams
+  }
+
+  private static double score(List<Integer> seg) {
+    double total = 0
+    int xx = 0
+    seg.each { int i ->
+      xx += i
+      total += gramScore(xx, i)
+    }
+    return total
+  }
+
+  private static List<List<Integer>> allSegmentations(int size) {
+    if (size == 0) {
+      return [[]]
+    }
+    def result = []
+    (1..3).each { int i ->
+      if (i <= size) {
+        allSegmentations(size - i).each { result << (it + [i]) }
+      }
+    }
+    return result
+  }
+}
@@ -16,8 +16,11 @@
 
 package com.github.steveash.jg2p.align
 
+import com.google.common.collect.HashBasedTable
 import org.junit.Test
 
+import static org.junit.Assert.assertEquals
+
 /**
  * @author Steve Ash
  */
@@ -40,4 +43,83 @@ class ProbTableTest {
     assert c.size() == 5
     assert c.collect { it.left + it.right }.toList().sort() == ["13", "23", "45", "67", "78"]
   }
+
+  @Test
+  public void shouldKeepCellsAndRows() throws Exception {
+    def t = new ProbTable(2) // force it to grow
+    t.setProb("A", "AE", 0.1)
+    t.addProb("A", "AE", 0.2)
+    t.addProb("A", "EY", 0.1)
+    t.setProb("B", "B", 0.4)
+    t.setProb("C H", "CH", 0.0)
+
+    assert t.entryCount() == 4
+    assertEquals(0.3, t.prob("A", "AE"), 1e-9)
+    assert t.prob("A", "B") == 0.0d
+    assert t.prob("Z", "AE") == 0.0d
+    assert t.xRows() == ["A", "B", "C H"] as Set
+    assert t.yCols() == ["AE", "EY", "B", "CH"] as Set
+    assert t.getYProbForX("A").keySet() == ["AE", "EY"] as Set
+    assertEquals(0.1, t.getYProbForX("A")["EY"], 1e-9)
+    assert t.getYProbForX("Z").isEmpty()
+    assert t.collect { it.rowKey + "/" + it.columnKey } == ["A/AE", "A/EY", "B/B", "C H/CH"]
+
+    def marginals = t.calculateMarginals()
+    assertEquals(0.4, marginals.probX("A"), 1e-9)
+    assertEquals(0.4, marginals.probY("B"), 1e-9)
+    assertEquals(0.8, marginals.sumOfAllJointProbabilities(), 1e-9)
+
+    def rows = t.makeRowNormalizedCopy()
+    assertEquals(0.75, rows.prob("A", "AE"), 1e-9)
+    assertEquals(1.0, rows.prob("B", "B"), 1e-9)
+    assert rows.entryCount() == 3 // the C H row had no mass
+    assertEquals(0.125, t.makeNormalizedCopy().prob("A", "EY"), 1e-9)
+
+    t.clear()
+    assert t.entryCount() == 0
+    assert t.xRows().isEmpty()
+    assert t.prob("A", "AE") == 0.0d
+  }
+
+  @Test
+  public void shouldMergeTables() throws Exception {
+    def a = new ProbTable()
+    a.setProb("A", "AE", 1.0)
+    def b = new ProbTable()
+    b.setProb("B", "B", 2.0)
+    b.setProb("A", "AE", 0.5)
+    def sink = new ProbTable()
+    ProbTable.mergeAll([a, b], sink)
+    assert sink.entryCount() == 2
+    assert sink.prob("A", "AE") == 1.5d
+    assert sink.prob("B", "B") == 2.0d
+  }
+
+  @Test
+  public void shouldRoundTripSerialization() throws Exception {
+    def t = new ProbTable()
+    t.setProb("A", "AE", -0.5)
+    t.setProb("A", "EY", -1.25)
+    t.setProb("C H", "CH", -0.75)
+    def bytes = new ByteArrayOutputStream()
+    new ObjectOutputStream(bytes).withStream { it.writeObject(t) }
+    def read = (ProbTable) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+    assert read.collect { it.toString() } == t.collect { it.toString() }
+  }
+
+  @Test
+  public void shouldReadTheOldGuavaTableForm() throws Exception {
+    // this is what ProbTable.writeExternal used to write
+    def old = HashBasedTable.create()
+    old.put("A", "AE", -0.5d)
+    old.put("B", "B", -0.01d)
+    def bytes = new ByteArrayOutputStream()
+    new ObjectOutputStream(bytes).withStream { it.writeObject(old) }
+
+    def t = new ProbTable()
+    t.readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+    assert t.entryCount() == 2
+    assert t.prob("A", "AE") == -0.5d
+    assert t.prob("B", "B") == -0.01d
+  }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.align
+
+import com.github.steveash.jg2p.ModelException
+import org.apache.commons.lang3.tuple.Pair
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+
+/**
+ * @author Steve Ash
+ */
+class ShardedAlignerTrainerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder()
+
+  @Test
+  public void shouldRoundTripCountFiles() throws Exception {
+    def counts = new ProbTable()
+    counts.setProb("A", "AE", 12.5)
+    counts.setProb("C H", "CH", 0.25)
+    counts.setProb("C", "K", 3.0)
+    def file = new File(folder.root, "counts-3-1.bin")
+    ShardedAlignerTrainer.writeCounts(file, 42L, 3, 1, counts, [Pair.of("X", "AH")])
+
+    def read = ShardedAlignerTrainer.readCounts(file)
+    assert read.runId == 42L
+    assert read.round == 3
+    assert read.shard == 1
+    assert read.counts.entryCount() == 3
+    counts.each { assert read.counts.prob(it.rowKey, it.columnKey) == it.value }
+    assert read.blocked == [Pair.of("X", "AH")] as Set
+    assert !new File(folder.root, "counts-3-1.bin.tmp").exists()
+  }
+
+  @Test(expected = ModelException.class)
+  public void shouldRejectOtherFiles() throws Exception {
+    def file = folder.newFile()
+    file.bytes = "this is not a count file".bytes
+    ShardedAlignerTrainer.readCounts(file)
+  }
+
+  @Test
+  public void shouldTrainTheSameAsOneProcess() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 4
+    opts.alignerShardCount = 3
+    opts.alignerExchangeDir = folder.newFolder()
+    opts.alignerShardTimeoutSecs = 120
+    def expected = new AlignerTrainer(opts).train(records).transitions
+
+    // the workers would normally be separate processes on separate boxes
+    def exec = Executors.newFixedThreadPool(opts.alignerShardCount + 1)
+    try {
+      def coordinator = exec.submit({ new ShardedAlignerTrainer(opts).coordinate() } as Callable<AlignModel>)
+      def workers = (0..<opts.alignerShardCount).collect { int shard ->
+        exec.submit({ new ShardedAlignerTrainer(opts).work(records, shard); null } as Callable<Object>)
+      }
+      def actual = coordinator.get(2, TimeUnit.MINUTES).transitions
+      workers*.get(2, TimeUnit.MINUTES)
+
+      assert actual.entryCount() == expected.entryCount()
+      expected.each { assertEquals(it.value, actual.prob(it.rowKey, it.columnKey), 1e-9) }
+      // cleans up after itself
+      assert opts.alignerExchangeDir.list().sort() as List == ["done", "run"]
+    } finally {
+      exec.shutdownNow()
+    }
+  }
+
+  @Test(expected = ModelException.class)
+  public void shouldRefuseAStaleExchangeDirectory() throws Exception {
+    def opts = new TrainOptions()
+    opts.alignerShardCount = 1
+    opts.alignerExchangeDir = folder.newFolder()
+    new File(opts.alignerExchangeDir, "done").bytes = new byte[8]
+    new ShardedAlignerTrainer(opts).coordinate()
+  }
+}
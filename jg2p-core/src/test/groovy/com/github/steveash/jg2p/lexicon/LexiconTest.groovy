@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lexicon
+
+import com.github.steveash.jg2p.ModelException
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.InputReader
+import com.google.common.io.CharSource
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * @author Steve Ash
+ */
+class LexiconTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder()
+
+  private static final String cmu = """;;; some comment
+ABBOTT  AE1 B AH0 T
+ASH  AE1 SH
+STEVE  S T IY1 V
+TOMATO  T AH0 M EY1 T OW2
+TOMATO(1)  T AH0 M AA1 T OW2
+"""
+
+  private Lexicon writeAndOpen(String dict) {
+    def records = InputReader.makeCmuReader().read(CharSource.wrap(dict))
+    def file = folder.newFile()
+    LexiconWriter.write(records, file)
+    return Lexicon.open(file)
+  }
+
+  @Test
+  public void shouldLookupKnownWords() throws Exception {
+    def lex = writeAndOpen(cmu)
+    assert lex.size() == 4
+    assert lex.lookup(Word.fromNormalString("STEVE")) == [Word.fromSpaceSeparated("S T IY V")]
+    assert lex.lookup(Word.fromNormalString("TOMATO")) == [Word.fromSpaceSeparated("T AH M EY T OW"),
+                                                          Word.fromSpaceSeparated("T AH M AA T OW")]
+    assert lex.lookup(Word.fromNormalString("ABBOTT"))[0].value == ["AE", "B", "AH", "T"]
+    assert lex.lookup(Word.fromNormalString("STEVEN")).isEmpty()
+    assert lex.lookup(Word.fromNormalString("ASHE")).isEmpty()
+    assert lex.getHitCount() == 3
+    assert lex.getMissCount() == 2
+    assert lex.hitRate() == 0.6d
+  }
+
+  @Test
+  public void shouldIgnoreCase() throws Exception {
+    def lex = writeAndOpen(cmu)
+    assert lex.lookup(Word.fromNormalString("steve")) == [Word.fromSpaceSeparated("S T IY V")]
+    assert lex.lookup(Word.fromNormalString("Ash")) == [Word.fromSpaceSeparated("AE SH")]
+    assert lex.contains(Word.fromNormalString("tomato"))
+  }
+
+  @Test
+  public void shouldFindEveryWordInABiggerLexicon() throws Exception {
+    def sb = new StringBuilder()
+    (0..<5000).each { int i ->
+      // spell the number with letters so that its a valid cmu word
+      def word = Integer.toString(i, 10).collect { (char) ('A' as char) + (it as int) }.join("")
+      sb.append("W").append(word).append("  AH").append(i % 3).append(" B\n")
+    }
+    def records = InputReader.makeCmuReader().read(CharSource.wrap(sb.toString()))
+    def file = folder.newFile()
+    def count = LexiconWriter.write(records, file)
+    def lex = Lexicon.open(file)
+    assert lex.size() == count
+    records.each {
+      assert lex.contains(it.xWord)
+      assert lex.lookup(it.xWord).contains(it.yWord)
+    }
+    assert !lex.contains(Word.fromNormalString("ZZZZZZZ"))
+  }
+
+  @Test(expected = ModelException.class)
+  public void shouldRejectOtherFiles() throws Exception {
+    def file = folder.newFile()
+    file.bytes = "this is not a lexicon".bytes
+    Lexicon.open(file)
+  }
+}
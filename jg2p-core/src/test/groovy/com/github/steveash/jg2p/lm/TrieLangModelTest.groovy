@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.lm
+
+import com.github.steveash.jg2p.PhoneticEncoder
+import com.github.steveash.kylm.model.immutable.ImmutableLMConverter
+import com.github.steveash.kylm.model.ngram.NgramLM
+import com.github.steveash.kylm.model.ngram.smoother.KNSmoother
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class TrieLangModelTest {
+
+  private static final List<String> graphs = ["A", "B", "C", "C H", "E", "T"]
+  private static final List<String> phones = ["AH", "B", "K", "CH", "IY", "T", ""]
+
+  private static List<List<String>> makeGraphones(Random rand, int count) {
+    return (0..<count).collect {
+      def g = (0..<(1 + rand.nextInt(8))).collect { graphs[rand.nextInt(graphs.size())] }
+      def p = g.collect { phones[(graphs.indexOf(it) + (rand.nextInt(4) == 0 ? 1 : 0)) % phones.size()] }
+      [g, p]
+    }
+  }
+
+  private static LangModel train(Random rand, int order, def smoother) {
+    smoother.smoothUnigrams = true
+    def lm = new NgramLM(order, smoother)
+    lm.trainModel(makeGraphones(rand, 300).collect { LangModel.makeGraphoneSeq(it[0], it[1]) as String[] })
+    return new LangModel(new ImmutableLMConverter().convert(lm), true)
+  }
+
+  @Test
+  public void shouldScoreTheSameAsKylm() throws Exception {
+    def rand = new Random(0xCAFE)
+    [train(rand, 4, new KNSmoother()), train(rand, 8, new KNSmoother())].each { LangModel model ->
+      def kylm = model.gramLm
+      def trie = model.trie
+      assert trie != null
+      assert model.gramLm == null // dropped once it's converted
+      assert trie.getNgramCount(1) > graphs.size()
+      assert trie.getNgramCount(3) > 0
+
+      def tests = makeGraphones(rand, 200)
+      // some with graphones that the model has never seen
+      tests << [["X", "A"], ["Z", "AH"]]
+      tests << [["B", "C H", "A"], ["AH", "B", "K"]]
+      tests << [[], []]
+      tests.each {
+        def expected = kylm.sentenceProbNormalized(LangModel.makeGraphoneSeq(it[0], it[1]))
+        assert trie.scoreGraphones(it[0], it[1]) == expected
+        assert trie.score(LangModel.makeGraphoneSeq(it[0], it[1])) == expected
+        def enc = PhoneticEncoder.Encoding.createEncoding(it[0], it[1], it[1], 0, 0, 0, 1)
+        assert model.score(enc) == expected
+      }
+    }
+  }
+
+  @Test
+  public void shouldScoreBatchesTheSameAsOneAtATime() throws Exception {
+    def rand = new Random(0xF00D)
+    def model = train(rand, 6, new KNSmoother())
+    def trie = model.trie
+
+    // candidates for the same word mostly differ in a phone or two
+    def word = graphs + graphs.reverse()
+    def candidates = (0..<30).collect {
+      def p = word.collect { phones[graphs.indexOf(it)] }
+      (0..<rand.nextInt(3)).each { p[rand.nextInt(p.size())] = phones[rand.nextInt(phones.size())] }
+      [word, p]
+    }
+    // and some that are prefixes of others, duplicates, unknowns, and empty
+    candidates << [word.subList(0, 4), candidates[0][1].subList(0, 4)]
+    candidates << candidates[3]
+    candidates << [["X"] + word, ["AH"] + candidates[1][1]]
+    candidates << [[], []]
+    Collections.shuffle(candidates, rand)
+
+    def batch = trie.scoreAllGraphones(candidates*.getAt(0), candidates*.getAt(1))
+    assert batch.length == candidates.size()
+    candidates.eachWithIndex { c, int i ->
+      assert batch[i] == trie.scoreGraphones(c[0], c[1])
+    }
+    assert trie.scoreAll(candidates.collect { LangModel.makeGraphoneSeq(it[0], it[1]) }) == batch
+
+    def encodings = candidates.collect { PhoneticEncoder.Encoding.createEncoding(it[0], it[1], it[1], 0, 0, 0, 1) }
+    assert model.scoreAll(encodings) == batch
+    assert trie.scoreAllGraphones([], []).length == 0
+  }
+
+  @Test
+  public void shouldScoreCloseToKylmWhenQuantized() throws Exception {
+    def rand = new Random(0xBEEF)
+    def model = train(rand, 5, new KNSmoother())
+    def exact = model.trie
+    def tests = makeGraphones(rand, 200)
+    [8, 16].each { int bits ->
+      def quantized = exact.quantize(bits)
+      assert quantized.quantizedBits == bits
+      assert exact.quantizedBits == 0
+      double maxError = 0
+      tests.each {
+        maxError = Math.max(maxError, Math.abs(quantized.scoreGraphones(it[0], it[1]) - exact.scoreGraphones(it[0], it[1])))
+      }
+      // the small model only has a few thousand distinct log probs
+      assert maxError < (bits == 8 ? 0.05 : 1e-6)
+    }
+
+    model.quantizeBits = 8
+    def enc = PhoneticEncoder.Encoding.createEncoding(tests[0][0], tests[0][1], tests[0][1], 0, 0, 0, 1)
+    assert model.trie.quantizedBits == 8
+    assert model.score(enc) == exact.quantize(8).scoreGraphones(tests[0][0], tests[0][1])
+    model.quantizeBits = 8
+    try {
+      model.quantizeBits = 16
+      assert false, "the kylm model is gone so it can't be quantized differently"
+    } catch (IllegalStateException expected) {
+      assert model.trie.quantizedBits == 8
+    }
+  }
+
+  @Test
+  public void shouldOnlySerializeTheTrieOnceConverted() throws Exception {
+    def rand = new Random(0xD00D)
+    def model = train(rand, 5, new KNSmoother())
+    def tests = makeGraphones(rand, 50)
+    def before = serialize(model)
+    // quantizing converts it right away
+    model.quantizeBits = 8
+    assert model.gramLm == null
+    def after = serialize(model)
+    assert after.length < before.length
+
+    def read = deserialize(after)
+    assert read.gramLm == null
+    assert read.quantizeBits == 8
+    assertSameScores(model, read, tests)
+
+    // and an exact one reads back with exactly the same scores
+    def exact = train(new Random(0xD00D), 5, new KNSmoother())
+    exact.trie
+    def readExact = deserialize(serialize(exact))
+    assert readExact.trie.quantizedBits == 0
+    assert readExact.trie.getNgramCount(3) == exact.trie.getNgramCount(3)
+    assertSameScores(exact, readExact, tests)
+  }
+
+  private static void assertSameScores(LangModel expected, LangModel actual, List<List<String>> tests) {
+    tests.each {
+      def enc = PhoneticEncoder.Encoding.createEncoding(it[0], it[1], it[1], 0, 0, 0, 1)
+      assert actual.score(enc) == expected.score(enc)
+    }
+  }
+
+  private static LangModel deserialize(byte[] bytes) {
+    return (LangModel) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject()
+  }
+
+  private static byte[] serialize(LangModel model) {
+    def bytes = new ByteArrayOutputStream()
+    new ObjectOutputStream(bytes).withCloseable { it.writeObject(model) }
+    return bytes.toByteArray()
+  }
+}
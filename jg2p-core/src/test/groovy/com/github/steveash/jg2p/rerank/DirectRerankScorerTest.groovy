@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.rerank
+
+import com.github.steveash.jg2p.PhoneticEncoder
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+
+/**
+ * @author Steve Ash
+ */
+class DirectRerankScorerTest {
+
+  private static final List<String> consonants = ["B", "D", "K", "M", "S", "T"]
+  private static final List<String> vowels = ["AA", "IY", "EH", "OW"]
+
+  private static List<RerankExample> makeGroup(Random rand, int candidates, boolean training) {
+    def graphs = (0..<(3 + rand.nextInt(4))).collect { ('a'..'z')[rand.nextInt(26)] }
+    def relevant = rand.nextInt(candidates)
+    return (0..<candidates).collect { int i ->
+      def phones = (0..<(2 + rand.nextInt(4))).collect {
+        rand.nextBoolean() ? consonants[rand.nextInt(consonants.size())] : vowels[rand.nextInt(vowels.size())]
+      }
+      def enc = PhoneticEncoder.Encoding.createEncoding(graphs, phones, phones, -rand.nextDouble() * 10,
+                                                        -rand.nextDouble() * 5, 0.0, 1)
+      enc.rank = i
+      enc.alignRank = rand.nextInt(3)
+      def ex = new RerankExample()
+      ex.encoding = enc
+      ex.wordGraphs = graphs
+      ex.dupCount = rand.nextInt(4)
+      ex.uniqueMatchingMode = rand.nextBoolean()
+      // make the relevant one look a little better so that there is something to learn
+      ex.languageModelScore = -rand.nextDouble() * 20 + (i == relevant ? 5.0 : 0.0)
+      ex.relevant = training && i == relevant
+      return ex
+    }
+  }
+
+  @Test
+  public void shouldMatchTheMalletClassifier() throws Exception {
+    def rand = new Random(0xBEEF)
+    def model = new Rerank3Trainer().trainFor((0..<200).collect { makeGroup(rand, 2 + rand.nextInt(6), true) })
+
+    def scorer = model.directScorer
+    assert scorer != null
+    assert scorer.weights.length == scorer.dataAlphabet.size()
+    assert scorer.weights.any { it != 0.0d }
+
+    (0..<50).each {
+      def group = makeGroup(rand, 1 + rand.nextInt(25), false)
+      def expected = model.classifierProbabilities(group)
+      def actual = model.probabilities(group)
+      assert actual.size() == expected.size()
+      def expectedScores = new IdentityHashMap<RerankExample, Double>()
+      expected.each { expectedScores.put(it.example, it.score) }
+      actual.each { assertEquals(expectedScores.get(it.example), it.score, 1e-12) }
+      assertEquals(1.0, actual*.score.sum() as double, 1e-9)
+    }
+  }
+}
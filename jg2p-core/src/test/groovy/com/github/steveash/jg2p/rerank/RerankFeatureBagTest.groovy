@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.rerank
+
+import cc.mallet.types.Alphabet
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class RerankFeatureBagTest {
+
+  @Test
+  public void shouldKeepFeaturesSortedAndLastWins() throws Exception {
+    def alpha = new Alphabet()
+    ["z", "y", "x", "w"].each { alpha.lookupIndex(it, true) }
+    def bag = new RerankFeatureBag(alpha, null)
+    bag.setFeature("x", 2.0)
+    bag.setBinary("z")
+    bag.setFeature("w", 0.0) // zeros aren't stored
+    bag.setFeature("y", 4.0)
+    bag.setFeature("x", 3.0)
+    bag.setFeature("new", 5.0)
+
+    def vector = bag.toVector()
+    assert vector.indices.toList() == [0, 1, 2, 4]
+    assert vector.values.toList() == [1.0d, 4.0d, 3.0d, 5.0d]
+    assert alpha.size() == 5
+
+    // reusing the bag starts fresh
+    def example = new RerankExample()
+    bag.reset(example)
+    assert bag.example.is(example)
+    assert bag.size() == 0
+    bag.setBinary("w")
+    assert bag.toVector().indices.toList() == [3]
+  }
+
+  @Test
+  public void shouldDropUnknownFeaturesWhenFrozen() throws Exception {
+    def alpha = new Alphabet()
+    ["a", "b"].each { alpha.lookupIndex(it, true) }
+    alpha.stopGrowth()
+    def bag = new RerankFeatureBag(alpha, null)
+    bag.setBinary("b")
+    bag.setFeature("unseen", 2.0)
+    bag.setBinary("also unseen")
+    bag.setFeature("a", 0.5)
+
+    def vector = bag.toVector()
+    assert vector.indices.toList() == [0, 1]
+    assert vector.values.toList() == [0.5d, 1.0d]
+    assert alpha.size() == 2
+  }
+}
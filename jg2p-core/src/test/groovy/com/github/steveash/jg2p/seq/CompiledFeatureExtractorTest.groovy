@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.types.Alphabet
+import cc.mallet.types.FeatureVectorSequence
+import cc.mallet.types.Instance
+import com.github.steveash.jg2p.Word
+import com.github.steveash.jg2p.align.Alignment
+import com.github.steveash.jg2p.util.HashingAlphabet
+import org.apache.commons.lang3.tuple.Pair
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class CompiledFeatureExtractorTest {
+
+  private static Alignment align(List<String> grams, List<String> oncGrams, List<Integer> syllStarts) {
+    def word = Word.fromSpaceSeparated(grams.join(" "))
+    def graphones = grams.collect { Pair.of(it, "") }
+    return new Alignment(word, graphones, 0.0, oncGrams, null).withGraphemeSyllStarts(syllStarts.toSet())
+  }
+
+  private static final List<Alignment> trainAligns = [
+      align("psychology".toList(), "OONOONONON".toList(), [0, 3, 6, 8]),
+      align(["C H", "U", "R", "C H"], ["O O", "N", "C", "C C"], [0]),
+      align("MISTAKE".toList(), "ONCONON".toList(), [0, 3, 5]),
+  ]
+
+  private static final List<Alignment> testAligns = trainAligns + [
+      align(["h", "a", "p p", "y"], ["O", "N", "O O", "N"], [0, 2]),
+      align("strawberry".toList(), "OOONOONONN".toList(), [0, 5, 7]),
+  ]
+
+  @Test
+  public void shouldMakeTheSameVectorsAsThePipe() throws Exception {
+    def alpha = new Alphabet()
+    def pipe = PhonemeCrfTrainer.makePipe(alpha)
+    trainAligns.each { pipe.instanceFrom(new Instance(it, null, null, null)) }
+    assert CompiledFeatureExtractor.compile(pipe) == null // still growing
+    alpha.stopGrowth()
+
+    def compiled = CompiledFeatureExtractor.compile(pipe)
+    assert compiled != null
+    testAligns.each { Alignment a ->
+      def expected = (FeatureVectorSequence) pipe.instanceFrom(new Instance(a, null, null, null)).data
+      def actual = compiled.extract(a)
+      assert actual.size() == expected.size()
+      for (int i = 0; i < expected.size(); i++) {
+        assert actual.get(i).indices.toList() == expected.get(i).indices.toList()
+        assert actual.get(i).numLocations() == expected.get(i).numLocations()
+      }
+    }
+    // the trained words should have lots of features
+    assert compiled.extract(trainAligns[0]).get(3).numLocations() > 20
+  }
+
+  @Test
+  public void shouldHashTheSameAsThePipe() throws Exception {
+    // few enough bits that lots of features collide
+    def alpha = new HashingAlphabet(8)
+    def pipe = PhonemeCrfTrainer.makePipe(alpha)
+    trainAligns.each { pipe.instanceFrom(new Instance(it, null, null, null)) }
+    alpha.stopGrowth()
+    assert alpha.collisions > 0
+
+    def compiled = CompiledFeatureExtractor.compile(pipe)
+    testAligns.each { Alignment a ->
+      def expected = (FeatureVectorSequence) pipe.instanceFrom(new Instance(a, null, null, null)).data
+      def actual = compiled.extract(a)
+      for (int i = 0; i < expected.size(); i++) {
+        assert actual.get(i).indices.toList() == expected.get(i).indices.toList()
+      }
+    }
+  }
+
+  @Test
+  public void shouldFallBackToThePipe() throws Exception {
+    // the tiny crf uses a StringListToTokenSequence which isn't something that we compile
+    def model = new PhonemeCrfModel(TestCrfs.trainTinyCrf())
+    assert model.compiledExtractor == null
+  }
+}
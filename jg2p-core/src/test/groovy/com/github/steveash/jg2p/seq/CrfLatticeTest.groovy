@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.SumLatticeDefault
+import cc.mallet.types.ArraySequence
+import cc.mallet.types.Sequence
+import groovyx.gpars.GParsPool
+import org.junit.BeforeClass
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+
+/**
+ * @author Steve Ash
+ */
+class CrfLatticeTest {
+
+  private static CRF crf
+  private static List<Sequence> inputs
+
+  @BeforeClass
+  public static void setUpClass() {
+    crf = TestCrfs.trainTinyCrf()
+    inputs = ["banana", "orange", "plum", "apricot", "a", "strawberry"].collect { TestCrfs.inputFor(crf, it) }
+  }
+
+  @Test
+  public void shouldMatchMalletLattices() throws Exception {
+    def lattice = new CrfLattice()
+    inputs.each { Sequence input ->
+      lattice.prepare(crf, input)
+      def expectedZ = new SumLatticeDefault(crf, input).getTotalWeight()
+      assertEquals(expectedZ, lattice.logPartition(), 1e-9)
+
+      def actual = lattice.bestOutputSequences(6)
+      assert actual.size() == Math.min(6, 3 ** input.size())
+      actual.each { Sequence seq ->
+        def expectedWeight = new SumLatticeDefault(crf, input, seq).getTotalWeight()
+        assertEquals(expectedWeight, lattice.constrainedLogWeight(seq), 1e-9)
+      }
+    }
+  }
+
+  @Test
+  public void shouldScoreBestPathsWithoutConstrainedLattices() throws Exception {
+    def lattice = new CrfLattice()
+    inputs.each { Sequence input ->
+      lattice.prepare(crf, input)
+      def expectedZ = new SumLatticeDefault(crf, input).getTotalWeight()
+      def paths = lattice.bestPaths(5)
+      assert paths*.output*.toString() == lattice.bestOutputSequences(5)*.toString()
+      paths.each { CrfLattice.ScoredPath path ->
+        def expectedWeight = new SumLatticeDefault(crf, input, path.output).getTotalWeight()
+        assertEquals(expectedWeight, path.logWeight, 1e-9)
+        assertEquals(expectedWeight - expectedZ, path.logProb, 1e-9)
+      }
+    }
+  }
+
+  @Test
+  public void shouldFindTheTrueKBest() throws Exception {
+    // brute force every possible tagging of the shorter inputs and score each with a constrained mallet lattice
+    def labels = ["C", "V", "CV"]
+    def lattice = new CrfLattice()
+    inputs.findAll { it.size() <= 6 }.each { Sequence input ->
+      def all = [labels] * input.size()
+      def scored = all.combinations().collect { List<String> tags ->
+        def out = new ArraySequence<Object>(tags as Object[])
+        [tags.join(" "), new SumLatticeDefault(crf, input, out).getTotalWeight()]
+      }.sort { -it[1] }
+
+      lattice.prepare(crf, input)
+      def actual = lattice.bestOutputSequences(5)
+      actual.eachWithIndex { Sequence seq, int i ->
+        assert (0..<seq.size()).collect { seq.get(it) }.join(" ") == scored[i][0]
+      }
+    }
+  }
+
+  @Test
+  public void shouldReuseBuffersAcrossLengths() throws Exception {
+    def lattice = new CrfLattice()
+    // go long -> short -> long to make sure that nothing stale leaks between inputs
+    [inputs[5], inputs[4], inputs[0], inputs[5]].each { Sequence input ->
+      lattice.prepare(crf, input)
+      def fresh = new CrfLattice()
+      fresh.prepare(crf, input)
+      assert lattice.logPartition() == fresh.logPartition()
+      assert lattice.bestOutputSequences(4)*.toString() == fresh.bestOutputSequences(4)*.toString()
+    }
+  }
+
+  @Test
+  public void shouldBeSafeForConcurrentTagging() throws Exception {
+    def model = new PhonemeCrfModel(crf)
+    def expected = inputs.collect { Sequence input ->
+      def lattice = new CrfLattice()
+      lattice.prepare(crf, input)
+      lattice.bestOutputSequences(3)*.toString()
+    }
+    GParsPool.withPool(4) {
+      (0..<400).eachParallel { int i ->
+        def index = i % inputs.size()
+        def lattice = CrfLattice.forCurrentThread()
+        lattice.prepare(model.getCrf(), inputs[index])
+        assert lattice.bestOutputSequences(3)*.toString() == expected[index]
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.fst.CRF
+import cc.mallet.types.Alphabet
+import com.github.steveash.jg2p.util.HashingAlphabet
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class PhonemeCrfTrainerTest {
+
+  // a crf with the same states and features as the given one but all of its weights zeroed
+  private static CRF zeroedCopy(CRF crf) {
+    def copy = new CRF(crf)
+    copy.parameters.weights.each { vector -> Arrays.fill(vector.values, 0.0d) }
+    Arrays.fill(copy.parameters.defaultWeights, 0.0d)
+    copy.weightsValueChanged()
+    return copy
+  }
+
+  @Test
+  public void shouldWarmStartHashedFeaturesByIndex() throws Exception {
+    def hashed = TestCrfs.trainTinyCrf(new HashingAlphabet(18))
+    def target = zeroedCopy(hashed)
+    PhonemeCrfTrainer.initializeWeightsFrom(target, hashed)
+    // mallet matches features by their names which would have scrambled all of these
+    target.parameters.weights.eachWithIndex { vector, int i ->
+      assert vector.values == hashed.parameters.weights[i].values
+    }
+    TestCrfs.assertSameTagging(hashed, target)
+  }
+
+  @Test
+  public void shouldStillWarmStartNamedFeatures() throws Exception {
+    def named = TestCrfs.trainTinyCrf()
+    def target = zeroedCopy(named)
+    PhonemeCrfTrainer.initializeWeightsFrom(target, named)
+    TestCrfs.assertSameTagging(named, target)
+  }
+
+  @Test
+  public void shouldRejectWarmStartsBetweenDifferentFeatures() throws Exception {
+    def hashed = TestCrfs.trainTinyCrf(new HashingAlphabet(18))
+    def named = TestCrfs.trainTinyCrf()
+    [[zeroedCopy(hashed), named], [zeroedCopy(named), hashed]].each { CRF target, CRF from ->
+      try {
+        PhonemeCrfTrainer.initializeWeightsFrom(target, from)
+        assert false, "should have rejected the warm start"
+      } catch (IllegalArgumentException expected) {
+        // good
+      }
+    }
+    PhonemeCrfTrainer.checkCanInitializeFrom(18, new HashingAlphabet(18))
+    PhonemeCrfTrainer.checkCanInitializeFrom(0, new Alphabet())
+    [[16, new HashingAlphabet(18)], [0, new HashingAlphabet(18)], [18, new Alphabet()]].each { int bits, Alphabet from ->
+      try {
+        PhonemeCrfTrainer.checkCanInitializeFrom(bits, from)
+        assert false, "should have rejected " + bits + " bits from " + from.class.simpleName
+      } catch (IllegalArgumentException expected) {
+        assert expected.message.startsWith("cant initialize a crf with")
+      }
+    }
+  }
+}
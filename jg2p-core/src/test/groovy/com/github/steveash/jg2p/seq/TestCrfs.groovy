@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.seq
+
+import cc.mallet.fst.CRF
+import cc.mallet.fst.CRFTrainerByLabelLikelihood
+import cc.mallet.pipe.SerialPipes
+import cc.mallet.pipe.Target2LabelSequence
+import cc.mallet.pipe.TokenSequence2FeatureVectorSequence
+import cc.mallet.types.Alphabet
+import cc.mallet.types.Instance
+import cc.mallet.types.InstanceList
+import cc.mallet.types.LabelAlphabet
+import cc.mallet.types.Sequence
+import com.google.common.collect.ImmutableList
+
+import static org.junit.Assert.assertEquals
+
+/**
+ * A tiny CRF that trains in a blink and some helpers to check that another CRF (read back, compacted, hashed, etc.)
+ * still tags the same way
+ *
+ * @author Steve Ash
+ */
+class TestCrfs {
+
+  /**
+   * Words to tag with the tiny CRF; some are in its training data and some aren't
+   */
+  static final List<String> FRUIT = ["banana", "orange", "apricot", "strawberry", "kiwi"]
+
+  /**
+   * @return a tiny order-1 CRF that tags each letter of a word as V, C, or CV (a consonant following a vowel)
+   */
+  static CRF trainTinyCrf(Alphabet alpha = new Alphabet()) {
+    def labelPipe = new Target2LabelSequence()
+    def pipe = new SerialPipes(ImmutableList.of(
+        new StringListToTokenSequence(alpha, (LabelAlphabet) labelPipe.getTargetAlphabet()),
+        new NeighborTokenFeature(true, [new TokenWindow(-1, 1), new TokenWindow(1, 1)]),
+        new TokenSequenceToFeature(),
+        new TokenSequence2FeatureVectorSequence(alpha, true, false),
+        labelPipe
+    ))
+    def words = ["banana", "apple", "cherry", "kiwi", "mango", "papaya", "grape", "lemon", "melon", "peach"]
+    def examples = new InstanceList(pipe)
+    words.each { String w ->
+      def letters = w.toList()
+      def tags = []
+      letters.eachWithIndex { String c, int i ->
+        if ("aeiou".contains(c)) {
+          tags << "V"
+        } else if (i > 0 && "aeiou".contains(letters[i - 1])) {
+          tags << "CV"
+        } else {
+          tags << "C"
+        }
+      }
+      examples.addThruPipe(new Instance(letters, tags, null, null))
+    }
+    def crf = new CRF(pipe, null)
+    crf.addOrderNStates(examples, [1] as int[], null, null, null, null, false)
+    crf.addStartState()
+    def trainer = new CRFTrainerByLabelLikelihood(crf)
+    trainer.train(examples, 25)
+    crf.getInputAlphabet().stopGrowth()
+    return crf
+  }
+
+  /**
+   * @return the word's letters through the crf's own input pipe
+   */
+  static Sequence inputFor(CRF crf, String word) {
+    return (Sequence) crf.inputPipe.instanceFrom(new Instance(word.toList(), null, null, null)).data
+  }
+
+  static double logPartition(CRF crf, String word) {
+    def lattice = new CrfLattice()
+    lattice.prepare(crf, inputFor(crf, word))
+    return lattice.logPartition()
+  }
+
+  /**
+   * Asserts that the two crfs have the same partition and the same topK best taggings for each of the FRUIT
+   */
+  static void assertSameTagging(CRF expected, CRF actual, int topK = 3) {
+    def expectedLattice = new CrfLattice()
+    def actualLattice = new CrfLattice()
+    FRUIT.each { String word ->
+      expectedLattice.prepare(expected, inputFor(expected, word))
+      actualLattice.prepare(actual, inputFor(actual, word))
+      assertEquals(word, expectedLattice.logPartition(), actualLattice.logPartition(), 1e-9)
+      assert expectedLattice.bestOutputSequences(topK)*.toString() == actualLattice.bestOutputSequences(topK)*.toString()
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.fst.CRF
+import com.github.steveash.jg2p.ModelException
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.align.AlignModel
+import com.github.steveash.jg2p.align.GramOptions
+import com.github.steveash.jg2p.align.ProbTable
+import com.github.steveash.jg2p.aligntag.AlignTagModel
+import com.github.steveash.jg2p.seq.PhonemeCrfModel
+import com.github.steveash.jg2p.seq.TestCrfs
+import com.google.common.util.concurrent.MoreExecutors
+import org.junit.BeforeClass
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * @author Steve Ash
+ */
+class BinaryModelFormatTest {
+
+  private static CRF crf
+  private static ProbTable table
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder()
+
+  @BeforeClass
+  public static void setUpClass() {
+    crf = TestCrfs.trainTinyCrf()
+    table = new ProbTable()
+    table.setProb("A", "AE", -0.5)
+    table.setProb("A", "EY", -1.25)
+    table.setProb("B", "B", -0.01)
+    table.setProb("C H", "CH", -0.75)
+  }
+
+  private static PipelineModel makeModel() {
+    def model = new PipelineModel()
+    model.setTrainingAlignerModel(new AlignModel(new GramOptions(), table))
+    model.setTestingAlignerModel(new AlignTagModel(crf))
+    model.setPronouncerModel(new PhonemeCrfModel(crf))
+    return model
+  }
+
+  @Test
+  public void shouldRoundTripThePipelineModel() throws Exception {
+    def file = folder.newFile()
+    ModelReadWrite.writeBinary(makeModel(), file)
+    def read = ModelReadWrite.readBinary(file)
+
+    assert read.graphoneModel == null
+    assert read.rerankerModel == null
+    def readTable = read.trainingAlignerModel.transitions
+    assert readTable.entryCount() == table.entryCount()
+    table.each { assert readTable.prob(it.rowKey, it.columnKey) == it.value }
+
+    CRF readCrf = read.pronouncerModel.crf
+    assertSameCrf(readCrf)
+    assert readCrf.inputAlphabet.growthStopped()
+
+    // should still work after switching to the hashed weights that we use at runtime
+    read.makeSparse()
+    assertSameCrf(read.pronouncerModel.crf)
+  }
+
+  @Test
+  public void shouldDetectTheFormatWhenReadingComponents() throws Exception {
+    def binFile = folder.newFile()
+    def datFile = folder.newFile()
+    ReadWrite.writeTo(makeModel(), datFile)
+    ModelReadWrite.convertToBinary(datFile, binFile)
+
+    assertSameCrf(ModelReadWrite.readPronouncerFrom(binFile.absolutePath).crf)
+    assertSameCrf(ModelReadWrite.readPronouncerFrom(datFile.absolutePath).crf)
+    assert ModelReadWrite.readTrainAlignerFrom(binFile.absolutePath).transitions.entryCount() == 4
+  }
+
+  @Test
+  public void shouldReadFromStreamsAndBuffers() throws Exception {
+    def bytes = new ByteArrayOutputStream()
+    BinaryModelFormat.write(makeModel(), bytes)
+    def fromStream = BinaryModelFormat.read(new ByteArrayInputStream(bytes.toByteArray()))
+    def fromBuffer = BinaryModelFormat.read(ByteBuffer.wrap(bytes.toByteArray()))
+    assertSameCrf(fromStream.pronouncerModel.crf)
+    assertSameCrf(fromBuffer.pronouncerModel.crf)
+
+    def file = folder.newFile()
+    file.bytes = bytes.toByteArray()
+    def mapped = ModelReadWrite.readPipelineFrom(file)
+    assertSameCrf(mapped.pronouncerModel.crf)
+    assert mapped.trainingAlignerModel.transitions.entryCount() == 4
+  }
+
+  @Test
+  public void shouldLoadSectionsInParallel() throws Exception {
+    def file = folder.newFile()
+    ModelReadWrite.writeBinary(makeModel(), file)
+    def exec = Executors.newFixedThreadPool(3)
+    try {
+      def inferenceOnly = ModelReadWrite.readBinaryAsync(file, false, exec).get()
+      assert inferenceOnly.trainingAlignerModel == null
+      assert inferenceOnly.testingAlignerModel != null
+      assertSameCrf(inferenceOnly.pronouncerModel.crf)
+
+      def everything = ModelReadWrite.readBinaryAsync(file, true, exec).get()
+      assert everything.trainingAlignerModel.transitions.entryCount() == 4
+      assertSameCrf(everything.pronouncerModel.crf)
+    } finally {
+      MoreExecutors.shutdownAndAwaitTermination(exec, 10, TimeUnit.SECONDS)
+    }
+  }
+
+  @Test
+  public void shouldWriteQuantizedWeightsAsCodes() throws Exception {
+    // the tiny crf only has a few distinct weights so jiggle them all to be distinct (i.e. to look like a real model)
+    def distinct = TestCrfs.trainTinyCrf()
+    double jiggle = 1e-9
+    distinct.parameters.weights.each { vector ->
+      def values = vector.values
+      for (int i = 0; i < values.length; i++) {
+        values[i] += jiggle
+        jiggle += 1e-9
+      }
+    }
+    def plain = new ByteArrayOutputStream()
+    BinaryModelFormat.write(new PipelineModel(pronouncerModel: new PhonemeCrfModel(distinct)), plain)
+
+    def quantized = distinct
+    def codebook = ModelQuantizer.quantize(quantized, 4)
+    assert codebook.size() <= 16
+    def coded = new ByteArrayOutputStream()
+    BinaryModelFormat.write(new PipelineModel(pronouncerModel: new PhonemeCrfModel(quantized)), coded)
+    assert coded.size() < plain.size()
+
+    CRF read = BinaryModelFormat.read(new ByteArrayInputStream(coded.toByteArray())).pronouncerModel.crf
+    def expected = quantized.parameters
+    def actual = read.parameters
+    assert actual.defaultWeights == expected.defaultWeights
+    assert actual.weights.length == expected.weights.length
+    for (int i = 0; i < expected.weights.length; i++) {
+      assert actual.weights[i].indices == expected.weights[i].indices
+      assert actual.weights[i].values == expected.weights[i].values
+      actual.weights[i].values.each { assert codebook.codes.contains(it) }
+    }
+  }
+
+  @Test(expected = ModelException.class)
+  public void shouldRejectNonBinaryInput() throws Exception {
+    BinaryModelFormat.read(new ByteArrayInputStream("not a model at all".bytes))
+  }
+
+  private static void assertSameCrf(CRF actual) {
+    TestCrfs.assertSameTagging(crf, actual)
+  }
+}
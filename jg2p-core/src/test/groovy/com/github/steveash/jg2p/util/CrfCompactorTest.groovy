@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.fst.CRF
+import com.github.steveash.jg2p.PipelineModel
+import com.github.steveash.jg2p.aligntag.AlignTagModel
+import com.github.steveash.jg2p.seq.PhonemeCrfModel
+import com.github.steveash.jg2p.seq.TestCrfs
+import org.junit.BeforeClass
+import org.junit.Test
+
+import static com.github.steveash.jg2p.seq.TestCrfs.logPartition
+
+/**
+ * @author Steve Ash
+ */
+class CrfCompactorTest {
+
+  private static CRF crf
+
+  @BeforeClass
+  public static void setUpClass() {
+    crf = TestCrfs.trainTinyCrf()
+  }
+
+  private static int weightCount(CRF crf) {
+    return crf.parameters.weights.sum { it.values.length } as int
+  }
+
+  @Test
+  public void shouldOnlyDropZeroWeightsWithNoThreshold() throws Exception {
+    def compacted = new CrfCompactor(0.0, Integer.MAX_VALUE).compact(new PhonemeCrfModel(crf)).crf
+    assert !compacted.is(crf)
+    assert compacted.inputAlphabet.size() <= crf.inputAlphabet.size()
+    assert compacted.inputAlphabet.growthStopped()
+    // the pipe and the crf have to share the compacted alphabet
+    assert compacted.inputPipe.dataAlphabet.is(compacted.inputAlphabet)
+    compacted.inputPipe.pipes().each { assert it.dataAlphabet == null || it.dataAlphabet.is(compacted.inputAlphabet) }
+    TestCrfs.assertSameTagging(crf, compacted)
+  }
+
+  @Test
+  public void shouldPruneSmallWeightsAndTheirFeatures() throws Exception {
+    def originalSize = crf.inputAlphabet.size()
+    def originalWeights = weightCount(crf)
+    def compacted = new CrfCompactor(0.5, Integer.MAX_VALUE).compact(new AlignTagModel(crf)).crf
+    assert compacted.inputAlphabet.size() < originalSize
+    assert weightCount(compacted) < originalWeights
+    compacted.parameters.weights.each { vector ->
+      vector.values.each { assert Math.abs(it) >= 0.5 }
+      vector.indices.each { assert it < compacted.inputAlphabet.size() }
+    }
+    // every feature that survived is named the same thing and has the same weights as before
+    compacted.parameters.weights.eachWithIndex { vector, int w ->
+      vector.indices.eachWithIndex { int index, int i ->
+        def oldIndex = crf.inputAlphabet.lookupIndex(compacted.inputAlphabet.lookupObject(index), false)
+        assert crf.parameters.weights[w].value(oldIndex) == vector.values[i]
+      }
+    }
+    // the original isn't touched
+    assert crf.inputAlphabet.size() == originalSize
+    assert weightCount(crf) == originalWeights
+    // and it can still tag words that have features that were pruned
+    TestCrfs.FRUIT.each { assert !Double.isNaN(logPartition(compacted, it)) }
+  }
+
+  @Test
+  public void shouldCompactCrfsThatShareAnAlphabet() throws Exception {
+    // a second crf over the same input alphabet whose weights are big enough that more of its features survive
+    def other = new CRF(crf)
+    other.parameters.weights.each { vector -> vector.values.eachWithIndex { double v, int i -> vector.values[i] = v * 3 } }
+    other.weightsValueChanged()
+    assert other.inputAlphabet.is(crf.inputAlphabet)
+
+    // (like the syllable tagger and the aligner in a SyllTagAlignerAdapter) both crfs are in one object graph
+    def compacted = new CrfCompactor(0.5, Integer.MAX_VALUE).compact([new PhonemeCrfModel(crf), new AlignTagModel(other)])
+    def first = compacted[0].crf
+    def second = compacted[1].crf
+    assert first.inputAlphabet.is(second.inputAlphabet)
+    assert first.inputAlphabet.size() < crf.inputAlphabet.size()
+    // both crfs' weights still point at the features that they had before
+    [[crf, first], [other, second]].each { CRF original, CRF small ->
+      small.parameters.weights.eachWithIndex { vector, int w ->
+        vector.indices.eachWithIndex { int index, int i ->
+          def oldIndex = original.inputAlphabet.lookupIndex(small.inputAlphabet.lookupObject(index), false)
+          assert original.parameters.weights[w].value(oldIndex) == vector.values[i]
+          assert Math.abs(vector.values[i]) >= 0.5
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldKeepTheFeatureBudget() throws Exception {
+    def compactor = new CrfCompactor(0.0, 10)
+    def model = new PipelineModel()
+    model.pronouncerModel = new PhonemeCrfModel(crf)
+    model.testingAlignerModel = new AlignTagModel(crf)
+    def compacted = ModelCompactor.compact(model, compactor)
+    assert compacted.pronouncerModel.crf.inputAlphabet.size() == 10
+    assert ((AlignTagModel) compacted.testingAlignerModel).crf.inputAlphabet.size() == 10
+    assert model.pronouncerModel.crf.is(crf)
+
+    // compacting again (differently) has to make a new copy and not resolve to the first one
+    def again = new CrfCompactor(0.0, 5).compact(model.pronouncerModel).crf
+    assert again.inputAlphabet.size() == 5
+    assert again.inputPipe.dataAlphabet.is(again.inputAlphabet)
+    assert compacted.pronouncerModel.crf.inputPipe.dataAlphabet.size() == 10
+
+    // the kept features are the ones with the biggest weights
+    def compactedCrf = compacted.pronouncerModel.crf
+    def smallestKept = compactedCrf.parameters.weights.collect { it.values.collect { Math.abs(it) } }.flatten().max()
+    assert smallestKept == crf.parameters.weights.collect { it.values.collect { Math.abs(it) } }.flatten().max()
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import cc.mallet.fst.CRF
+import com.github.steveash.jg2p.seq.TestCrfs
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class HashingAlphabetTest {
+
+  @Test
+  public void shouldHashInToAFixedSpace() throws Exception {
+    def alpha = new HashingAlphabet(4)
+    assert alpha.size() == 16
+    def features = (0..<100).collect { "feat_" + it }
+    def indexes = features.collect { alpha.lookupIndex(it, true) }
+    indexes.each { assert it >= 0 && it < 16 }
+    // repeats don't count again
+    features.each { alpha.lookupIndex(it, true) }
+    assert alpha.distinctFeatures == 100
+    assert alpha.usedIndexes == indexes.toSet().size()
+    assert alpha.collisions == 100 - alpha.usedIndexes
+    assert alpha.collisionReport().contains("100 distinct features")
+
+    alpha.stopGrowth()
+    alpha.lookupIndex("something new", true)
+    assert alpha.distinctFeatures == 100
+    assert features.collect { alpha.lookupIndex(it, false) } == indexes
+    assert alpha.bucketFor("feat_7".hashCode()) == indexes[7]
+  }
+
+  @Test
+  public void shouldSerializeWithoutTheFeatureStrings() throws Exception {
+    def alpha = new HashingAlphabet(20)
+    (0..<1000).each { alpha.lookupIndex("some rather long feature name " + it, true) }
+    alpha.stopGrowth()
+    def bytes = new ByteArrayOutputStream()
+    new ObjectOutputStream(bytes).withCloseable { it.writeObject(alpha) }
+    assert bytes.size() < 1000
+
+    def read = (HashingAlphabet) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+    assert read.bits == 20
+    assert read.distinctFeatures == 1000
+    assert read.lookupIndex("some rather long feature name 5") == alpha.lookupIndex("some rather long feature name 5")
+  }
+
+  @Test
+  public void shouldTrainTheSameTinyCrf() throws Exception {
+    CRF strings = TestCrfs.trainTinyCrf()
+    def alpha = new HashingAlphabet(18)
+    CRF hashed = TestCrfs.trainTinyCrf(alpha)
+    assert alpha.collisions == 0
+    TestCrfs.assertSameTagging(strings, hashed)
+  }
+}
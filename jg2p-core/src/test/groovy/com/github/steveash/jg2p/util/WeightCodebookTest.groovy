@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.util
+
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class WeightCodebookTest {
+
+  @Test
+  public void shouldBeLosslessWithFewDistinctValues() throws Exception {
+    double[] values = [0.5, -1.25, 0.0, 0.5, 3.0, Double.NEGATIVE_INFINITY, -1.25]
+    def codebook = WeightCodebook.build(values, 8)
+    assert codebook.size() == 4
+    assert codebook.codes.toList() == [-1.25, 0.0, 0.5, 3.0]
+    double[] copy = values.clone()
+    assert codebook.quantizeInPlace(copy) == 0.0
+    assert copy == values
+  }
+
+  @Test
+  public void shouldBoundTheErrorByTheBins() throws Exception {
+    def rand = new Random(0xC0DE)
+    double[] values = (0..<10000).collect { it % 7 == 0 ? 0.0d : rand.nextGaussian() }
+    [4, 8].each { int bits ->
+      def codebook = WeightCodebook.build(values, bits)
+      assert codebook.size() <= (1 << bits)
+      assert codebook.encode(0.0) == codebook.codes.toList().indexOf(0.0d)
+      assert codebook.quantize(0.0) == 0.0
+      double[] copy = values.clone()
+      def maxError = codebook.quantizeInPlace(copy)
+      // the outer bins of a gaussian are wide but most of the weights are in the narrow middle bins
+      assert maxError < (bits == 8 ? 1.5 : 3.0)
+      def meanError = (0..<values.length).sum { Math.abs(copy[it] - values[it]) } / values.length
+      assert meanError < (bits == 8 ? 0.01 : 0.1)
+      copy.each { assert codebook.codes.contains(it) }
+    }
+  }
+
+  @Test
+  public void shouldEncodeToTheNearestCode() throws Exception {
+    def codebook = WeightCodebook.fromCodes([1.0, -1.0, 0.0] as double[])
+    assert codebook.encode(-5.0) == 0
+    assert codebook.encode(-0.6) == 0
+    assert codebook.encode(0.4) == 1
+    assert codebook.encode(7.0) == 2
+    assert codebook.decode(2) == 1.0
+    assert Double.isNaN(codebook.quantize(Double.NaN))
+  }
+}
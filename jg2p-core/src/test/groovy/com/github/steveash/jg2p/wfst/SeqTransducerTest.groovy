@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Steve Ash
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.steveash.jg2p.wfst
+
+import com.github.steveash.jg2p.Word
+import org.junit.BeforeClass
+import org.junit.Test
+
+/**
+ * @author Steve Ash
+ */
+class SeqTransducerTest {
+
+  private static final List<List<String>> graphones = [
+      ["C|H}CH", "C}K", "C}S"],
+      ["A}AE", "A}EY", "A}AH"],
+      ["E}EH", "E}", "E}IY"],
+      ["T}T", "T|H}TH"],
+      ["S}S", "S}Z"],
+      ["O}OW", "O}AA"],
+      ["R}R"],
+      ["N}N"],
+      ["H}HH"],
+  ]
+  private static final List<String> words = ["CHASE", "CASTER", "NOTE", "TONE", "CHOSEN", "RATES", "THOSE"]
+
+  private static SeqTransducer transducer
+
+  @BeforeClass
+  static void train() {
+    def rand = new Random(0xBEEF)
+    def sentences = []
+    500.times {
+      def len = 2 + rand.nextInt(6)
+      def sentence = []
+      len.times {
+        def choices = graphones[rand.nextInt(graphones.size())]
+        // the first choice is the most likely one
+        sentence << (rand.nextBoolean() ? choices[rand.nextInt(choices.size())] : choices[0])
+      }
+      sentences << (sentence as String[])
+    }
+    // modified kneser-ney needs some graphones that are only seen (in distinct contexts) a few times
+    ["X}K", "Q}K", "Z}Z", "G}G"].eachWithIndex { rare, i ->
+      (i + 1).times { j -> sentences << ([graphones[j][0], rare] as String[]) }
+    }
+    transducer = new G2pFstTrainer().trainWithSentences(sentences, 3)
+  }
+
+  @Test
+  void shouldFindSameBestAsFullComposition() {
+    words.each { word ->
+      def input = Word.fromNormalString(word)
+      def full = transducer.translateByFullComposition(input, 1)
+      def lazy = transducer.translate(input, 1)
+      assert full.size() == 1
+      assert lazy.size() == 1
+      assert lazy[0].word == full[0].word
+      assert Math.abs(lazy[0].score - full[0].score) < 1e-6
+    }
+  }
+
+  @Test
+  void shouldReturnDistinctSortedTopK() {
+    words.each { word ->
+      def input = Word.fromNormalString(word)
+      def results = transducer.translate(input, 5)
+      def full = transducer.translateByFullComposition(input, 5)
+      assert results.size() == 5
+      assert results*.word == full*.word
+      // the full composition's n-best is approximate too so it can only be as good as the lazy one
+      [results, full].transpose().each { lazy, fromFull -> assert lazy.score <= fromFull.score + 1e-6 }
+      assert results*.word.unique(false).size() == results.size()
+      assert results*.score == results*.score.sort(false)
+    }
+  }
+
+  @Test
+  void shouldStillDecodeWithNarrowBeam() {
+    def wide = transducer.translate(Word.fromNormalString("CHASE"), 1, 1000.0)
+    def narrow = transducer.translate(Word.fromNormalString("CHASE"), 3, 0.5)
+    assert !narrow.isEmpty()
+    assert narrow[0].score >= wide[0].score - 1e-6
+  }
+}
@@ -21,6 +21,8 @@ import org.junit.Test
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import static org.junit.Assert.assertEquals
+
 /**
  * @author Steve Ash
  */
@@ -52,6 +54,84 @@ class AlignerTrainerTest {
     printExample(model, "wrinkling", "R IH NG K L IH NG")
   }
 
+  @Test
+  public void shouldTrainTheSameFromAStream() throws Exception {
+    def reader = InputReader.makeDefaultFormatReader()
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 3
+    def fromList = new AlignerTrainer(opts).train(reader.readFromClasspath("sample.txt")).transitions
+    def fromStream = new AlignerTrainer(opts).train(reader.streamFromClasspath("sample.txt")).transitions
+    assert fromList.entryCount() == fromStream.entryCount()
+    fromList.each { assertEquals(it.value, fromStream.prob(it.rowKey, it.columnKey), 1e-12) }
+  }
+
+  @Test
+  public void shouldIncrementallyTrainFromAnExistingModel() throws Exception {
+    def records = InputReader.makeDefaultFormatReader().readFromClasspath("sample.txt")
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaxIterations = 5
+    def trainer = new AlignerTrainer(opts)
+    def existing = trainer.train(records)
+    def before = new ProbTable()
+    ProbTable.mergeAll([existing.transitions], before)
+
+    // ø is never in the sample so it can only have come from the new records
+    def newRecords = [new InputRecord(Word.fromSpaceSeparated("s ø r e n"), Word.fromSpaceSeparated("S ER R EH N"))]
+    opts.incrementalAlignerIterations = 3
+    def refreshed = trainer.trainIncremental(existing, newRecords).transitions
+    // kept everything that it knew before and (a little of) the new records
+    before.each { if (it.value > 0) assert refreshed.prob(it.rowKey, it.columnKey) > 0 }
+    assert before.prob("ø", "ER") == 0.0d
+    assert refreshed.prob("ø", "ER") > 0
+
+    // if the prior is worth a whole lot then nothing much should change
+    opts.incrementalPriorRecords = 1000000000
+    def barely = new AlignerTrainer(opts).trainIncremental(new AlignModel(opts.makeGramOptions(), before), newRecords)
+    // (the existing probs aren't exactly normalized since EM leaves cells that lost all support alone)
+    before.each { assertEquals(it.value, barely.transitions.prob(it.rowKey, it.columnKey), it.value * 0.02) }
+    // and the new records should have moved it much less than they did with the default prior
+    assert barely.transitions.prob("ø", "ER") < refreshed.prob("ø", "ER") / 100.0
+  }
+
+  @Test(expected = IllegalArgumentException)
+  public void shouldRejectNegativePriorRecords() throws Exception {
+    def opts = new TrainOptions()
+    opts.incrementalPriorRecords = -1
+    new AlignerTrainer(opts).trainIncremental(new AlignModel(opts.makeGramOptions(), new ProbTable()), [])
+  }
+
+  @Test(expected = IllegalArgumentException)
+  public void shouldRejectIncrementalTrainingWithConditionalMaximizer() throws Exception {
+    def opts = new TrainOptions()
+    opts.trainingAlignerMaximizer = Maximizer.COND_X_GIVEN_Y
+    new AlignerTrainer(opts).trainIncremental(new AlignModel(opts.makeGramOptions(), new ProbTable()), [])
+  }
+
+  @Test
+  public void shouldPartitionByLatticeCost() throws Exception {
+    def walker = new WindowXyWalker(new TrainOptions().makeGramOptions())
+    def builder = new GramLattice.Builder()
+    def lattices = (1..10).collect {
+      def x = Word.fromNormalString("A" * it)
+      def y = Word.fromSpaceSeparated((["AH"] * it).join(" "))
+      builder.start(x, y)
+      walker.forward(x, y, { int xxb, int xxa, String xg, int yyb, int yya, String yg ->
+        builder.addEdge(xxb, xxa, xg, yyb, yya, yg)
+      } as XyWalker.Visitor)
+      builder.finish()
+    }
+    // the same costs that the trainer uses to split the expectation work
+    long[] costs = lattices.collect { it.nodeCount() + it.edgeCount() } as long[]
+    def parts = AlignerTrainer.partitionByCost(lattices, costs, 3)
+    assert parts.size() == 3
+    assert parts.flatten() == lattices
+    // the long words are more expensive so the last partitions should have fewer records
+    assert parts[0].size() > parts[2].size()
+
+    assert AlignerTrainer.partitionByCost(lattices.take(2), costs, 3).size() == 2
+    assert AlignerTrainer.partitionByCost(lattices, costs, 1) == [lattices]
+  }
+
   private printExample(AlignModel v, String left, String right) {
     def x = Word.fromNormalString(left)
     def results = v.align(x, Word.fromSpaceSeparated(right), 3)